@@ -21,7 +21,11 @@ import static java.lang.String.format;
  I/2,2,EARLY EGYPTIAN 3000BC - 1541BC
  I/3,1,NUBIAN 3000BC - 1480BC
  * </code>
+ *
+ * @deprecated The army list reads the header CSV with {@link MappedCsv}, by the same column names.
+ * Kept only to check MappedCsv against opencsv.
  */
+@Deprecated
 public class ArmyHeaderBean {
     @CsvBindByName(column = "ArmyRef")
     public String armyRef;
@@ -0,0 +1,378 @@
+package info.danbecker.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A read-only CSV file, read into memory at once and split into fields in one pass,
+ * for the DBA army header and variant layouts, the columns of {@link ArmyVariantBean} and the like.
+ * <p>
+ * The file is read into a heap buffer rather than memory mapped, so it is not held open and may be
+ * replaced or deleted while the rows are in use. A live mapping would lock the file on Windows.
+ * <p>
+ * Fields are not copied. Each row is a view that gives a field as a CharSequence over the file bytes,
+ * or as an int parsed in place, and makes a String only when asked with {@link Row#string(int)}.
+ * Rows are looked up by index and the file is only read, so rows may be used from many threads at once.
+ * Every column is there by its header name, including the ones the beans leave out, such as Check and the type flags.
+ * <p>
+ * The quoting is that of opencsv for these files:
+ * <ul>
+ * <li>a field that starts with a quote runs to the closing quote, and may hold commas, new lines and doubled quotes</li>
+ * <li>a quote inside a field that does not start with one is just a quote, as in: THE "GREAT REVOLT" CIRCA 2250BC</li>
+ * <li>a backslash is dropped and the character after it is kept, so "MAKKAN\, DILMUN" is one field</li>
+ * <li>a row with fewer fields than the header has empty fields at the end</li>
+ * </ul>
+ * Text is UTF-8. CharSequence views are for plain ASCII fields, others are decoded to a String.
+ * <p>
+ * For example
+ * <pre>
+ * MappedCsv csv = MappedCsv.open(path);
+ * int agg = csv.column("Agg");
+ * for (int i = 0; i &lt; csv.rowCount(); i++) sum += csv.row(i).intField(agg);
+ * </pre>
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class MappedCsv {
+    static Logger LOGGER = Logger.getLogger(MappedCsv.class.getName());
+
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+    private static final byte COMMA = ',';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final Path path;
+    // Read with absolute gets only, so it is safe to share.
+    private final ByteBuffer bytes;
+    private final List<String> columns;
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    // Fields of row r are rowFields[r] to rowFields[r + 1], row 0 is the header.
+    private final int[] rowFields;
+    private final int[] starts;
+    private final int[] ends;
+    // Fields with bytes past ASCII or doubled quotes are decoded rather than viewed.
+    private final BitSet decode = new BitSet();
+    // Fields with doubled quotes or backslashes.
+    private final BitSet escaped = new BitSet();
+
+    private MappedCsv(Path path, ByteBuffer bytes) {
+        this.path = path;
+        this.bytes = bytes;
+        Fields fields = new Fields(bytes.limit() / 8 + 16);
+        IntList rowList = new IntList(bytes.limit() / 64 + 16);
+        tokenize(fields, rowList);
+        this.rowFields = rowList.toArray();
+        this.starts = fields.starts.toArray();
+        this.ends = fields.ends.toArray();
+        if (rowFields.length < 2) throw new IllegalArgumentException("no header row in \"" + path + "\"");
+        List<String> names = new ArrayList<>();
+        for (int field = rowFields[0]; field < rowFields[1]; field++) names.add(text(field));
+        this.columns = List.copyOf(names);
+        for (int col = columns.size() - 1; 0 <= col; col--) columnIndexes.put(columns.get(col), col);
+    }
+
+    /**
+     * Reads the given file and splits it into rows and fields.
+     * @param path CSV file with a header row
+     * @return the file, split into rows and fields
+     * @throws IOException when the file is not readable
+     * @throws IllegalArgumentException when the file has no header row or a quote is not closed
+     */
+    public static MappedCsv open(Path path) throws IOException {
+        if (null == path) throw new IllegalArgumentException("path is null");
+        return new MappedCsv(path, ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    /** Growable int array. */
+    private static final class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private record Fields(IntList starts, IntList ends) {
+        Fields(int capacity) {
+            this(new IntList(capacity), new IntList(capacity));
+        }
+    }
+
+    /** Records the byte range of every field, and the first field of every row. */
+    private void tokenize(Fields fields, IntList rowList) {
+        int limit = bytes.limit();
+        int pos = 0;
+        while (pos < limit) {
+            // Skip blank lines.
+            byte b = bytes.get(pos);
+            if (CR == b || LF == b) {
+                pos++;
+                continue;
+            }
+            rowList.add(fields.starts.size());
+            boolean rowEnd = false;
+            while (!rowEnd) {
+                int field = fields.starts.size();
+                int start;
+                int end;
+                if (pos < limit && QUOTE == bytes.get(pos)) {
+                    start = ++pos;
+                    while (true) {
+                        if (pos >= limit)
+                            throw new IllegalArgumentException("quote at byte " + (start - 1) + " is not closed in \"" + path + "\"");
+                        b = bytes.get(pos);
+                        if (QUOTE == b) {
+                            if (pos + 1 < limit && QUOTE == bytes.get(pos + 1)) {
+                                decode.set(field);
+                                escaped.set(field);
+                                pos += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        if (ESCAPE == b) {
+                            decode.set(field);
+                            escaped.set(field);
+                            pos = Math.min(pos + 2, limit);
+                            continue;
+                        }
+                        if (b < 0) decode.set(field);
+                        pos++;
+                    }
+                    end = pos++;
+                    // Anything between the closing quote and the comma is dropped.
+                    while (pos < limit && COMMA != bytes.get(pos) && LF != bytes.get(pos)) pos++;
+                } else {
+                    start = pos;
+                    while (pos < limit && COMMA != (b = bytes.get(pos)) && LF != b) {
+                        if (ESCAPE == b) {
+                            decode.set(field);
+                            escaped.set(field);
+                            pos = Math.min(pos + 2, limit);
+                            continue;
+                        }
+                        if (b < 0) decode.set(field);
+                        pos++;
+                    }
+                    end = pos;
+                    if (end > start && CR == bytes.get(end - 1)) end--;
+                }
+                fields.starts.add(start);
+                fields.ends.add(end);
+                if (pos < limit && COMMA == bytes.get(pos)) {
+                    pos++;
+                } else {
+                    pos++; // past the new line
+                    rowEnd = true;
+                }
+            }
+        }
+        rowList.add(fields.starts.size());
+    }
+
+    /** Returns the text of a field, decoded, with doubled quotes made single and backslashes taken off. */
+    private String text(int field) {
+        byte[] raw = new byte[ends[field] - starts[field]];
+        bytes.get(starts[field], raw);
+        String str = new String(raw, StandardCharsets.UTF_8);
+        if (!escaped.get(field)) return str;
+        // Only a quoted field can hold a doubled quote.
+        boolean quoted = 0 < starts[field] && QUOTE == bytes.get(starts[field] - 1);
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (ESCAPE == c || (quoted && QUOTE == c)) {
+                if (++i < str.length()) sb.append(str.charAt(i));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** @return the file path */
+    public Path path() {
+        return path;
+    }
+
+    /** @return the header names, in column order */
+    public List<String> columns() {
+        return columns;
+    }
+
+    /**
+     * Returns the index of the named column.
+     * @param name header name such as Agg
+     * @return column index
+     * @throws IllegalArgumentException when there is no such column
+     */
+    public int column(String name) {
+        Integer col = columnIndexes.get(name);
+        if (null == col) throw new IllegalArgumentException("no column \"" + name + "\" in \"" + path + "\"");
+        return col;
+    }
+
+    /** @return the number of rows after the header */
+    public int rowCount() {
+        return rowFields.length - 2;
+    }
+
+    /**
+     * Returns a view of a row.
+     * @param index row index, from 0 for the row after the header
+     * @return the row
+     */
+    public Row row(int index) {
+        if (index < 0 || index >= rowCount())
+            throw new IndexOutOfBoundsException("row " + index + " is not in 0 to " + rowCount() + " exclusive");
+        return new Row(index);
+    }
+
+    /** One row of the file. Fields past the end of a short row are empty. */
+    public final class Row {
+        private final int index;
+        private final int first;
+        private final int count;
+
+        private Row(int index) {
+            this.index = index;
+            this.first = rowFields[index + 1];
+            this.count = rowFields[index + 2] - first;
+        }
+
+        /** @return the row index, from 0 for the row after the header */
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Tells if a field is empty.
+         * @param col column index
+         * @return whether the field has no characters
+         */
+        public boolean isEmpty(int col) {
+            return col >= count || starts[first + col] == ends[first + col];
+        }
+
+        /**
+         * Returns a field without copying it, when it is plain ASCII.
+         * The view reads the bytes read from the file, so it stays valid.
+         * @param col column index
+         * @return the field text
+         */
+        public CharSequence field(int col) {
+            if (col >= count) return "";
+            int field = first + col;
+            return decode.get(field) ? text(field) : new Slice(starts[field], ends[field]);
+        }
+
+        /**
+         * Returns a field as a String.
+         * @param col column index
+         * @return the field text
+         */
+        public String string(int col) {
+            return (col >= count) ? "" : text(first + col);
+        }
+
+        /**
+         * Parses a field of decimal digits in place, with an optional leading minus.
+         * @param col column index
+         * @return the field value
+         * @throws IllegalArgumentException when the field is empty or not an int
+         */
+        public int intField(int col) {
+            if (isEmpty(col)) throw notInt(col);
+            int pos = starts[first + col];
+            int end = ends[first + col];
+            boolean negative = '-' == bytes.get(pos);
+            if (negative && ++pos == end) throw notInt(col);
+            long value = 0;
+            for (; pos < end; pos++) {
+                int digit = bytes.get(pos) - '0';
+                if (digit < 0 || digit > 9) throw notInt(col);
+                value = value * 10 + digit;
+                if (value > (long) Integer.MAX_VALUE + 1) throw notInt(col);
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) throw notInt(col);
+            return (int) value;
+        }
+
+        private IllegalArgumentException notInt(int col) {
+            return new IllegalArgumentException("row " + index + " column \"" + columns.get(col) + "\" is not an int: \"" +
+                    string(col) + "\" in \"" + path + "\"");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int col = 0; col < count; col++) {
+                if (0 < col) sb.append(',');
+                sb.append(field(col));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** ASCII characters of the file from start to end, exclusive. */
+    private final class Slice implements CharSequence {
+        private final int start;
+        private final int end;
+
+        Slice(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+            return (char) bytes.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) throw new IndexOutOfBoundsException(from);
+            return new Slice(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] raw = new byte[end - start];
+            bytes.get(start, raw);
+            return new String(raw, StandardCharsets.US_ASCII);
+        }
+    }
+}
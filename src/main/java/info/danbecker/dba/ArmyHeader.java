@@ -39,7 +39,7 @@ public class ArmyHeader implements Comparable<ArmyHeader> {
     final int variantCount;
 
     /**
-     * Construct header from ArmyHeaderBean information.
+     * Construct header from the fields of a header row.
      * Synthesize and fill in other fields.
      *
      * @param armyRef section and number of army
@@ -62,6 +62,25 @@ public class ArmyHeader implements Comparable<ArmyHeader> {
         references = List.of( "Cambridge Ancient History Vol. 1 Part 2");
     }
 
+    /**
+     * Construct header from fields already worked out, as read from an {@link ArmySnapshot}.
+     *
+     * @param armyRef section and number of army
+     * @param groupName name of army
+     * @param variantCount count for validity checks
+     * @param names names taken from the group name
+     * @param years year ranges taken from the group name
+     */
+    ArmyHeader(ArmyRef armyRef, String groupName, int variantCount, List<String> names, List<YearRange> years) {
+        this.armyRef = armyRef;
+        this.groupName = groupName;
+        this.variantCount = variantCount;
+        this.names = names;
+        this.years = years;
+        historicalDesc = "Historical description";
+        references = List.of( "Cambridge Ancient History Vol. 1 Part 2");
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (null == obj) return false;
@@ -1,24 +1,33 @@
 package info.danbecker.dba;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 import static java.lang.String.format;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
-import com.opencsv.bean.CsvToBeanBuilder;
-import info.danbecker.csv.ArmyHeaderBean;
 import info.danbecker.csv.ArmyVariantBean;
+import info.danbecker.csv.MappedCsv;
 
 /**
  * A utility for reading, writing, and analyzing
@@ -50,6 +59,9 @@ public class ArmyList {
     static Logger LOGGER = Logger.getLogger(ArmyList.class.getName());
     // Armies is the main container for all armies.
     public static HashMap<ArmyRef,Army> Armies = new HashMap<>();
+    // Element code index of all variants for reverse lookup. Built on first use, dropped when armies are loaded.
+    // Only loading drops it. Code that changes Armies directly must set it to null, or lookups see the old armies.
+    static volatile VariantIndex variantIndex = null;
 
     // Some configuration parameters via JCommander.org
     public static class Options {
@@ -91,43 +103,190 @@ public class ArmyList {
         boolean isRootPathDir = Files.isDirectory( rootPath );
         System.out.printf( "App context is \"%s\" %s readable, %s directory%n", rootPath, isIsNot( isRootPathReadable ), isIsNot( isRootPathDir ) );
 
-        // Read army headers and add to ArmyList.
-        Path inPath = Paths.get( PATH_DEFAULT, ARMY_HEADER_DEFAULT );
-        boolean inPathReadable = Files.isReadable( inPath );
-        System.out.printf( "Reading headers from \"%s\" %s readable%n", inPath, isIsNot( inPathReadable ));
-        @SuppressWarnings("unchecked")
-        List<ArmyHeaderBean> headerBeans = new CsvToBeanBuilder(new FileReader( inPath.toString() ))
-                .withType(ArmyHeaderBean.class)
-                .build()
-                .parse();
-        headerBeans.forEach( b-> {
-            ArmyHeader armyHeader = new ArmyHeader( ArmyRef.parse( b.armyRef ), b.name, b.varCount );
-            // System.out.format( "%s %s, %d, %s %d\n", armyHeader.armyRef, armyHeader.groupName, armyHeader.variantCount,
-            //     armyHeader.names.toString(), armyHeader.names.size());
-            Armies.put(armyHeader.armyRef, new Army( armyHeader, new ArrayList<>() ));
-        });
-
-        // Read army variants and add to ArmyList.
-        inPath = Paths.get( PATH_DEFAULT, ARMY_DEFAULT );
-        inPathReadable = Files.isReadable( inPath );
-        System.out.printf( "Reading variants from \"%s\" %s readable%n", inPath, isIsNot( inPathReadable ));
-        @SuppressWarnings("unchecked")
-        List<ArmyVariantBean> variantBeans = new CsvToBeanBuilder(new FileReader( inPath.toString()))
-                .withType(ArmyVariantBean.class)
-                .build()
-                .parse();
-        variantBeans.forEach( b-> {
-            ArmyRef armyRef = new ArmyRef( b.book, b.armyNum, 0 );
-            ArmyRef varRef = new ArmyRef( b.book, b.armyNum, ArmyRef.getVersionNumber( b.var ) );
-            Army army = Armies.get( armyRef );
-            if ( null == army ) throw new IllegalArgumentException( "Could not find armyRef " + armyRef );
-            // System.out.print( varRef );
-
-            ArmyVariant armyVariant = new ArmyVariant( varRef, b.name, b.getElements(), b.topo, b.agg,
-               b.enemies, b.allies);
-            army.getVariants().add( armyVariant );
-            // System.out.format( " %s, E=%s A=%s%n", armyVariant.variantName, armyVariant.enemies.toString(), armyVariant.allies.toString());
-        });
+        Path headerPath = Paths.get( PATH_DEFAULT, ARMY_HEADER_DEFAULT );
+        System.out.printf( "Reading headers from \"%s\" %s readable%n", headerPath, isIsNot( Files.isReadable( headerPath )));
+        Path variantPath = Paths.get( PATH_DEFAULT, ARMY_DEFAULT );
+        System.out.printf( "Reading variants from \"%s\" %s readable%n", variantPath, isIsNot( Files.isReadable( variantPath )));
+        load( headerPath, variantPath, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Reads army headers and variants into the ArmyList.
+     * <p>
+     * The loading is a pipeline on a pool of worker threads:
+     * <ol>
+     * <li>the header and variant files are read and split into fields at the same time, see {@link MappedCsv}</li>
+     * <li>variant rows are split into chunks of {@link #LOAD_CHUNK}, and each chunk builds its ArmyVariants,
+     * with their troop definitions, years, terrain and enemy and ally lists, on a worker</li>
+     * <li>when the headers are in, the variants are added to their Army in row order</li>
+     * </ol>
+     * So the result is the same for any number of threads.
+     * Every troop definition that does not parse is logged before one is thrown, as in {@link TroopDef#parseAll(List, List)}.
+     *
+     * @param headerPath army header CSV, such as DBA3.0-ArmyGroupNames.csv
+     * @param variantPath army variant CSV, such as DBA3.0-ArmyVariants.csv
+     * @param threads number of worker threads
+     * @throws IOException when a file is not readable
+     * @throws IllegalArgumentException when a row is not valid, or a variant has no army header
+     */
+    public static void load( Path headerPath, Path variantPath, int threads ) throws IOException {
+        install( read( headerPath, variantPath, threads ));
+    }
+
+    /** Reads army headers and variants as in {@link #load(Path, Path, int)}, without adding them to the ArmyList. */
+    static Map<ArmyRef, Army> read( Path headerPath, Path variantPath, int threads ) throws IOException {
+        if ( null == headerPath || null == variantPath ) throw new IllegalArgumentException( "path is null" );
+        if ( 1 > threads ) throw new IllegalArgumentException( "thread count " + threads + " is less than 1" );
+        try ( ExecutorService pool = Executors.newFixedThreadPool( threads )) {
+            Future<MappedCsv> headerCsv = pool.submit( () -> MappedCsv.open( headerPath ));
+            Future<MappedCsv> variantCsv = pool.submit( () -> MappedCsv.open( variantPath ));
+
+            MappedCsv variants = await( variantCsv );
+            VariantColumns columns = new VariantColumns( variants );
+            List<Future<VariantChunk>> chunks = new ArrayList<>();
+            for ( int start = 0; start < variants.rowCount(); start += LOAD_CHUNK ) {
+                int first = start;
+                int end = Math.min( start + LOAD_CHUNK, variants.rowCount() );
+                chunks.add( pool.submit( () -> buildChunk( variants, columns, first, end )));
+            }
+
+            Map<ArmyRef, Army> armies = new HashMap<>();
+            MappedCsv headers = await( headerCsv );
+            int refCol = headers.column( "ArmyRef" );
+            int varCountCol = headers.column( "VarCount" );
+            int nameCol = headers.column( "GroupName" );
+            for ( int rowi = 0; rowi < headers.rowCount(); rowi++ ) {
+                MappedCsv.Row row = headers.row( rowi );
+                ArmyHeader armyHeader = new ArmyHeader( ArmyRef.parse( row.string( refCol )), row.string( nameCol ), row.intField( varCountCol ));
+                armies.put( armyHeader.armyRef, new Army( armyHeader, new ArrayList<>() ));
+            }
+
+            List<VariantChunk> built = new ArrayList<>();
+            for ( Future<VariantChunk> chunk : chunks ) built.add( await( chunk ));
+            List<TroopDef.ParseFailure> failures = built.stream().flatMap( chunk -> chunk.failures.stream() ).toList();
+            if ( !failures.isEmpty() ) {
+                failures.forEach( failure -> LOGGER.warning( failure.toString() ));
+                throw new IllegalArgumentException( failures.size() + " troop definitions did not parse, first: " +
+                        failures.getFirst() );
+            }
+            for ( VariantChunk chunk : built ) {
+                for ( ArmyVariant armyVariant : chunk.variants ) {
+                    ArmyRef armyRef = new ArmyRef( armyVariant.armyRef.section(), armyVariant.armyRef.number(), 0 );
+                    Army army = armies.get( armyRef );
+                    if ( null == army ) throw new IllegalArgumentException( "Could not find armyRef " + armyRef );
+                    army.getVariants().add( armyVariant );
+                }
+            }
+            return armies;
+        }
+    }
+
+    /**
+     * Reads army headers and variants into the ArmyList, from a snapshot when there is a good one.
+     * <p>
+     * A snapshot that is missing, of another version, damaged, or older than the CSVs is not used.
+     * Then the CSVs are read as in {@link #load(Path, Path, int)}, and a new snapshot of just those armies
+     * is written for next time.
+     *
+     * @param headerPath army header CSV, such as DBA3.0-ArmyGroupNames.csv
+     * @param variantPath army variant CSV, such as DBA3.0-ArmyVariants.csv
+     * @param snapshotPath snapshot file, see {@link ArmySnapshot}
+     * @param threads number of worker threads when the CSVs are read
+     * @return true if the armies came from the snapshot
+     * @throws IOException when a file is not readable, or the snapshot not writable
+     * @throws IllegalArgumentException when a row is not valid, or a variant has no army header
+     */
+    public static boolean load( Path headerPath, Path variantPath, Path snapshotPath, int threads ) throws IOException {
+        if ( null == headerPath || null == variantPath || null == snapshotPath ) throw new IllegalArgumentException( "path is null" );
+        Map<ArmyRef, Army> armies = ArmySnapshot.read( snapshotPath, headerPath, variantPath );
+        if ( null != armies ) {
+            install( armies );
+            return true;
+        }
+        armies = read( headerPath, variantPath, threads );
+        install( armies );
+        ArmySnapshot.write( snapshotPath, armies, headerPath, variantPath );
+        return false;
+    }
+
+    /** Adds the given armies to the ArmyList, and drops the variant index built from the old ones. */
+    static void install( Map<ArmyRef, Army> armies ) {
+        Armies.putAll( armies );
+        variantIndex = null;
+    }
+
+    /** Variant rows per worker task in {@link #load(Path, Path, int)}. */
+    static final int LOAD_CHUNK = 64;
+
+    /** Returns the field as a String, or null when it is empty. */
+    private static String optionalString( MappedCsv.Row row, int col ) {
+        return row.isEmpty( col ) ? null : row.string( col );
+    }
+
+    /** The columns of the variant CSV, see {@link ArmyVariantBean}. The element columns are General, 1, 2 and on. */
+    private record VariantColumns( int book, int army, int var, int name, int topo, int agg, int enemies, int allies,
+                                   int general, int[] elements ) {
+        VariantColumns( MappedCsv csv ) {
+            this( csv.column( "Book" ), csv.column( "Army" ), csv.column( "Var" ), csv.column( "Army Name" ),
+                    csv.column( "Topography" ), csv.column( "Agg" ), csv.column( "Enemies" ), csv.column( "Allies" ),
+                    csv.column( "General" ), elementColumns( csv ));
+        }
+
+        private static int[] elementColumns( MappedCsv csv ) {
+            List<Integer> cols = new ArrayList<>();
+            for ( int num = 1; csv.columns().contains( String.valueOf( num )); num++ )
+                cols.add( csv.column( String.valueOf( num )));
+            return cols.stream().mapToInt( Integer::intValue ).toArray();
+        }
+    }
+
+    /** The variants built from one chunk of rows, in row order, or the rows whose troops did not parse. */
+    private record VariantChunk( List<ArmyVariant> variants, List<TroopDef.ParseFailure> failures ) {}
+
+    private static VariantChunk buildChunk( MappedCsv csv, VariantColumns columns, int first, int end ) {
+        List<ArmyVariant> variants = new ArrayList<>( end - first );
+        List<TroopDef.ParseFailure> failures = new ArrayList<>();
+        StringBuilder elements = new StringBuilder();
+        for ( int rowi = first; rowi < end; rowi++ ) {
+            MappedCsv.Row row = csv.row( rowi );
+            ArmyRef varRef = new ArmyRef( row.intField( columns.book ), row.intField( columns.army ),
+                    row.isEmpty( columns.var ) ? 0 : ArmyRef.getVersionNumber( row.field( columns.var ).toString() ));
+            // The same troop String as ArmyVariantBean.getElements, the General with "+Gen" then each element column.
+            elements.setLength( 0 );
+            elements.append( row.field( columns.general )).append( "+Gen" );
+            for ( int col : columns.elements ) {
+                if ( !row.isEmpty( col )) elements.append( ArmyVariantBean.SCAT ).append( row.field( col ));
+            }
+            String elementStr = elements.toString();
+            try {
+                TroopDef.of( elementStr );
+            } catch ( IllegalArgumentException e ) {
+                int position = ( e instanceof TroopDefParseException parseException ) ?
+                        parseException.getPosition() : TroopDefParseException.NO_POSITION;
+                failures.add( new TroopDef.ParseFailure( varRef, rowi, position, elementStr, e.getMessage() ));
+                continue;
+            }
+            // The troops are in the TroopDef cache, so they are not parsed again.
+            // The enemy and ally lists are cleaned up as Strings, so only those with refs are copied.
+            variants.add( new ArmyVariant( varRef, row.string( columns.name ), elementStr, row.string( columns.topo ),
+                    row.intField( columns.agg ), optionalString( row, columns.enemies ), optionalString( row, columns.allies )));
+        }
+        return new VariantChunk( variants, failures );
+    }
+
+    /** Waits for a worker result, rethrowing what the worker threw. */
+    private static <T> T await( Future<T> future ) throws IOException {
+        try {
+            return future.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "interrupted while loading", e );
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ioException ) throw ioException;
+            if ( cause instanceof RuntimeException runtimeException ) throw runtimeException;
+            throw new IllegalStateException( cause );
+        }
     }
 
     /**
@@ -261,18 +420,277 @@ public class ArmyList {
         ElementType elementType = ElementType.fromString( elementOrCode ); // null if not an ElementType name
         ElementType codeParent = ElementType.fromCode( elementOrCode ); // null if not a, ElementType code
         if ( null == elementType && null == codeParent ) throw new IllegalArgumentException( "Could not find ElementType or element code from String \"" + elementOrCode + "\"" );
+        // One unit mask check per variant.
+        long mask = ( null == elementType ) ? CountVector.bit( elementOrCode ) : CountVector.mask( elementType );
         return Armies.values().stream()
                 .flatMap( army->army.getVariants().stream() )
-                .filter( av -> {
-                    List<String> unitList = av.troopDef.getUnitList();
-                    if ( null == elementType ) {
-                        return unitList.contains(elementOrCode);
-                    } else {
-                        return unitList.stream()
-                            .anyMatch( thisCode -> elementType.equals( ElementType.fromCode(thisCode)));
-                    }
-                })
+                .filter( av -> 0L != ( av.troopDef.getUnitMask() & mask ))
                 .sorted()
                 .toList();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns a list of armies that can field at least the given number of elements of a type,
+     * for example 4 KNIGHTS. Reads the cached {@link ArmyVariant#getStats()}, so no permutations are made.
+     * @param elementType element type such as KNIGHTS
+     * @param atLeast least number of elements
+     * @return list of ArmyVariants in variant order
+     */
+    public static List<ArmyVariant> getByElementCount( ElementType elementType, int atLeast ) {
+        if ( null == elementType ) throw new IllegalArgumentException( "element type is null" );
+        return Armies.values().stream()
+                .flatMap( army->army.getVariants().stream() )
+                .filter( av -> av.getStats().max( elementType ) >= atLeast )
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * Returns the refs of every army variant that the given army is a legal instance of.
+     * For example the army on the table "Cv+Gen,5xCv,2xLH,3Bw,Ps,2x7Hd" may be legal for several variants.
+     * <p>
+     * Candidates are first narrowed with an index of the element codes each variant can field,
+     * so only variants that can field every code of a concrete army are matched.
+     * The survivors are then checked with {@link TroopDef#isInstance(TroopDef)} in parallel.
+     * An army with choices left in it, such as "LH or Ps", is matched against every variant.
+     *
+     * @param instStr an army String such as "Cv+Gen,5xCv,2xLH,3Bw,Ps,2x7Hd"
+     * @return refs of the matching variants in variant order, or an empty list
+     */
+    public static List<ArmyRef> getByInstance( String instStr ) {
+        return getByInstance( TroopDef.of( instStr ));
+    }
+
+    /**
+     * Returns the refs of every army variant that the given army is a legal instance of.
+     * See {@link #getByInstance(String)}.
+     *
+     * @param instance an army
+     * @return refs of the matching variants in variant order, or an empty list
+     */
+    public static List<ArmyRef> getByInstance( TroopDef instance ) {
+        if ( null == instance ) throw new IllegalArgumentException( "instance is null" );
+        VariantIndex index = getVariantIndex();
+        return index.candidates( instance ).stream()
+                .parallel()
+                .filter( i -> index.variants.get( i ).troopDef.isInstance( instance ))
+                .mapToObj( i -> index.variants.get( i ).armyRef )
+                .toList();
+    }
+
+    /**
+     * Draws random legal armies for every loaded variant, in variant order.
+     * Each variant gives perVariant armies, drawn uniformly from its permutations,
+     * see {@link TroopPermutations#samples(SplittableRandom, long)}.
+     * The same seed gives the same armies, sequential or parallel, so the result suits fuzz testing with {@link #validateAll(List)}.
+     *
+     * @param random source of randomness, drawn once
+     * @param perVariant number of armies per variant
+     * @return a sequential stream of submissions, call parallel() to share the work
+     */
+    public static Stream<Submission> samples( SplittableRandom random, long perVariant ) {
+        if ( null == random ) throw new IllegalArgumentException( "random is null" );
+        if ( perVariant < 0 ) throw new IllegalArgumentException( "sample size " + perVariant + " is negative" );
+        List<ArmyVariant> variants = getVariantIndex().variants;
+        long seed = random.nextLong();
+        return IntStream.range( 0, variants.size() ).boxed()
+                .flatMap( vi -> {
+                    ArmyVariant variant = variants.get( vi );
+                    TroopPermutations permutations = variant.troopDef.getPermutations();
+                    return LongStream.range( 0, perVariant ).mapToObj( i -> new Submission( variant.armyRef,
+                            permutations.sample( TroopPermutations.seeded( seed, vi * perVariant + i ))));
+                });
+    }
+
+    /**
+     * One army handed in for checking, the variant it claims to be and its troops.
+     * @param armyRef the declared variant, for example I/1a
+     * @param instStr the troops, for example "3Bd+Gen,8x4Bw,3xPs"
+     */
+    public record Submission( ArmyRef armyRef, String instStr ) {}
+
+    /** The outcome of checking one {@link Submission}. */
+    public enum Outcome {
+        /** The troops are a legal instance of the declared variant. */
+        LEGAL,
+        /** The troops parse but are not an instance of the declared variant. */
+        ILLEGAL,
+        /** The troops do not parse. */
+        PARSE_ERROR,
+        /** There is no loaded variant with the declared ArmyRef. */
+        UNKNOWN_VARIANT,
+        /** Anything else that went wrong with this one submission. */
+        ERROR
+    }
+
+    /**
+     * The verdict on one submission of {@link #validateAll(List, int)}.
+     *
+     * @param index index of the submission in the input list
+     * @param submission the submission
+     * @param outcome legal, illegal, or why it could not be checked
+     * @param position character position of a parse error, or TroopDefParseException.NO_POSITION
+     * @param message reason for anything but LEGAL, or null
+     */
+    public record Verdict( int index, Submission submission, Outcome outcome, int position, String message ) {
+        /** @return whether the submission is a legal instance of its variant */
+        public boolean isLegal() {
+            return Outcome.LEGAL == outcome;
+        }
+
+        @Override
+        public String toString() {
+            if ( isLegal() ) return outcome + ", index=" + index + ", " + submission;
+            return outcome + ", index=" + index + ", " + submission + ", pos=" + position + ", " + message;
+        }
+    }
+
+    /**
+     * Checks many submitted armies against their declared variants at once,
+     * on a pool of one thread per core.
+     * @param submissions armies to check
+     * @return a verdict for each submission, in input order
+     * @see #validateAll(List, int)
+     */
+    public static List<Verdict> validateAll( List<Submission> submissions ) {
+        return validateAll( submissions, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Checks many submitted armies against their declared variants at once, as at tournament check-in.
+     * <p>
+     * Each submission is parsed and matched on its own task of a fixed pool of the given size.
+     * A bad submission does not stop the others. Each one gets a verdict,
+     * legal, illegal, or the parse error with its position, so a whole check-in is done in one pass.
+     *
+     * @param submissions armies to check, no null list
+     * @param threads number of pool threads, at least 1
+     * @return a verdict for each submission, in input order
+     */
+    public static List<Verdict> validateAll( List<Submission> submissions, int threads ) {
+        if ( null == submissions ) throw new IllegalArgumentException( "submissions are null" );
+        if ( threads < 1 ) throw new IllegalArgumentException( "thread count " + threads + " is less than 1" );
+        VariantIndex index = getVariantIndex();
+        List<Future<Verdict>> futures = new ArrayList<>( submissions.size() );
+        // Closing the pool waits for every task.
+        try ( ExecutorService pool = Executors.newFixedThreadPool( threads )) {
+            for ( int i = 0; i < submissions.size(); i++ ) {
+                final int subi = i;
+                futures.add( pool.submit( () -> validate( index, subi, submissions.get( subi ))));
+            }
+        }
+        List<Verdict> verdicts = new ArrayList<>( futures.size() );
+        for ( Future<Verdict> future : futures ) {
+            // Only a VM error such as OutOfMemoryError gets out of validate, and it is not about one submission.
+            if ( Future.State.FAILED == future.state() && future.exceptionNow() instanceof Error error ) throw error;
+            verdicts.add( future.resultNow() );
+        }
+        long legal = verdicts.stream().filter( Verdict::isLegal ).count();
+        LOGGER.fine( () -> "validateAll " + verdicts.size() + " submissions, " + legal + " legal" );
+        return List.copyOf( verdicts );
+    }
+
+    /**
+     * Checks one submission. Never throws but for VM errors, every problem is a verdict.
+     * Troops nested so deeply that parsing or matching overflows the stack are an ERROR.
+     */
+    private static Verdict validate( VariantIndex index, int subi, Submission submission ) {
+        int noPosition = TroopDefParseException.NO_POSITION;
+        try {
+            if ( null == submission )
+                return new Verdict( subi, null, Outcome.ERROR, noPosition, "submission is null" );
+            if ( null == submission.instStr() )
+                return new Verdict( subi, submission, Outcome.ERROR, noPosition, "troops are null" );
+            ArmyVariant variant = index.byRef.get( submission.armyRef() );
+            if ( null == variant )
+                return new Verdict( subi, submission, Outcome.UNKNOWN_VARIANT, noPosition, "no variant " + submission.armyRef() );
+            TroopDef instance;
+            try {
+                instance = TroopDef.of( submission.instStr() );
+            } catch ( IllegalArgumentException e ) {
+                int position = ( e instanceof TroopDefParseException parseException ) ? parseException.getPosition() : noPosition;
+                return new Verdict( subi, submission, Outcome.PARSE_ERROR, position, e.getMessage() );
+            }
+            if ( variant.troopDef.isInstance( instance ))
+                return new Verdict( subi, submission, Outcome.LEGAL, noPosition, null );
+            return new Verdict( subi, submission, Outcome.ILLEGAL, noPosition,
+                    "not an instance of " + variant.armyRef + " " + variant.troopDef );
+        } catch ( RuntimeException | StackOverflowError e ) {
+            return error( subi, submission, e );
+        } catch ( Error e ) {
+            if ( e instanceof VirtualMachineError ) throw e;
+            return error( subi, submission, e );
+        }
+    }
+
+    private static Verdict error( int subi, Submission submission, Throwable e ) {
+        LOGGER.warning( () -> "validate " + submission + " failed: " + e );
+        return new Verdict( subi, submission, Outcome.ERROR, TroopDefParseException.NO_POSITION, e.toString() );
+    }
+
+    /**
+     * Returns the variant index of the loaded armies, building it if needed.
+     * The index is kept until the next load, see {@link #install(Map)}.
+     * It does not see armies put into or removed from {@link #Armies} directly.
+     */
+    static VariantIndex getVariantIndex() {
+        VariantIndex index = variantIndex;
+        if ( null == index ) {
+            index = new VariantIndex( Armies.values().stream()
+                    .flatMap( army->army.getVariants().stream() )
+                    .sorted()
+                    .toList() );
+            variantIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * All army variants in order and by ArmyRef, with an index from each element code to the variants that can field it.
+     * The codes a variant can field are the codes of its legal count vectors, see {@link CountVector}.
+     * Variants with too many vectors to compile are candidates for every army.
+     */
+    static final class VariantIndex {
+        final List<ArmyVariant> variants;
+        final Map<ArmyRef, ArmyVariant> byRef = new HashMap<>();
+        final BitSet[] byCode; // by CountVector code index
+        final BitSet unindexed = new BitSet();
+
+        VariantIndex( List<ArmyVariant> variants ) {
+            this.variants = variants;
+            variants.forEach( variant -> byRef.put( variant.armyRef, variant ));
+            byCode = new BitSet[ CountVector.getCodes().size() ];
+            for ( int code = 0; code < byCode.length; code++ )
+                byCode[ code ] = new BitSet( variants.size() );
+            for ( int i = 0; i < variants.size(); i++ ) {
+                Set<CountVector> vectors = variants.get( i ).troopDef.getCountVectors();
+                if ( null == vectors ) {
+                    unindexed.set( i );
+                    continue;
+                }
+                for ( CountVector vector : vectors ) {
+                    int[] counts = vector.counts();
+                    for ( int code = 0; code < counts.length; code++ ) {
+                        if ( 0 != counts[ code ] ) byCode[ code ].set( i );
+                    }
+                }
+            }
+        }
+
+        /** Returns the indexes of the variants that may have the given army as an instance. */
+        BitSet candidates( TroopDef instance ) {
+            BitSet candidates = new BitSet( variants.size() );
+            candidates.set( 0, variants.size() );
+            // Counted after desugaring, as in isInstance, so "Cv or Cv" and "1x(Cv)" are concrete.
+            CountVector counts = CountVector.of( instance.simple );
+            // Choices left in the army, such as "LH or Ps", may match without every code.
+            if ( null == counts ) return candidates;
+            int[] codeCounts = counts.counts();
+            for ( int code = 0; code < codeCounts.length; code++ ) {
+                if ( 0 != codeCounts[ code ] ) candidates.and( byCode[ code ] );
+            }
+            candidates.or( unindexed );
+            return candidates;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package info.danbecker.dba;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary snapshot of a loaded ArmyList, so a later start need not read the CSVs again.
+ * <p>
+ * The snapshot keeps the model as built, not the text it came from:
+ * <ul>
+ * <li>every ArmyRef once, in order, and everything else refers to them by index</li>
+ * <li>year ranges as packed ints, year times 2 plus the era</li>
+ * <li>terrain as ordinals, in the order of the list</li>
+ * <li>each distinct troop definition once, with its TroopNode tree, so nothing is parsed</li>
+ * <li>enemies and allies as lists of ArmyRef indexes</li>
+ * </ul>
+ * The file starts with a magic number and {@link #VERSION}, a CRC32C of the source CSVs, and a CRC32C of the rest of the file.
+ * {@link #read(Path, Path, Path)} reads the file and gives nothing back
+ * when the version, the source CSVs or the file itself have changed, so a stale snapshot is never used.
+ * <p>
+ * Files are read into heap buffers, not memory mapped. A live mapping locks the file on Windows,
+ * and {@link #write} must be able to replace a snapshot that was just read.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class ArmySnapshot {
+    static Logger LOGGER = Logger.getLogger(ArmySnapshot.class.getName());
+
+    /** "DBAS" */
+    public static final int MAGIC = 0x44424153;
+    /** Format version, changed with every change to the layout. */
+    public static final int VERSION = 1;
+    // magic, version, source checksum, body checksum
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final int NO_YEAR = -1;
+
+    // TroopNode tags
+    private static final byte EXPRS = 1;
+    private static final byte TYPE = 2;
+    private static final byte GROUP = 3;
+    private static final byte DISMOUNT = 4;
+    private static final byte AND = 5;
+    private static final byte EITHER_UNIT = 6;
+    private static final byte EITHER = 7;
+    private static final byte OR = 8;
+    private static final byte MULTIPLE = 9;
+
+    private ArmySnapshot() {
+    }
+
+    /**
+     * Returns the CRC32C of the source CSVs, each with its length.
+     * @param headerPath army header CSV
+     * @param variantPath army variant CSV
+     * @return checksum of both files
+     * @throws IOException when a file is not readable
+     */
+    public static long sourceChecksum(Path headerPath, Path variantPath) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer length = ByteBuffer.allocate(Long.BYTES);
+        for (Path path : List.of(headerPath, variantPath)) {
+            byte[] bytes = Files.readAllBytes(path);
+            crc.update(length.clear().putLong(bytes.length).flip());
+            crc.update(bytes);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the armies to a snapshot of the given source CSVs.
+     * The file is written aside and moved into place, so a reader never sees half of it.
+     * @param snapshotPath file to write
+     * @param armies armies by ArmyRef, as {@link ArmyList#Armies}
+     * @param headerPath army header CSV the armies were read from
+     * @param variantPath army variant CSV the armies were read from
+     * @throws IOException when a file is not readable or not writable
+     */
+    public static void write(Path snapshotPath, Map<ArmyRef, Army> armies, Path headerPath, Path variantPath) throws IOException {
+        if (null == snapshotPath) throw new IllegalArgumentException("snapshot path is null");
+        if (null == armies) throw new IllegalArgumentException("armies are null");
+        byte[] body = new Writer(armies).body();
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(sourceChecksum(headerPath, variantPath))
+                .putLong(crc.getValue())
+                .flip();
+
+        Path parent = snapshotPath.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, snapshotPath.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+                while (header.hasRemaining()) channel.write(header);
+                while (bodyBuffer.hasRemaining()) channel.write(bodyBuffer);
+            }
+            try {
+                Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        LOGGER.fine(() -> "Wrote snapshot \"" + snapshotPath + "\" of " + armies.size() + " armies, " + body.length + " bytes");
+    }
+
+    /**
+     * Reads the armies of a snapshot, when it is still good for the given source CSVs.
+     * @param snapshotPath snapshot file
+     * @param headerPath army header CSV
+     * @param variantPath army variant CSV
+     * @return armies by ArmyRef, or null when the snapshot is missing, of another version, stale or damaged
+     * @throws IOException when a source CSV is not readable
+     */
+    public static Map<ArmyRef, Army> read(Path snapshotPath, Path headerPath, Path variantPath) throws IOException {
+        if (null == snapshotPath) throw new IllegalArgumentException("snapshot path is null");
+        if (!Files.isReadable(snapshotPath)) return reject(snapshotPath, "not readable");
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) return reject(snapshotPath, "wrong size");
+            bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining()) {
+                if (-1 == channel.read(bytes)) break;
+            }
+        }
+        if (bytes.hasRemaining()) return reject(snapshotPath, "cut short");
+        bytes.flip();
+        if (MAGIC != bytes.getInt()) return reject(snapshotPath, "not a snapshot");
+        int version = bytes.getInt();
+        if (VERSION != version) return reject(snapshotPath, "version " + version + " is not " + VERSION);
+        if (sourceChecksum(headerPath, variantPath) != bytes.getLong()) return reject(snapshotPath, "source CSVs have changed");
+        long bodyChecksum = bytes.getLong();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.slice());
+        if (bodyChecksum != crc.getValue()) return reject(snapshotPath, "damaged");
+        try {
+            return new Reader(bytes).armies();
+        } catch (RuntimeException e) {
+            return reject(snapshotPath, e.toString());
+        }
+    }
+
+    private static Map<ArmyRef, Army> reject(Path snapshotPath, String reason) {
+        LOGGER.info(() -> "Snapshot \"" + snapshotPath + "\" not used, " + reason);
+        return null;
+    }
+
+    private static int packYear(YearType year) {
+        return year.year() * 2 + year.era().ordinal();
+    }
+
+    private static YearType unpackYear(int packed) {
+        return new YearType(packed / 2, YearType.Era.values()[packed % 2]);
+    }
+
+    /** Lays out the body: strings, refs, troop definitions, then armies with their variants. */
+    private static final class Writer {
+        private final List<Army> armies;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<ArmyRef, Integer> refs = new HashMap<>();
+        private final List<ArmyRef> refList;
+        // By text, not TroopDef equality, which takes "8x(4Bw)" and "8x4Bw" as equal.
+        private final Map<String, Integer> troopIds = new HashMap<>();
+        private final List<TroopDef> troops = new ArrayList<>();
+
+        Writer(Map<ArmyRef, Army> armyMap) {
+            this.armies = armyMap.values().stream().sorted().toList();
+            TreeSet<ArmyRef> allRefs = new TreeSet<>();
+            for (Army army : armies) {
+                allRefs.add(army.header.armyRef);
+                string(army.header.groupName);
+                army.header.names.forEach(this::string);
+                for (ArmyVariant variant : army.variants) {
+                    allRefs.add(variant.armyRef);
+                    allRefs.addAll(variant.enemies);
+                    allRefs.addAll(variant.allies);
+                    string(variant.variantName);
+                    troopIds.computeIfAbsent(variant.troopDef.armyStr, armyStr -> {
+                        string(armyStr);
+                        addCodes(variant.troopDef.tree);
+                        troops.add(variant.troopDef);
+                        return troops.size() - 1;
+                    });
+                }
+            }
+            this.refList = List.copyOf(allRefs);
+            for (int i = 0; i < refList.size(); i++) refs.put(refList.get(i), i);
+        }
+
+        private int string(String str) {
+            return strings.computeIfAbsent(str, s -> strings.size());
+        }
+
+        private void addCodes(TroopNode node) {
+            switch (node) {
+                case TroopNode.Type type -> string(type.code());
+                case TroopNode.EitherUnit eitherUnit -> string(eitherUnit.type().code());
+                default -> node.children().forEach(this::addCodes);
+            }
+        }
+
+        byte[] body() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(strings.size());
+                for (String str : strings.keySet()) {
+                    byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+                out.writeInt(refList.size());
+                for (ArmyRef ref : refList) {
+                    out.writeByte(ref.section());
+                    out.writeShort(ref.number());
+                    out.writeByte(ref.version());
+                }
+                out.writeInt(troops.size());
+                for (TroopDef troopDef : troops) {
+                    out.writeInt(strings.get(troopDef.armyStr));
+                    writeNode(out, troopDef.tree);
+                }
+                out.writeInt(armies.size());
+                for (Army army : armies) {
+                    ArmyHeader header = army.header;
+                    out.writeInt(refs.get(header.armyRef));
+                    out.writeInt(strings.get(header.groupName));
+                    out.writeInt(header.variantCount);
+                    out.writeInt(header.names.size());
+                    for (String name : header.names) out.writeInt(strings.get(name));
+                    out.writeInt(header.years.size());
+                    for (YearRange range : header.years) {
+                        out.writeInt(packYear(range.begin()));
+                        out.writeInt(packYear(range.end()));
+                    }
+                    out.writeInt(army.variants.size());
+                    for (ArmyVariant variant : army.variants) writeVariant(out, variant);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private void writeVariant(DataOutputStream out, ArmyVariant variant) throws IOException {
+            out.writeInt(refs.get(variant.armyRef));
+            out.writeInt(strings.get(variant.variantName));
+            out.writeInt((null == variant.years) ? NO_YEAR : packYear(variant.years.begin()));
+            out.writeInt((null == variant.years) ? NO_YEAR : packYear(variant.years.end()));
+            out.writeInt(troopIds.get(variant.troopDef.armyStr));
+            out.writeByte(variant.terrain.size());
+            for (TerrainType terrain : variant.terrain) out.writeByte(terrain.ordinal());
+            out.writeByte(variant.aggression);
+            writeRefs(out, variant.enemies);
+            writeRefs(out, variant.allies);
+        }
+
+        private void writeRefs(DataOutputStream out, List<ArmyRef> list) throws IOException {
+            out.writeInt(list.size());
+            for (ArmyRef ref : list) out.writeInt(refs.get(ref));
+        }
+
+        private void writeNode(DataOutputStream out, TroopNode node) throws IOException {
+            switch (node) {
+                case TroopNode.Exprs exprs -> {
+                    out.writeByte(EXPRS);
+                    out.writeInt(exprs.exprs().size());
+                    for (TroopNode expr : exprs.exprs()) writeNode(out, expr);
+                }
+                case TroopNode.Type type -> {
+                    out.writeByte(TYPE);
+                    out.writeInt(strings.get(type.code()));
+                }
+                case TroopNode.Group group -> {
+                    out.writeByte(GROUP);
+                    writeNode(out, group.expr());
+                }
+                case TroopNode.EitherUnit eitherUnit -> {
+                    out.writeByte(EITHER_UNIT);
+                    out.writeInt(eitherUnit.count());
+                    out.writeInt(strings.get(eitherUnit.type().code()));
+                }
+                case TroopNode.Multiple mult -> {
+                    out.writeByte(MULTIPLE);
+                    out.writeInt(mult.count());
+                    writeNode(out, mult.expr());
+                }
+                case TroopNode.Dismount dismount -> writePair(out, DISMOUNT, dismount.mounted(), dismount.dismounted());
+                case TroopNode.And and -> writePair(out, AND, and.left(), and.right());
+                case TroopNode.Either either -> writePair(out, EITHER, either.left(), either.right());
+                case TroopNode.Or or -> writePair(out, OR, or.left(), or.right());
+            }
+        }
+
+        private void writePair(DataOutputStream out, byte tag, TroopNode left, TroopNode right) throws IOException {
+            out.writeByte(tag);
+            writeNode(out, left);
+            writeNode(out, right);
+        }
+    }
+
+    /** Rebuilds the armies from a checked body, positioned after the header. */
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+        private final ArmyRef[] refs;
+        private final TroopDef[] troops;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[in.getInt()];
+                in.get(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+            refs = new ArmyRef[in.getInt()];
+            for (int i = 0; i < refs.length; i++) refs[i] = new ArmyRef(in.get(), in.getShort(), in.get());
+            troops = new TroopDef[in.getInt()];
+            for (int i = 0; i < troops.length; i++) {
+                String armyStr = strings[in.getInt()];
+                troops[i] = new TroopDef(armyStr, (TroopNode.Exprs) readNode());
+            }
+        }
+
+        Map<ArmyRef, Army> armies() {
+            int armyCount = in.getInt();
+            Map<ArmyRef, Army> armies = new HashMap<>(2 * armyCount);
+            for (int armyi = 0; armyi < armyCount; armyi++) {
+                ArmyRef armyRef = refs[in.getInt()];
+                String groupName = strings[in.getInt()];
+                int variantCount = in.getInt();
+                List<String> names = new ArrayList<>();
+                for (int n = in.getInt(); 0 < n; n--) names.add(strings[in.getInt()]);
+                List<YearRange> years = new ArrayList<>();
+                for (int n = in.getInt(); 0 < n; n--) years.add(new YearRange(unpackYear(in.getInt()), unpackYear(in.getInt())));
+                ArmyHeader header = new ArmyHeader(armyRef, groupName, variantCount, names, years);
+                List<ArmyVariant> variants = new ArrayList<>();
+                for (int n = in.getInt(); 0 < n; n--) variants.add(readVariant());
+                armies.put(armyRef, new Army(header, variants));
+            }
+            return armies;
+        }
+
+        private ArmyVariant readVariant() {
+            ArmyRef armyRef = refs[in.getInt()];
+            String variantName = strings[in.getInt()];
+            int begin = in.getInt();
+            int end = in.getInt();
+            YearRange years = (NO_YEAR == begin) ? null : new YearRange(unpackYear(begin), unpackYear(end));
+            TroopDef troopDef = troops[in.getInt()];
+            TerrainType[] terrain = new TerrainType[in.get()];
+            for (int i = 0; i < terrain.length; i++) terrain[i] = TerrainType.values()[in.get()];
+            int aggression = in.get();
+            return new ArmyVariant(armyRef, variantName, years, troopDef, List.of(terrain), aggression, readRefs(), readRefs());
+        }
+
+        private List<ArmyRef> readRefs() {
+            ArmyRef[] list = new ArmyRef[in.getInt()];
+            for (int i = 0; i < list.length; i++) list[i] = refs[in.getInt()];
+            return List.of(list);
+        }
+
+        private TroopNode readNode() {
+            byte tag = in.get();
+            return switch (tag) {
+                case EXPRS -> {
+                    TroopNode[] exprs = new TroopNode[in.getInt()];
+                    for (int i = 0; i < exprs.length; i++) exprs[i] = readNode();
+                    yield new TroopNode.Exprs(List.of(exprs));
+                }
+                case TYPE -> TroopNode.Type.of(strings[in.getInt()]);
+                case GROUP -> new TroopNode.Group(readNode());
+                case EITHER_UNIT -> new TroopNode.EitherUnit(in.getInt(), TroopNode.Type.of(strings[in.getInt()]));
+                case MULTIPLE -> new TroopNode.Multiple(in.getInt(), readNode());
+                case DISMOUNT -> new TroopNode.Dismount(readNode(), readNode());
+                case AND -> new TroopNode.And(readNode(), readNode());
+                case EITHER -> new TroopNode.Either(readNode(), readNode());
+                case OR -> new TroopNode.Or(readNode(), readNode());
+                default -> throw new IllegalStateException("unknown node tag " + tag + " at byte " + (in.position() - 1));
+            };
+        }
+    }
+}
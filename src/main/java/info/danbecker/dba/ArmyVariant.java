@@ -39,12 +39,15 @@ public class ArmyVariant implements Comparable<ArmyVariant> {
     final int aggression;
     final List<ArmyRef> enemies;
     final List<ArmyRef> allies;
+    // Element statistics, worked out on first use. See TroopStats.
+    private volatile TroopStats stats;
 
     /**
-     * Construct header from ArmyHeaderBean information.
+     * Construct variant from the fields of a variant row.
      * Synthesize and fill in other fields.
      *
      * @param armyRef army reference
+     * @param terrain "/" delimited terrain names, see {@link TerrainType#listFromString(String)}
      */
     public ArmyVariant(ArmyRef armyRef, String variantName, String troopDef,
         String terrain, int aggression, String enemies, String allies) {
@@ -58,7 +61,7 @@ public class ArmyVariant implements Comparable<ArmyVariant> {
             this.years = null;
         if (null == troopDef) throw new IllegalArgumentException("army troop definition for " + armyRef );
         try {
-            this.troopDef = new TroopDef( troopDef );
+            this.troopDef = TroopDef.of( troopDef );
         } catch ( IllegalArgumentException e ) {
             // Add armyRef to message
             throw new IllegalArgumentException( e.getMessage() + ", armyRef=" + armyRef);
@@ -72,6 +75,21 @@ public class ArmyVariant implements Comparable<ArmyVariant> {
         this.allies = ArmyRef.parseList( allies );
     }
 
+    /**
+     * Construct variant from fields already parsed, as read from an {@link ArmySnapshot}.
+     */
+    ArmyVariant(ArmyRef armyRef, String variantName, YearRange years, TroopDef troopDef,
+        List<TerrainType> terrain, int aggression, List<ArmyRef> enemies, List<ArmyRef> allies) {
+        this.armyRef = armyRef;
+        this.variantName = variantName;
+        this.years = years;
+        this.troopDef = troopDef;
+        this.terrain = terrain;
+        this.aggression = aggression;
+        this.enemies = enemies;
+        this.allies = allies;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (null == obj) return false;
@@ -122,6 +140,21 @@ public class ArmyVariant implements Comparable<ArmyVariant> {
         return this.troopDef;
     }
 
+    /**
+     * Returns the element statistics of the troop definition, worked out the first time it is asked for.
+     * @return the statistics over all permutations of this army
+     * @see TroopStats
+     */
+    public TroopStats getStats() {
+        TroopStats troopStats = stats;
+        if (null == troopStats) {
+            // Two threads may both work it out, they get equal results.
+            troopStats = TroopStats.of(troopDef);
+            stats = troopStats;
+        }
+        return troopStats;
+    }
+
     /**
      * Returns the terrain
      * @return the terrain definition of this army
@@ -0,0 +1,141 @@
+package info.danbecker.dba;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.logging.Logger;
+
+/**
+ * A Composition is what an army is made of, with no regard to order or pairing.
+ * For example "Cv+Gen,5xCv,2xLH" and "2xLH,5xCv,Gen,Cv" are both 6 Cv, 2 LH and 1 Gen.
+ * <p>
+ * Plain elements are counted in a {@link CountVector}. Elements that dismount, such as Kn//Sp,
+ * are kept whole, as a sorted list of their Strings, since Kn//Sp is not a Kn and not a Sp.
+ * Equal compositions have equal parts, so the record equals serves for deduplication.
+ * <p>
+ * The String form lists the counts in code order and then the dismounting elements,
+ * for example "6xCv,2xLH,1xGen,2xKn//Sp", which parses back as an army.
+ *
+ * @param counts counts of the plain elements
+ * @param dismounts dismounting elements in sorted order, one entry per element
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public record Composition(CountVector counts, List<String> dismounts) {
+    static Logger LOGGER = Logger.getLogger(Composition.class.getName());
+
+    public Composition {
+        if (null == counts) throw new IllegalArgumentException("counts are null");
+        if (null == dismounts) throw new IllegalArgumentException("dismounts are null");
+        dismounts = List.copyOf(dismounts);
+    }
+
+    /**
+     * Returns the composition of one plain element.
+     * @param code element code such as Cv
+     * @return composition of one element
+     */
+    public static Composition of(String code) {
+        int index = CountVector.indexOf(code);
+        if (-1 == index) throw new IllegalArgumentException("unknown element code \"" + code + "\"");
+        int[] counts = new int[CountVector.getCodes().size()];
+        counts[index] = 1;
+        return new Composition(new CountVector(counts), List.of());
+    }
+
+    /**
+     * Returns the composition of one dismounting element.
+     * @param dismountStr the element, such as Kn//Sp
+     * @return composition of one element
+     */
+    public static Composition ofDismount(String dismountStr) {
+        return new Composition(new CountVector(new int[CountVector.getCodes().size()]), List.of(dismountStr));
+    }
+
+    /**
+     * Returns the composition of a concrete army, one with no choices left to make.
+     * @param tree army tree
+     * @return the composition, or null if the tree has an "or" or "/"
+     */
+    public static Composition of(TroopNode tree) {
+        return switch (tree) {
+            case TroopNode.Type type -> of(type.code());
+            case TroopNode.Group group -> of(group.expr());
+            case TroopNode.Multiple mult -> {
+                Composition part = of(mult.expr());
+                yield (null == part) ? null : part.times(mult.count());
+            }
+            case TroopNode.Dismount dismount -> (null == of(dismount.mounted()) || null == of(dismount.dismounted())) ?
+                    null : ofDismount(TroopNode.minimalText(dismount));
+            case TroopNode.And and -> {
+                Composition left = of(and.left());
+                Composition right = of(and.right());
+                yield (null == left || null == right) ? null : left.plus(right);
+            }
+            case TroopNode.Exprs exprs -> {
+                Composition total = null;
+                for (TroopNode expr : exprs.exprs()) {
+                    Composition part = of(expr);
+                    if (null == part) yield null;
+                    total = (null == total) ? part : total.plus(part);
+                }
+                yield total;
+            }
+            default -> null;
+        };
+    }
+
+    /**
+     * Returns the sum of this and that composition.
+     * @param that composition to add
+     * @return the sum
+     */
+    public Composition plus(Composition that) {
+        List<String> merged = dismounts;
+        if (!that.dismounts.isEmpty()) {
+            merged = new ArrayList<>(dismounts);
+            merged.addAll(that.dismounts);
+            Collections.sort(merged);
+        }
+        return new Composition(counts.plus(that.counts), merged);
+    }
+
+    /**
+     * Returns this composition repeated.
+     * @param multiple number of times
+     * @return the product
+     */
+    public Composition times(int multiple) {
+        List<String> repeated = dismounts;
+        if (!dismounts.isEmpty()) {
+            repeated = new ArrayList<>();
+            for (String dismount : dismounts) repeated.addAll(Collections.nCopies(multiple, dismount));
+        }
+        return new Composition(counts.times(multiple), repeated);
+    }
+
+    /**
+     * Returns the total number of elements.
+     * @return count of plain and dismounting elements
+     */
+    public int total() {
+        return counts.total() + dismounts.size();
+    }
+
+    /** Returns the counts in code order and then the dismounting elements, for example "6xCv,1xGen,2xKn//Sp". */
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(TroopNode.LIST_DELIM);
+        String countStr = counts.toString();
+        if (!countStr.isEmpty()) joiner.add(countStr);
+        for (int i = 0; i < dismounts.size(); ) {
+            int j = i;
+            while (j < dismounts.size() && dismounts.get(j).equals(dismounts.get(i))) j++;
+            joiner.add((j - i) + TroopNode.MULTIPLE_DELIM + dismounts.get(i));
+            i = j;
+        }
+        return joiner.toString();
+    }
+}
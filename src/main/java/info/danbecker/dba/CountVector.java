@@ -0,0 +1,371 @@
+package info.danbecker.dba;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A CountVector is the multiset of elements in an army, one count per element code.
+ * For example "Cv+Gen,5xCv,2xLH" has 6 Cv, 1 Gen and 2 LH.
+ * <p>
+ * Whether an army is a legal instance of a variant is, in practice, a multiset question.
+ * So each TroopDef may be compiled once into the set of its legal CountVectors,
+ * and checking an instance is then one count and one lookup rather than a tree walk.
+ * <p>
+ * Codes are indexed in the order of {@link ElementType#getAllCodes()},
+ * followed by any grammar codes not listed there, such as "Mtd-3Bw".
+ * There are fewer than 64 codes, so the same index gives each code one bit of a long unit mask,
+ * see {@link #mask(TroopNode)}. Subset and intersection checks of unit masks are one bitwise op.
+ * <p>
+ * The counting rules follow the tree matching in {@link TroopMatcher}:
+ * <ul>
+ * <li>a list or "+" adds the counts of its parts</li>
+ * <li>"or" and "/" give the counts of either part, and 3/4Bw gives either 3Bw or 4Bw</li>
+ * <li>2x(LH or Ps) gives 2 LH or 2 Ps, a multiple scales the counts of one choice</li>
+ * <li>a dismount such as Cv//4Wb never matches a concrete element, so it gives no counts</li>
+ * </ul>
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public record CountVector(int[] counts) {
+    // The counts array is shared, not copied. Callers must not change it.
+    static Logger LOGGER = Logger.getLogger(CountVector.class.getName());
+
+    /** Element codes by index. */
+    static final List<String> CODES;
+    private static final Map<String, Integer> INDEXES = new HashMap<>();
+    static {
+        List<String> codes = new ArrayList<>(ElementType.getAllCodes());
+        for (String code : TroopDefDescentParser.getCodes()) {
+            if (!codes.contains(code)) codes.add(code);
+        }
+        CODES = List.copyOf(codes);
+        if (CODES.size() > Long.SIZE)
+            throw new IllegalStateException(CODES.size() + " element codes do not fit a long unit mask");
+        for (int i = 0; i < CODES.size(); i++) INDEXES.put(CODES.get(i), i);
+    }
+
+    /** Definitions with more legal vectors than this are not compiled, see {@link #isLegal(TroopNode, CountVector)}. */
+    public static final int MAX_VECTORS = 1 << 16;
+
+    public CountVector {
+        if (null == counts) throw new IllegalArgumentException("counts is null");
+        if (CODES.size() != counts.length)
+            throw new IllegalArgumentException("counts length " + counts.length + " is not code count " + CODES.size());
+    }
+
+    /**
+     * Returns the index of the given code in every CountVector.
+     * @param code element code such as Cv
+     * @return index or -1 for an unknown code
+     */
+    public static int indexOf(String code) {
+        Integer index = INDEXES.get(code);
+        return (null == index) ? -1 : index;
+    }
+
+    /**
+     * Returns the bit of the given code in a unit mask.
+     * @param code element code such as Cv
+     * @return the bit, or 0 for an unknown code
+     */
+    public static long bit(String code) {
+        int index = indexOf(code);
+        return (-1 == index) ? 0L : 1L << index;
+    }
+
+    /**
+     * Returns the unit mask of a tree, with the bit of every element code in it, choices and all.
+     * For example "Cv,2xLH or Ps" gives the bits of Cv, LH and Ps.
+     * @param tree army tree
+     * @return unit mask
+     */
+    public static long mask(TroopNode tree) {
+        if (tree instanceof TroopNode.Type type)
+            return bit(type.code());
+        long mask = 0L;
+        for (TroopNode child : tree.children()) mask |= mask(child);
+        return mask;
+    }
+
+    /**
+     * Returns the unit mask of every element code of the given element type.
+     * For example BOWS gives the bits of 4Bw, 3Bw, 8Bw, 4Cb and so on.
+     * @param elementType element type
+     * @return unit mask
+     */
+    public static long mask(ElementType elementType) {
+        long mask = 0L;
+        for (int i = 0; i < CODES.size(); i++) {
+            if (elementType == ElementType.fromCode(CODES.get(i))) mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the element codes by index.
+     * @return unmodifiable list of codes
+     */
+    public static List<String> getCodes() {
+        return CODES;
+    }
+
+    /**
+     * Returns the count of the given code.
+     * @param code element code such as Cv
+     * @return count, 0 for codes not in the army
+     */
+    public int count(String code) {
+        int index = indexOf(code);
+        return (-1 == index) ? 0 : counts[index];
+    }
+
+    /**
+     * Returns the total number of elements.
+     * @return sum of all counts
+     */
+    public int total() {
+        int total = 0;
+        for (int count : counts) total += count;
+        return total;
+    }
+
+    /**
+     * Counts the elements of a concrete army, one with no choices left to make.
+     * Concrete armies have only lists, "+", groups, multiples and element codes.
+     *
+     * @param tree army tree
+     * @return the counts, or null if the tree has an "or", "/" or "//"
+     */
+    public static CountVector of(TroopNode tree) {
+        int[] counts = new int[CODES.size()];
+        return addConcrete(tree, 1, counts) ? new CountVector(counts) : null;
+    }
+
+    private static boolean addConcrete(TroopNode node, int scale, int[] counts) {
+        switch (node) {
+            case TroopNode.Type type -> {
+                counts[INDEXES.get(type.code())] += scale;
+                return true;
+            }
+            case TroopNode.Multiple mult -> {
+                return addConcrete(mult.expr(), scale * mult.count(), counts);
+            }
+            case TroopNode.Exprs exprs -> {
+                for (TroopNode expr : exprs.exprs()) {
+                    if (!addConcrete(expr, scale, counts)) return false;
+                }
+                return true;
+            }
+            case TroopNode.Group group -> {
+                return addConcrete(group.expr(), scale, counts);
+            }
+            case TroopNode.And and -> {
+                return addConcrete(and.left(), scale, counts) && addConcrete(and.right(), scale, counts);
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Compiles the set of legal CountVectors of an army definition.
+     *
+     * @param tree army definition tree
+     * @return unmodifiable set of legal vectors, or null if there are more than {@link #MAX_VECTORS}
+     */
+    public static Set<CountVector> legal(TroopNode tree) {
+        try {
+            return Collections.unmodifiableSet(multisets(tree, VECTORS));
+        } catch (ArithmeticException e) {
+            LOGGER.fine(() -> "Too many count vectors for \"" + TroopNode.text(tree) + "\"");
+            return null;
+        }
+    }
+
+    /**
+     * Whether the given counts are legal for an army definition, without compiling every legal vector.
+     * Only the partial counts that stay within the given ones are kept, so an army of 12 elements
+     * has at most a few thousand of them, however many choices the definition has.
+     * This answers the same as {@link #legal(TroopNode)} for definitions with too many vectors to keep.
+     *
+     * @param tree army definition tree
+     * @param counts counts of a concrete army
+     * @return whether the counts are legal
+     * @throws ArithmeticException when even the partial counts within the given ones are more than {@link #MAX_VECTORS}
+     */
+    public static boolean isLegal(TroopNode tree, CountVector counts) {
+        return multisets(tree, within(counts)).contains(counts);
+    }
+
+    /**
+     * How the parts of an army add up, for {@link #multisets(TroopNode, Multiset)}.
+     * CountVectors and {@link Composition}s are both multisets of elements, and differ only in their leaves
+     * and in what they leave out.
+     *
+     * @param <T> the multiset type
+     */
+    interface Multiset<T> {
+        /** @return the empty multiset */
+        T zero();
+
+        /** @return the multiset of one element, or null to leave it out */
+        T of(String code);
+
+        /** @return the multisets of a dismounting element, one for each of its alternatives */
+        Collection<T> of(TroopNode.Dismount dismount);
+
+        /** @return the sum of two multisets, or null to leave it out */
+        T plus(T left, T right);
+
+        /** @return a multiset repeated, or null to leave it out */
+        T times(T part, int multiple);
+
+        /** @return whether sums are left out, so that a sum may have fewer multisets than its parts make */
+        default boolean prunes() {
+            return false;
+        }
+    }
+
+    /** Counts every element. A dismount such as Cv//4Wb is not a concrete element, so it gives no counts. */
+    private static final Multiset<CountVector> VECTORS = new Multiset<>() {
+        @Override public CountVector zero() { return new CountVector(new int[CODES.size()]); }
+        @Override public CountVector of(String code) { return unit(code); }
+        @Override public Collection<CountVector> of(TroopNode.Dismount dismount) { return List.of(); }
+        @Override public CountVector plus(CountVector left, CountVector right) { return left.plus(right); }
+        @Override public CountVector times(CountVector part, int multiple) { return part.times(multiple); }
+    };
+
+    /** Counts as {@link #VECTORS} does, leaving out every partial count that goes past the given one. */
+    private static Multiset<CountVector> within(CountVector bound) {
+        return new Multiset<>() {
+            @Override public CountVector zero() { return VECTORS.zero(); }
+            @Override public CountVector of(String code) { return within(unit(code), bound); }
+            @Override public Collection<CountVector> of(TroopNode.Dismount dismount) { return List.of(); }
+            @Override public CountVector plus(CountVector left, CountVector right) { return within(left.plus(right), bound); }
+            @Override public CountVector times(CountVector part, int multiple) { return within(part.times(multiple), bound); }
+            @Override public boolean prunes() { return true; }
+        };
+    }
+
+    private static CountVector within(CountVector vector, CountVector bound) {
+        for (int i = 0; i < vector.counts.length; i++) {
+            if (vector.counts[i] > bound.counts[i]) return null;
+        }
+        return vector;
+    }
+
+    private static CountVector unit(String code) {
+        int[] counts = new int[CODES.size()];
+        counts[INDEXES.get(code)] = 1;
+        return new CountVector(counts);
+    }
+
+    /**
+     * Returns every multiset a tree may give, without duplicates, in the order of the first permutation giving each.
+     * <ul>
+     * <li>a list or "+" adds every multiset of one part to every multiset of the other</li>
+     * <li>"or" and "/" give the multisets of either part, and 3/4Bw those of 3Bw/4Bw</li>
+     * <li>a multiple repeats each multiset of its part</li>
+     * </ul>
+     * Duplicates are dropped at every step, so the permutations are never made.
+     *
+     * @param tree army tree
+     * @param multiset the leaves and sums
+     * @param <T> the multiset type
+     * @return modifiable set of multisets
+     * @throws ArithmeticException when any node has more than {@link #MAX_VECTORS} multisets
+     */
+    static <T> Set<T> multisets(TroopNode tree, Multiset<T> multiset) {
+        Set<T> multisets = new LinkedHashSet<>();
+        switch (tree) {
+            case TroopNode.Type type -> add(multisets, multiset.of(type.code()));
+            case TroopNode.EitherUnit eitherUnit -> {
+                TroopNode promoted = eitherUnit.promoted();
+                multisets = multisets((promoted == eitherUnit) ? eitherUnit.type() : promoted, multiset);
+            }
+            case TroopNode.Group group -> multisets = multisets(group.expr(), multiset);
+            case TroopNode.Dismount dismount -> multisets.addAll(multiset.of(dismount));
+            case TroopNode.Either either -> multisets = union(multisets(either.left(), multiset), multisets(either.right(), multiset));
+            case TroopNode.Or or -> multisets = union(multisets(or.left(), multiset), multisets(or.right(), multiset));
+            case TroopNode.And and -> multisets = sum(multisets(and.left(), multiset), multisets(and.right(), multiset), multiset);
+            case TroopNode.Multiple mult -> {
+                for (T part : multisets(mult.expr(), multiset)) add(multisets, multiset.times(part, mult.count()));
+            }
+            case TroopNode.Exprs exprs -> {
+                multisets.add(multiset.zero());
+                for (TroopNode expr : exprs.exprs()) multisets = sum(multisets, multisets(expr, multiset), multiset);
+            }
+        }
+        return multisets;
+    }
+
+    private static <T> void add(Set<T> multisets, T part) {
+        if (null != part) multisets.add(part);
+    }
+
+    private static <T> Set<T> union(Set<T> lefts, Set<T> rights) {
+        lefts.addAll(rights);
+        if (lefts.size() > MAX_VECTORS)
+            throw new ArithmeticException("more than " + MAX_VECTORS + " count vectors");
+        return lefts;
+    }
+
+    private static <T> Set<T> sum(Set<T> lefts, Set<T> rights, Multiset<T> multiset) {
+        // Without pruning, give up before making more sums than could be kept.
+        if (!multiset.prunes() && (long) lefts.size() * rights.size() > MAX_VECTORS)
+            throw new ArithmeticException("more than " + MAX_VECTORS + " count vectors");
+        Set<T> sums = new LinkedHashSet<>();
+        for (T left : lefts) {
+            for (T right : rights) {
+                add(sums, multiset.plus(left, right));
+                if (sums.size() > MAX_VECTORS)
+                    throw new ArithmeticException("more than " + MAX_VECTORS + " count vectors");
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Returns the sum of this and that vector.
+     * @param that vector to add
+     * @return the sum
+     */
+    public CountVector plus(CountVector that) {
+        int[] sums = new int[counts.length];
+        for (int i = 0; i < sums.length; i++) sums[i] = counts[i] + that.counts[i];
+        return new CountVector(sums);
+    }
+
+    /**
+     * Returns this vector repeated.
+     * @param multiple number of times
+     * @return the product
+     */
+    public CountVector times(int multiple) {
+        int[] products = new int[counts.length];
+        for (int i = 0; i < products.length; i++) products[i] = counts[i] * multiple;
+        return new CountVector(products);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CountVector that && Arrays.equals(counts, that.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(counts);
+    }
+
+    /** Returns the non-zero counts in code order, for example "6xCv,2xLH,1xGen". */
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int i = 0; i < counts.length; i++) {
+            if (0 != counts[i]) joiner.add(counts[i] + "x" + CODES.get(i));
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package info.danbecker.dba;
+
+/**
+ * A MatchTrace is told the steps of tree matching in {@link TroopMatcher},
+ * for example which groups were elevated, which node kinds were compared, and what was decided.
+ * <p>
+ * The default, {@link #NONE}, does nothing. Steps are passed as nodes, not as Strings,
+ * so matching with no trace builds no text and takes no locks.
+ * To see the steps of one match, pass a {@link TraceRecorder} to the matcher.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+@FunctionalInterface
+public interface MatchTrace {
+    /** The steps of matching. */
+    enum Step {
+        /** A group (expr) was replaced by its expr. Other is the expr. */
+        ELEVATE_GROUP,
+        /** A 1x multiple was replaced by its expr. Other is the expr. */
+        PROMOTE_1X,
+        /** An exprEitherUnit such as 3/4Bw was replaced by 3Bw/4Bw. Other is the either. */
+        PROMOTE_EITHER_UNIT,
+        /** Node is compared to other. */
+        MATCH,
+        /** Node and other are of kinds that cannot match. */
+        MISMATCH_KIND,
+        /** Node and other have different list sizes or multiple counts. */
+        MISMATCH_COUNT,
+        /** Node is of a kind the matcher does not know. */
+        UNMATCHED,
+        /** Node matches other. */
+        MATCHED,
+        /** Node does not match other. */
+        NOT_MATCHED
+    }
+
+    /** A trace that does nothing. */
+    MatchTrace NONE = (step, node, other, depth) -> { };
+
+    /**
+     * Called for each step of matching.
+     * @param step what happened
+     * @param node the definition node
+     * @param other the instance node, or the replacement node for promotions
+     * @param depth nesting of matchTree calls, 0 for the first call
+     */
+    void step(Step step, TroopNode node, TroopNode other, int depth);
+}
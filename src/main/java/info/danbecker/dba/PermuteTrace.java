@@ -0,0 +1,25 @@
+package info.danbecker.dba;
+
+/**
+ * A PermuteTrace is told how many permutations each node gives
+ * while {@link TroopPermutations} counts a tree, see {@link TroopDef#permute(PermuteTrace)}.
+ * <p>
+ * The default, {@link #NONE}, does nothing, so permuting with no trace builds no text.
+ * To see the steps of one permute, pass a {@link TraceRecorder}.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+@FunctionalInterface
+public interface PermuteTrace {
+    /** A trace that does nothing. */
+    PermuteTrace NONE = (node, count, depth) -> { };
+
+    /**
+     * Called after each node is counted, children before parents.
+     * @param node the node counted
+     * @param count the number of permutations of the node
+     * @param depth nesting below the list slot, 0 for the slot itself
+     */
+    void permuted(TroopNode node, long count, int depth);
+}
@@ -1,6 +1,5 @@
 package info.danbecker.dba;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Stream;
 
@@ -35,11 +34,10 @@ public enum TerrainType {
      * Support list of TerrainType from "/" delimited String
      * such as "Arable/Littoral/Forest"
      * or throws IllegalArgumentException
-     * @param terrainTypes "/" delimited Strings
+     * @param terrainTypesStr "/" delimited Strings
      * @return list of TerrainType or throw an illegal argument exception
      */
     public static List<TerrainType> listFromString(String terrainTypesStr ) {
-        List<TerrainType> terrainTypes = new ArrayList<>();
         return Stream.of( terrainTypesStr.split("/"))
                 .map ( TerrainType::fromString )
                 .toList();
@@ -0,0 +1,91 @@
+package info.danbecker.dba;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A TraceRecorder keeps the match or permute steps of one call in a list, in the order they happened.
+ * For example
+ * <code>
+ *    TraceRecorder recorder = new TraceRecorder();
+ *    new TroopMatcher(recorder).matchTree(troopDef.simple, instance.simple);
+ *    recorder.getEvents().forEach(System.out::println);
+ * </code>
+ * Events hold nodes rather than text. Text is only made by {@link Event#toString()}.
+ * <p>
+ * A recorder is for one call on one thread.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TraceRecorder implements MatchTrace, PermuteTrace {
+    /** Whether an event is a step of matching or the count of a permuted node. */
+    public enum Kind {
+        /** A {@link MatchTrace.Step} of matching. */
+        MATCH,
+        /** A node was permuted, the count is its number of permutations. */
+        PERMUTED
+    }
+
+    /**
+     * One step of a match or permute.
+     * @param kind whether the event is a match step or a permute count
+     * @param step the step of a match event, or null for a permute event
+     * @param node the node of the step
+     * @param other the other node of a match step, or null
+     * @param depth nesting of the step
+     * @param count permutation count of a permute event, or 0
+     */
+    public record Event(Kind kind, MatchTrace.Step step, TroopNode node, TroopNode other, int depth, long count) {
+        public Event {
+            if (null == kind) throw new IllegalArgumentException("kind is null");
+            if ((Kind.MATCH == kind) == (null == step))
+                throw new IllegalArgumentException("step " + step + " does not fit kind " + kind);
+        }
+
+        /** Returns the kind of the node such as exprOr. */
+        public String nodeKind() {
+            return node.kind();
+        }
+
+        /** Indented by depth, for example "  MATCH exprOr Cv or LH to LH" or "  PERMUTED exprType LH gives 1". */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ".repeat(depth)).append(Kind.MATCH == kind ? step : kind).append(' ').append(node.kind()).append(' ');
+            TroopNode.appendText(sb, node);
+            if (null != other) {
+                sb.append(" to ");
+                TroopNode.appendText(sb, other);
+            }
+            if (Kind.PERMUTED == kind) sb.append(" gives ").append(count);
+            return sb.toString();
+        }
+    }
+
+    private final List<Event> events = new ArrayList<>();
+
+    @Override
+    public void step(Step step, TroopNode node, TroopNode other, int depth) {
+        events.add(new Event(Kind.MATCH, step, node, other, depth, 0));
+    }
+
+    @Override
+    public void permuted(TroopNode node, long count, int depth) {
+        events.add(new Event(Kind.PERMUTED, null, node, null, depth, count));
+    }
+
+    /**
+     * Returns the events recorded so far.
+     * @return unmodifiable view of the events in order
+     */
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    /** Forget all events, to record another call. */
+    public void clear() {
+        events.clear();
+    }
+}
@@ -1,15 +1,12 @@
 package info.danbecker.dba;
 
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.atn.ATN;
-import org.antlr.v4.runtime.misc.Utils;
-import org.antlr.v4.runtime.tree.*;
-
+import java.math.BigInteger;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -24,6 +21,10 @@ import java.util.stream.Stream;
  * <p>
  * The Army class interacts with the DBAArmy grammar, parser, and scanner
  * generated by the ANTLR4 tool to read lists and report on legal combinations and instantiations.
+ * The parse tree is lowered to a compact TroopNode tree right after parsing,
+ * and all the matching and permuting below works on TroopNodes.
+ * The tree is desugared once more into a simpler tree, see {@link TroopNode#simplify(TroopNode)},
+ * so matching and permuting never build Strings to reparse.
  * <p>
  * {@code @TODO} Very verbose @getUnitList, @matches, @permute. Make visitor pattern. However they return exprs, bools, Strings.
  * <p>
@@ -41,42 +42,189 @@ public class TroopDef implements Comparable<TroopDef> {
     static Logger LOGGER = Logger.getLogger(TroopDef.class.getName());
 
     final String armyStr;
-    ParseTree tree = null;
-    DBAArmyParser parser = null;
-
-    static List<String> ruleNames;
-    static {
-        LOGGER.setLevel(Level.FINEST);
-        LOGGER.fine( "Army parser initialization");
-        CharStream charStream = CharStreams.fromString("" );
-        DBAArmyLexer lexer = new DBAArmyLexer(charStream);
-        CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-        DBAArmyParser parser = new DBAArmyParser(tokenStream);
-        // String[] tokenNames = parser.getTokenNames();
-        // Arrays.asList(tokenNames).forEach( System.out::println  );
-        // '5Hd' 'Hd' 'Art' 'WWg', ..
-        ruleNames = Arrays.asList(parser.getRuleNames());
-    }
+    final TroopNode.Exprs tree;
+    // Desugared form for matching and permuting, built once. See TroopNode.simplify.
+    final TroopNode.Exprs simple;
+    // Canonical String and hash for equals, hashCode and compareTo, built once. See TroopNode.canonical.
+    // The canonical tree itself is not kept, its String tells it apart from every other.
+    final String canonicalStr;
+    final long hash64;
+    // Unit list in parse order and unit mask of the desugared tree, built once. See CountVector.mask.
+    final List<String> unitList;
+    final long unitMask;
+    // Legal element counts, compiled on first use. See CountVector.legal.
+    private volatile Set<CountVector> countVectors;
+    private volatile boolean countVectorsCompiled = false;
+
+    /** The parsers that can build a TroopDef tree. Both build the same trees and throw the same errors. */
+    public enum ParserEngine {
+        /** The ANTLR4 generated lexer and parser, see {@link TroopDefParser} */
+        ANTLR,
+        /** The hand-written precedence climbing parser, see {@link TroopDefDescentParser} */
+        DESCENT
+    }
+
+    static volatile ParserEngine parserEngine = ParserEngine.ANTLR;
+
+    /** Shared parse results for repeated troop Strings. See {@link #of(String)}. */
+    static final TroopDefCache CACHE = new TroopDefCache(TroopDefCache.DEFAULT_CAPACITY);
 
     // See DBAArmy.g4 for grammar
     public TroopDef(String armyStr) {
+        this(armyStr, null);
+    }
+
+    /**
+     * Builds a TroopDef from a tree that is already parsed, as read from an {@link ArmySnapshot}.
+     * @param armyStr troop definition String
+     * @param parsed the parsed tree of the String, or null to parse it
+     */
+    TroopDef(String armyStr, TroopNode.Exprs parsed) {
         if (null == armyStr) throw new IllegalArgumentException("input string is null");
         if (armyStr.isEmpty()) throw new IllegalArgumentException("input string is empty");
         if (armyStr.isBlank()) throw new IllegalArgumentException("input string is blank");
         this.armyStr = armyStr;
-        parse();
+        this.tree = (null == parsed) ? parse() : parsed;
+        this.simple = (TroopNode.Exprs) TroopNode.simplify(tree);
+        this.unitList = Collections.unmodifiableList(getUnitList(tree));
+        this.unitMask = CountVector.mask(simple);
+        TroopNode canonical = TroopNode.canonical(tree);
+        this.canonicalStr = TroopNode.minimalText(canonical);
+        this.hash64 = TroopNode.hash64(canonical);
+    }
+
+    /**
+     * Returns the shared TroopDef for the given String, parsing it only
+     * the first time it is seen. TroopDefs are not changed after construction,
+     * so one instance may be shared by every army variant or instance with the same String.
+     * <p>
+     * Prefer this to the constructor when the same Strings are parsed again and again,
+     * as in army list loading and instance validation.
+     *
+     * @param armyStr troop definition String, see DBAArmy.g4 for grammar
+     * @return a parsed TroopDef, possibly shared
+     * @throws IllegalArgumentException when the String is null, empty, blank, or does not parse
+     */
+    public static TroopDef of(String armyStr) {
+        return CACHE.get(armyStr);
+    }
+
+    /**
+     * Selects the parser used by all following TroopDef constructions.
+     * @param engine the parser to use
+     */
+    public static void setParserEngine(ParserEngine engine) {
+        if (null == engine) throw new IllegalArgumentException("parser engine is null");
+        parserEngine = engine;
+    }
+
+    /** @return the parser used for TroopDef construction */
+    public static ParserEngine getParserEngine() {
+        return parserEngine;
+    }
+
+    /**
+     * Returns the cache used by {@link #of(String)}, for statistics or clearing.
+     * @return the shared TroopDef cache
+     */
+    public static TroopDefCache getCache() {
+        return CACHE;
+    }
+
+    /**
+     * One troop String that did not parse in {@link #parseAll(List, List)}.
+     *
+     * @param armyRef army reference of the troop String, or null when not given
+     * @param index index of the troop String in the input list
+     * @param position character position of the problem in the troop String, or TroopDefParseException.NO_POSITION
+     * @param armyStr the troop String
+     * @param message the parse error message
+     */
+    public record ParseFailure(ArmyRef armyRef, int index, int position, String armyStr, String message) {
+        @Override
+        public String toString() {
+            return message + ", armyRef=" + armyRef + ", index=" + index + ", pos=" + position;
+        }
+    }
+
+    /**
+     * The results of {@link #parseAll(List, List)}.
+     *
+     * @param troopDefs parsed TroopDefs in input order, with null for each failure
+     * @param failures every failure in input order, empty when all parsed
+     */
+    public record ParseResults(List<TroopDef> troopDefs, List<ParseFailure> failures) {
+        /** @return whether every troop String parsed */
+        public boolean isOk() {
+            return failures.isEmpty();
+        }
+    }
+
+    /**
+     * Parses many troop Strings at once across all cores.
+     * @param armyStrs troop Strings to parse
+     * @return parsed TroopDefs and failures
+     * @see #parseAll(List, List)
+     */
+    public static ParseResults parseAll(Collection<String> armyStrs) {
+        return parseAll(null, new ArrayList<>(armyStrs));
+    }
+
+    /**
+     * Parses many troop Strings at once across all cores.
+     * <p>
+     * Work is split over the common fork-join pool. Each worker thread keeps its own
+     * lexer and parser, see {@link TroopDefParser}, and the TroopDefs are shared through {@link #of(String)}.
+     * A bad String does not stop the others. Every failure is returned with its army reference
+     * and position, so a whole data set can be checked in one pass.
+     *
+     * @param armyRefs army references for each String, or null
+     * @param armyStrs troop Strings to parse, no null list
+     * @return parsed TroopDefs and failures, both in input order
+     */
+    public static ParseResults parseAll(List<ArmyRef> armyRefs, List<String> armyStrs) {
+        if (null == armyStrs) throw new IllegalArgumentException("input strings are null");
+        if (null != armyRefs && armyRefs.size() != armyStrs.size())
+            throw new IllegalArgumentException("army reference count " + armyRefs.size() + " does not match string count " + armyStrs.size());
+        TroopDef[] troopDefs = new TroopDef[armyStrs.size()];
+        ParseFailure[] failures = new ParseFailure[armyStrs.size()];
+        IntStream.range(0, armyStrs.size()).parallel().forEach(i -> {
+            String armyStr = armyStrs.get(i);
+            try {
+                troopDefs[i] = TroopDef.of(armyStr);
+            } catch (IllegalArgumentException e) {
+                int position = (e instanceof TroopDefParseException parseException) ?
+                        parseException.getPosition() : TroopDefParseException.NO_POSITION;
+                ArmyRef armyRef = (null == armyRefs) ? null : armyRefs.get(i);
+                failures[i] = new ParseFailure(armyRef, i, position, armyStr, e.getMessage());
+            }
+        });
+        List<ParseFailure> failureList = Arrays.stream(failures).filter(Objects::nonNull).toList();
+        if (!failureList.isEmpty())
+            LOGGER.fine(() -> "parseAll " + armyStrs.size() + " strings, " + failureList.size() + " failures");
+        return new ParseResults(Collections.unmodifiableList(Arrays.asList(troopDefs)), failureList);
     }
 
     /**
      * Return a List of all the units in an army.
-     * @return List of all the units in an army
+     * The list is built once, when the army is parsed.
+     * @return unmodifiable List of all the units in an army
      */
     public List<String> getUnitList() {
-        return getUnitList( this.tree );
+        return this.unitList;
     }
 
     /**
-     * Return a List of all the unit Strings in a parse tree.
+     * Returns the unit mask of this army, one bit for each element code it may field.
+     * Either units count both codes, so 3/4Bw has the bits of 3Bw and 4Bw.
+     * @return unit mask, see {@link CountVector#mask(TroopNode)}
+     */
+    public long getUnitMask() {
+        return this.unitMask;
+    }
+
+    /**
+     * Return a List of all the unit Strings in a tree.
      * <p>
      * The list is not sorted or de-deduped.
      * <p>>
@@ -86,24 +234,26 @@ public class TroopDef implements Comparable<TroopDef> {
      * Note that some expression have multiple counts
      * Bd or 2xBd or 4xBd -> 1 or 2 or 4 and returns ["Bd"]
      * </p>
-     * @return List of all the unit Strings in a parse tree
+     * @return List of all the unit Strings in a tree
      */
-    public static List<String> getUnitList(ParseTree tree) {
+    public static List<String> getUnitList(TroopNode tree) {
         final List<String> units = new ArrayList<>();
         // Walk the tree, gather units
-        ParseTreeWalker walker = new ParseTreeWalker();
-        walker.walk(new DBAArmyBaseListener() {
-            // finds type leaves
-            @Override
-            public void exitType(DBAArmyParser.TypeContext ctx) {
-                units.add(ctx.getText());
-                // System.out.println("DBA type: " + ctx.getText());
-            }
-
-        }, tree);
+        addUnits( tree, units );
         return units;
     }
 
+    /** Adds type leaves in parse order. */
+    private static void addUnits(TroopNode node, List<String> units) {
+        if ( node instanceof TroopNode.Type type ) {
+            units.add( type.code() );
+            // System.out.println("DBA type: " + type.code());
+        } else {
+            for ( TroopNode child : node.children() )
+                addUnits( child, units );
+        }
+    }
+
     /**
      * Determines whether the given army is an
      * instance of this army.
@@ -123,7 +273,38 @@ public class TroopDef implements Comparable<TroopDef> {
      * @return whether the given army is an instance of this Army
      */
     public boolean isInstance(TroopDef troopDef) {
-        return matchTree( this.tree, troopDef.tree );
+        // A concrete army needs only its counts. Anything with choices left is matched as a tree.
+        CountVector counts = CountVector.of(troopDef.simple);
+        if (null != counts) {
+            // A concrete army with a code this army never fields cannot match.
+            // Choices left, such as "LH or Ps", may match by one branch without every code.
+            if (!containsAllUnits(troopDef)) return false;
+            Set<CountVector> legal = getCountVectors();
+            if (null != legal)
+                return legal.contains(counts);
+            // Too many to keep, so work out only the counts within those of the army.
+            try {
+                return CountVector.isLegal(this.simple, counts);
+            } catch (ArithmeticException e) {
+                // Only for very large armies spread over very many codes. Matched as a tree.
+                LOGGER.fine(() -> "Too many count vectors within \"" + counts + "\" for \"" + armyStr + "\"");
+            }
+        }
+        return matchTree( this.simple, troopDef.simple );
+    }
+
+    /**
+     * Returns the set of legal element counts of this army, compiled the first time it is asked for.
+     * For example "Cv+Gen,2xLH or Ps" gives the two vectors 1xCv,1xGen,2xLH and 1xCv,1xGen,2xPs.
+     * @return unmodifiable set of CountVectors, or null when there are too many to keep
+     */
+    public Set<CountVector> getCountVectors() {
+        if (!countVectorsCompiled) {
+            // Two threads may both compile, they get equal sets.
+            countVectors = CountVector.legal(simple);
+            countVectorsCompiled = true;
+        }
+        return countVectors;
     }
 
     /**
@@ -132,7 +313,7 @@ public class TroopDef implements Comparable<TroopDef> {
      * @return whether given String matches this
      */
     public boolean isInstance(String instStr) {
-        return isInstance(new TroopDef(instStr));
+        return isInstance(TroopDef.of(instStr));
     }
 
     /**
@@ -158,72 +339,70 @@ public class TroopDef implements Comparable<TroopDef> {
     /**
      * This is the one-time parsing of the given army String.
      * Only called during constructor.
+     * <p>
+     * The lexer and parser are reused per thread, see {@link TroopDefParser}.
+     * The ANTLR parse tree is lowered to a TroopNode tree and dropped.
+     * See {@link #setParserEngine(ParserEngine)} for the hand-written alternative.
+     * @return the TroopNode tree of the army String
      */
-    protected void parse() {
+    protected TroopNode.Exprs parse() {
         // this.armyStr = "Kn/(LCh or WWg)";
-        CharStream charStream = CharStreams.fromString(armyStr);
-        DBAArmyLexer lexer = new DBAArmyLexer(charStream);
-        CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-        this.parser = new DBAArmyParser(tokenStream);
-
-        // Listeners are invoked by ANTLR provided walkers
-        // Visitors are invoked by user-provided tree walkers.
-        // List<ParseTreeListener> listeners = parser.getParseListeners();
-        parser.addParseListener(new DBAArmyBaseListener() {
-            @Override
-            public void exitExprEither(DBAArmyParser.ExprEitherContext ctx) {
-                // exprEither cardinality check
-                String text = ctx.getText();
-                int count = subStringCount( ctx.EITHER_DELIM().getText(), text );
-                // System.out.println( "ctx text=" + ctx.getText() + ", delimCount=" + count );
-                if ( 2 <= count ) {
-                    throw new IllegalArgumentException("Parse error exprEither cardinality " + count + " exceeded at  \"" + text + "\"" );
-                }
-            }
-        });
-        parser.addParseListener(new DBAArmyBaseListener() {
-            @Override
-            public void exitExprDismount(DBAArmyParser.ExprDismountContext ctx) {
-                // exprDismount cardinality check
-                String text = ctx.getText();
-                int count = subStringCount( ctx.DISMOUNT_DELIM().getText(), text );
-                // System.out.println( "ctx text=" + ctx.getText() + ", delimCount=" + count );
-                if ( 2 <= count ) {
-                    throw new IllegalArgumentException("Parse error exprDismount cardinality " + count + " exceeded at  \"" + text + "\"" );
-                }
-            }
-        }
-        );
-        // List<? extends ANTLRErrorListener> errorListeners = parser.getErrorListeners(); // ConsoleErrorListener
-        // A listener designed to catch and rethrow parse errors, similar to constructor IllegalArgumentExceptions.
-        parser.removeErrorListeners(); // Typical output "line 1:3 missing ')' at '<EOF>'"
-        parser.addErrorListener(new BaseErrorListener() {
-            @Override
-            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int pos, String msg, RecognitionException e) {
-                // Typical output "Parse error:"(Ps" at pos 3:  missing ')' at '<EOF>'
-                throw new IllegalArgumentException("Parse error \"" + armyStr + "\", pos " + pos + ": " + msg, e);
-            }
-        });
-        this.tree = parser.exprs();
-        // System.out.println(tree.toStringTree(parser)); // print LISP-style tree
+        return switch (parserEngine) {
+            case ANTLR -> TroopDefParser.parseNode(armyStr);
+            case DESCENT -> TroopDefDescentParser.parse(armyStr);
+        };
     }
 
     @Override
     public boolean equals(Object obj) {
         if (null == obj) return false;
-        if (!(obj instanceof TroopDef)) return false;
-        return this.toString().equals(obj.toString());
+        if (!(obj instanceof TroopDef that)) return false;
+        if (this == that) return true;
+        // Semantic equality, so Cv+LH equals LH+Cv.
+        return this.hash64 == that.hash64 && this.canonicalStr.equals(that.canonicalStr);
     }
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        return Long.hashCode(hash64);
     }
 
     @Override
     public int compareTo(TroopDef that) {
         if (null == that) return -1;
-        return this.toString().compareTo(that.toString());
+        // Canonical Strings have the parentheses needed to parse back, so they differ when the trees differ.
+        return this.canonicalStr.compareTo(that.canonicalStr);
+    }
+
+    /**
+     * Returns the canonical String, equal for TroopDefs that mean the same thing,
+     * for example "Cv+LHorPs" for "(LH + Cv) or 1xPs".
+     * Groups and 1x are removed and the operands of +, or, and / are sorted.
+     *
+     * @return canonical String of this TroopDef
+     */
+    public String getCanonicalString() {
+        return this.canonicalStr;
+    }
+
+    /**
+     * Returns the String of the desugared tree that matching and permuting work on,
+     * for example "Cv,Ax+Bd+(3Bw/4Bw)" for "1x(Cv/Cv),(Ax+Bd)+3/4Bw".
+     * Unlike the canonical String, the order of the operands is kept.
+     *
+     * @return desugared String of this TroopDef
+     * @see TroopNode#simplify(TroopNode)
+     */
+    public String getSimpleString() {
+        return TroopNode.minimalText(this.simple);
+    }
+
+    /**
+     * Returns a 64-bit hash of the canonical form, for hash sets or maps of many TroopDefs.
+     * @return 64-bit hash of the canonical form
+     */
+    public long getHash64() {
+        return this.hash64;
     }
 
     /**
@@ -246,30 +425,14 @@ public class TroopDef implements Comparable<TroopDef> {
         return TroopDef.toStringTree(this.tree);
     }
 
-    // Essentially a streamlined version of
-    // https://github.com/antlr/antlr4/blob/67228355c5bfd1ed5ebb89e726992ec43dda7b53/runtime/Java/src/org/antlr/v4/runtime/tree/Trees.java#L70
     /**
      * Print out a whole tree in DBA format.
      * <p>Similar to Trees.toStringTree, but a more streamlined tree.
      * Tree.toStringTree returns a LISP type String: (expressions (expression (type (psiloi Ps))))
      * This toStringTree returns a more bare String: Ps
-     * <p>
-     * {@link #getNodeText} is used on the node payloads to get the text for the nodes.
      */
-    protected static String toStringTree(final Tree t) {
-        String s = Utils.escapeWhitespace(getNodeText(t, false), false);
-        if (t.getChildCount() == 0) return s;
-        StringBuilder buf = new StringBuilder();
-        // buf.append("(");
-        s = Utils.escapeWhitespace(getNodeText(t, false), false);
-        buf.append(s);
-        // buf.append(' ');
-        for (int i = 0; i < t.getChildCount(); i++) {
-            // if ( i>0 ) buf.append(' ');
-            buf.append(toStringTree(t.getChild(i)));
-        }
-        // buf.append(")");
-        return buf.toString();
+    protected static String toStringTree(final TroopNode t) {
+        return TroopNode.text(t);
     }
 
     /** Return the String of a tree node
@@ -277,59 +440,36 @@ public class TroopDef implements Comparable<TroopDef> {
      * @param fullRuleNames true returns rule names, false returns "" for rule names.
      * @return the String of a tree node
      */
-    protected static String getNodeText(Tree t, boolean fullRuleNames) {
-        if (t instanceof RuleContext) {
-            if (fullRuleNames) {
-                int ruleIndex = ((RuleContext) t).getRuleContext().getRuleIndex();
-                String ruleName = ruleNames.get(ruleIndex);
-                int altNumber = ((RuleContext) t).getAltNumber();
-                if (altNumber != ATN.INVALID_ALT_NUMBER) {
-                    // If the grammar has "bows = bow | crossbow | lightbow"
-                    // Rule will return bows:1 or bows:2 or bows:3 depending on the child.
-                    return ruleName + ":" + altNumber;
-                }
-                return ruleName;
-            }
-            return "";
-        // } else if (t instanceof ParserRuleContext) {  // always false?
-        //     return t.getClass().getName();
-        } else if (t instanceof TerminalNode) {
-            Token symbol = ((TerminalNode) t).getSymbol();
-            if (symbol != null) {
-                return symbol.getText(); // delimiters such as () /, also Ps, Cv
-            }
+    protected static String getNodeText(TroopNode t, boolean fullRuleNames) {
+        if (t instanceof TroopNode.Type type) {
+            return fullRuleNames ? t.kind() : type.code(); // also Ps, Cv
         }
-
-        // Army does not allow ErrorNodes, throws an IllegalArgumentException.
-        // I don't think DBAArmy ever gets here.
-        // The payload is either a Token or a RuleContext object.
-        Object payload = t.getPayload();
-        if (payload instanceof Token) {
-            return ((Token) payload).getText();
-        }
-        return t.getPayload().toString();
+        return fullRuleNames ? t.kind() : "";
     }
 
     /**
      * Check to see that all test army units exist in this army.
+     * This is one check of the unit masks.
      *
      * @param test Army provider of units
      * @return whether all test army units exist in this army.
      */
     public boolean containsAllUnits(TroopDef test) {
-        List<String> myUnits = this.getUnitList();
-        List<String> testUnits = test.getUnitList();
-        for (String testUnit : testUnits) {
-            if (!myUnits.contains(testUnit)) {
-                // System.out.println( "Test unit \"" + testUnit + "\" not in target " + myUnits );
-                return false;
-            }
-        }
-        return true;
+        return 0L == (test.unitMask & ~this.unitMask);
+    }
+
+    /**
+     * Check to see that some test army unit exists in this army.
+     *
+     * @param test Army provider of units
+     * @return whether any test army unit exists in this army.
+     */
+    public boolean containsAnyUnits(TroopDef test) {
+        return 0L != (test.unitMask & this.unitMask);
     }
 
     public boolean containsAllUnits(String testStr) {
-        TroopDef test = new TroopDef(testStr);
+        TroopDef test = TroopDef.of(testStr);
         return containsAllUnits(test);
     }
 
@@ -356,110 +496,98 @@ public class TroopDef implements Comparable<TroopDef> {
      * @param tree with children having expr
      * @return List of Tree of expr or empty List
      */
-    public static List<Tree> getAllExprs(Tree tree) {
+    public static List<TroopNode> getAllExprs(TroopNode tree) {
         // Categorize and permute. May recurse or continue to children.
         switch (tree) {
-            case DBAArmyParser.ExprsContext exprs -> {
-                List<DBAArmyParser.ExprContext> exprList = exprs.expr();
+            case TroopNode.Exprs exprs -> {
+                List<TroopNode> exprList = exprs.exprs();
                 // Go one deeper if this is a single expr
                 if ( 1 == exprList.size() )
                     return getAllExprs( exprList.getFirst() );
-                // List<ExprContext> -> ParserRuleContext -> ParseTree -> Tree
-                return exprList.stream()
-                        .map( t -> (Tree) t)
-                        .toList();
+                return exprList;
             }
-            case DBAArmyParser.ExprGroupContext exprGroup -> {
-                System.out.println("getAllExpr exprGroup");
+            case TroopNode.Group exprGroup -> {
                 return List.of(exprGroup.expr());
             }
-            case DBAArmyParser.ExprDismountContext dismount -> {
-                System.out.println("getAllExpr exprDismount");
+            case TroopNode.Dismount dismount -> {
                 // Pass back as a single indivisible element, or two parts
-                return List.of( dismount.expr(0), dismount.expr(1));
+                return List.of( dismount.mounted(), dismount.dismounted());
             }
-            case DBAArmyParser.ExprAndContext exprAnd -> {
-                List<Tree> children = new ArrayList<>();
-                Tree first = exprAnd.expr(0);
-                if ( first instanceof DBAArmyParser.ExprAndContext) {
-                    List<Tree> firsts = getAllExprs( first );
+            case TroopNode.And exprAnd -> {
+                List<TroopNode> children = new ArrayList<>();
+                TroopNode first = exprAnd.left();
+                if ( first instanceof TroopNode.And) {
+                    List<TroopNode> firsts = getAllExprs( first );
                     children.addAll( firsts );
                 }
                 else children.add( first );
-                Tree second = exprAnd.expr(1 );
-                if ( second instanceof DBAArmyParser.ExprAndContext) {
-                    List<Tree> seconds = getAllExprs( second );
+                TroopNode second = exprAnd.right();
+                if ( second instanceof TroopNode.And) {
+                    List<TroopNode> seconds = getAllExprs( second );
                     children.addAll( seconds );
                 }
                 else children.add( second );
                 return children;
             }
-            case DBAArmyParser.ExprEitherUnitContext exprEitherUnit -> {
-                System.out.println("getAllExpr exprEitherUnit");
-                int firstUnitNum = Integer.parseInt(exprEitherUnit.INTEGER().getText());
-                DBAArmyParser.TypeContext type = exprEitherUnit.type();
-                List<String> numUnit = getNumCharGroups( type.getText() );
-                TroopDef troopDef = new TroopDef( firstUnitNum + numUnit.getLast() );
-                return List.of( troopDef.tree, type);
+            case TroopNode.EitherUnit exprEitherUnit -> {
+                TroopNode.Type first = exprEitherUnit.first();
+                return (null == first) ? List.of( exprEitherUnit.type() ) : List.of( first, exprEitherUnit.type() );
             }
-            case DBAArmyParser.ExprEitherContext exprEither -> {
-                System.out.println("getAllExpr exprEither");
+            case TroopNode.Either exprEither -> {
                 // Pass back as a single indivisible element, or two parts
-                return List.of( exprEither.expr(0), exprEither.expr(1));
+                return List.of( exprEither.left(), exprEither.right());
             }
-            case DBAArmyParser.ExprOrContext exprOr-> {
-                List<Tree> children = new ArrayList<>();
-                Tree first =exprOr.expr(0);
-                if ( first instanceof DBAArmyParser.ExprOrContext) {
-                    List<Tree> firsts = getAllExprs( first );
+            case TroopNode.Or exprOr-> {
+                List<TroopNode> children = new ArrayList<>();
+                TroopNode first = exprOr.left();
+                if ( first instanceof TroopNode.Or) {
+                    List<TroopNode> firsts = getAllExprs( first );
                     children.addAll( firsts );
                 }
                 else children.add( first );
-                Tree second = exprOr.expr(1 );
-                if ( second instanceof DBAArmyParser.ExprOrContext) {
-                    List<Tree> seconds = getAllExprs( second );
+                TroopNode second = exprOr.right();
+                if ( second instanceof TroopNode.Or) {
+                    List<TroopNode> seconds = getAllExprs( second );
                     children.addAll( seconds );
                 }
                 else children.add( second );
                 return children;
             }
             // might want to match 3Wb or 4Wb and 3Wb/4Wb
-            case DBAArmyParser.ExprMultipleContext mult -> {
-                System.out.println("getAllExpr exprMultiple");
+            case TroopNode.Multiple mult -> {
                 return List.of( mult.expr() );
             }
-            case DBAArmyParser.ExprTypeContext exprType -> {
+            case TroopNode.Type exprType -> {
                 return List.of( exprType );
             }
-            // case TerminalNode terminalNode -> {
-            //     return List.of( terminalNode );
-            // }
-            // case RuleContext rule -> {
-            // }
-            // case ErrorNode eNode -> {
             // Army does not get here since the constructor throws IllegalArgumentException
-            // return t.toString();
-            // }
-            default -> System.out.println("getAllExpr unknown tree " + toStringTree(tree));
         }
-        return List.of();
     }
 
     /**
      * The high level starting point to determine if this
      * army matches the units of another army.
+     * Both armies are matched in their desugared form, see {@link #getSimpleString()}.
      */
     public boolean matches(TroopDef test) {
+        return matches(test, MatchTrace.NONE);
+    }
+
+    /**
+     * Determine if this army matches the units of another army,
+     * telling the given trace each step of the match.
+     * @param test army to match
+     * @param trace receives the match steps, such as a {@link TraceRecorder}
+     * @return whether the armies match
+     */
+    public boolean matches(TroopDef test, MatchTrace trace) {
         // Easily found by matching all the way down to units.
         // if ( !containsAllUnits( test )) return false;
-        System.out.println(tree.toStringTree(parser)); // print LISP-style tree
-        System.out.println(test.tree.toStringTree(parser)); // print LISP-style tree
-
-        return matchTree(this.tree, test.tree );
+        return new TroopMatcher(trace).matchTree(this.simple, test.simple );
     }
 
     public boolean matches(String testStr) {
-        TroopDef test = new TroopDef(testStr);
+        TroopDef test = TroopDef.of(testStr);
         return matches(test);
     }
 
@@ -469,26 +597,12 @@ public class TroopDef implements Comparable<TroopDef> {
      * @param t provider Tree of expression
      * @return same tree or promoter either unitzs
      */
-    public static Tree promoteExprEitherUnit(Tree t ) {
-        if (t instanceof DBAArmyParser.ExprEitherUnitContext eitherUnit) {
-            int num = Integer.parseInt(eitherUnit.INTEGER().getText());
-            String secondTypeStr = eitherUnit.type().getText();
-            List<String> numChars = getNumCharGroups( secondTypeStr );
-            String firstTypeStr = switch (numChars.size()) {
-                case 2 -> num + numChars.get(1);
-                case 1 -> num + numChars.get(0);
-                default -> "";
-            };
-            if ( !firstTypeStr.isEmpty()) {
-                // Replace 3/4Wb node with 3Wb/4Wb node.
-                String armyStr = firstTypeStr + eitherUnit.EITHER_DELIM().getText() + secondTypeStr;
-                System.out.println("Promoting exprEitherUnit \""+ eitherUnit.getText() + "\" to exprEither \"" + armyStr + "\"");
-                TroopDef troopDef = new TroopDef( armyStr );
-                t = ((DBAArmyParser.ExprsContext) troopDef.tree).expr(0);
-                System.out.println("exprEither=" + troopDef.tree.toStringTree(troopDef.parser));
-            } else {
-                System.out.println("Could not figure promotion of exprEitherUnit \""+ eitherUnit.getText() + "\"" );
-            }
+    public static TroopNode promoteExprEitherUnit(TroopNode t ) {
+        if (t instanceof TroopNode.EitherUnit eitherUnit) {
+            // Replace 3/4Wb node with 3Wb/4Wb node, built directly rather than parsed.
+            t = eitherUnit.promoted();
+            if (t == eitherUnit)
+                LOGGER.fine(() -> "Could not figure promotion of exprEitherUnit \""+ eitherUnit + "\"" );
         }
         return t;
     }
@@ -499,24 +613,24 @@ public class TroopDef implements Comparable<TroopDef> {
      * @param t Tree to test
      * @return promoted tree or original
      */
-    public static Tree promoteExprMultiple1x(Tree t ) {
-        if (t instanceof DBAArmyParser.ExprMultipleContext mult) {
-            int multi = Integer.parseInt(mult.INTEGER().getText());
-            if (1 == multi) {
-                System.out.println("Promoting 1x exprMultiple \""+ mult.getText() + "\" to \"" + mult.expr().getText() + "\"");
+    public static TroopNode promoteExprMultiple1x(TroopNode t ) {
+        if (t instanceof TroopNode.Multiple mult) {
+            if (1 == mult.count()) {
                 return mult.expr();
             }
         }
         return t;
     }
 
+    private static final Pattern NUM_CHAR_GROUPS = Pattern.compile("[0-9]+|[A-Za-z]+");
+
     /** Splits a string such as 4Wb into [ "4", "Wb" ]
      * @param str input to split such as 4Wb
      * @return List of split String [ "4", "Wb" ]
      */
     public static List<String> getNumCharGroups(String str) {
         List<String> output = new ArrayList<>();
-        Matcher match = Pattern.compile("[0-9]+|[A-Za-z]+").matcher(str);
+        Matcher match = NUM_CHAR_GROUPS.matcher(str);
         while (match.find()) {
             output.add(match.group());
         }
@@ -525,287 +639,48 @@ public class TroopDef implements Comparable<TroopDef> {
 
     /**
      * Determine the two trees match each other.
-     * Given an army with options
-     * <code>Gen+Cv,5xCv,3xCv or LH,1xLH or Ps,2xCv or 2x7Hd or (1x7Hd + 1x4Wb)</code> // III/18
-     * the following pass:
-     * <code>Gen+Cv,5xCv,3xLH,Ps,1x4Wb+1x7Hd       Gen+Cv,5xCv,3xCv,LH,2xCv</code>
-     * the following do not pass:
-     * <code>Cv,4xCv,5xLH,Wb,3x7Hd                 Gen+Cv,5xKn,3xCv,Bw,2xCv</code>
-     * <p>
-     * The general process is:
-     * <ul>
-     * <li>promote or convert simple expressions such as groups or exprEitherUnit</li>
-     * <li>categorize and match expressions where possible</li>
-     * <li>visit child nodes (in any order) to continue matching</li>
-     * </ul>
+     * A convenience for one call of a new {@link TroopMatcher}.
+     * @param ft tree of the definition
+     * @param fthat tree of the instance
+     * @return whether the trees match
      */
-    public static boolean matchTree(final Tree ft, final Tree fthat) {
-        Tree t = ft;
-        Tree that = fthat;
-
-        // Instead of this iterative promoting, might
-        // want to handle it right at the type switch.
-        // Possible convert exprMultiple with 1x to expr
-        t = promoteExprMultiple1x( t );
-        that = promoteExprMultiple1x( that );
-        t = promoteExprEitherUnit( t );
-        that = promoteExprEitherUnit( that );
-        // Promote exprGroup to simpler expr
-        while(t instanceof DBAArmyParser.ExprGroupContext) {
-            System.out.println("Elevating this groupRule " + toStringTree( t ) + " to " + toStringTree( ((DBAArmyParser.ExprGroupContext) t).expr() ));
-            t = ((DBAArmyParser.ExprGroupContext) t).expr();
-        }
-        while(that instanceof DBAArmyParser.ExprGroupContext) {
-            System.out.println("Elevating that groupRule " + toStringTree( that ) + " to " + toStringTree( ((DBAArmyParser.ExprGroupContext) that).expr() ));
-            that = ((DBAArmyParser.ExprGroupContext) that).expr();
-        }
-        t = promoteExprMultiple1x( t );
-        that = promoteExprMultiple1x( that );
-
-        // Categorize and match. May recurse or continue to children.
-        switch (t) {
-            case DBAArmyParser.ExprsContext exprs -> {
-                // System.out.println("Matching " + getNodeText(exprs, true) + " to " + getNodeText(that, true));
-                if (!(that instanceof DBAArmyParser.ExprsContext thatExprs)) {
-                    System.out.println("Mismatched rules " + getNodeText(exprs, true) + " to " + getNodeText(that, true));
-                    return false;
-                }
-                if (exprs.getChildCount() != thatExprs.getChildCount()) {
-                    System.out.println("Mismatched exprs counts " + exprs.getChildCount() + " to " + thatExprs.getChildCount());
-                    return false;
-                }
-                int childCount = exprs.getChildCount();
-                String childCountStr = ", " + childCount + (1==childCount ? " child." : " children.");
-                System.out.println("Matching " + getNodeText(exprs, true) + " to " + getNodeText(that, true) + childCountStr );
-                // Let this fall to any-order child matching
-            }
-            case DBAArmyParser.ExprEitherContext either -> {
-                System.out.println("Matching exprEither " +  toStringTree( either )+ " to " + toStringTree( that ) );
-                if (that instanceof DBAArmyParser.ExprEitherContext thatExprEither) {
-                    // Allow either expressions to match in any order.
-                    return ((matchTree( either.expr(0), thatExprEither.expr(0)) &&
-                             matchTree( either.expr(1), thatExprEither.expr(1))) ||
-                            (matchTree( either.expr(0), thatExprEither.expr(1)) &&
-                             matchTree( either.expr(1), thatExprEither.expr(0))));
-                }
-                return matchTree( either.expr(0), that) || matchTree( either.expr(1), that);
-            }
-            case DBAArmyParser.ExprDismountContext dismount -> {
-                // Unlike either where Cv/Bd == Bd/Cv, dismount Cv//Bd != Bd//Cv, similarly Cv//Bd != Cv
-                System.out.println("Matching exprDismount " +  toStringTree( dismount )+ " to " + toStringTree( that ) );
-                if (that instanceof DBAArmyParser.ExprDismountContext thatExprDismount) {
-                    // Dismount expressions must match order.
-                    return matchTree( dismount.expr(0), thatExprDismount.expr(0)) &&
-                         matchTree( dismount.expr(1), thatExprDismount.expr(1));
-                }
-                return false;
-            }
-            case DBAArmyParser.ExprAndContext exprAnd -> {
-                System.out.println("Matching exprAnd " +  toStringTree( exprAnd )+ " to " + toStringTree( that ) );
-                DBAArmyParser.ExprContext thisA = exprAnd.expr(0);
-                DBAArmyParser.ExprContext thisB = exprAnd.expr(1);
-                if (that instanceof DBAArmyParser.ExprAndContext thatExprAnd) {
-                    // Matching exprAnd Ax+Bd to Bd+Ax
-                    // Also matching exprAnd Ax+Bd+Cv to Ax+Cv+Bd
-                    DBAArmyParser.ExprContext thatA = thatExprAnd.expr(0);
-                    DBAArmyParser.ExprContext thatB = thatExprAnd.expr(1);
-                    if ((matchTree( thisA, thatA ) && matchTree( thisB, thatB )) ||
-                           (matchTree( thisA, thatB ) && matchTree( thisB, thatA ))) {
-                        return true;
-                    }
-                    // Swap tail to see if that matches
-                    if (( thisA instanceof DBAArmyParser.ExprAndContext ) &&
-                        ( thatA instanceof DBAArmyParser.ExprAndContext )) {
-                        return matchTreesAnyOrder( getAllExprs( exprAnd ), getAllExprs(thatExprAnd), true );
-                    }
-                }
-                else if  (that instanceof DBAArmyParser.ExprOrContext thatExprOr) {
-                    // Matching thisA+thisB to thatC or thatA+thatC?
-                    // Also matching thisA+thisB to thatA+thatB or thatC?
-                    DBAArmyParser.ExprContext thatA = thatExprOr.expr(0);
-                    DBAArmyParser.ExprContext thatB = thatExprOr.expr(1);
-                    return matchTree( exprAnd, thatA ) || matchTree( exprAnd, thatB );
-                    // matchTreesAnyOrder(exprAnd, thatExprOr, false);
-                }
-                return false;
-            }
-            case DBAArmyParser.ExprOrContext exprOr -> {
-                System.out.println("Matching exprOr " + toStringTree(exprOr) + " to " + toStringTree(that));
-                DBAArmyParser.ExprContext thisA = exprOr.expr(0);
-                DBAArmyParser.ExprContext thisB = exprOr.expr(1);
-                if (that instanceof DBAArmyParser.ExprOrContext thatExprOr) {
-                    // Matching exprOr Ax or Bd to Bd or Ax
-                    // Also matching exprOr Ax or Bd or Cv to Ax or Cv or Bd
-                    DBAArmyParser.ExprContext thatA = thatExprOr.expr(0);
-                    DBAArmyParser.ExprContext thatB = thatExprOr.expr(1);
-                    return matchTree( thisA, thatA ) || matchTree( thisA, thatB ) ||
-                            matchTree( thisB, thatA ) || matchTree( thisB, thatB );
-                }
-                else if (that instanceof DBAArmyParser.ExprEitherContext thatExprOr) {
-                    // Matching exprOr Ax or Bd to Bd or Ax
-                    // Also matching exprOr Ax or Bd or Cv to Ax or Cv or Bd
-                    DBAArmyParser.ExprContext thatA = thatExprOr.expr(0);
-                    DBAArmyParser.ExprContext thatB = thatExprOr.expr(1);
-                    return matchTree( thisA, thatA ) || matchTree( thisA, thatB ) ||
-                            matchTree( thisB, thatA ) || matchTree( thisB, thatB );
-                }
-                return matchTree( thisA, that ) || matchTree( thisB, that );
-            }
-            case DBAArmyParser.ExprMultipleContext mult -> {
-                // 1x exprMultiples are promoted to expr above.
-                System.out.println("Matching exprMulti " + toStringTree( mult ) + " to " + toStringTree(that));
-                if (that instanceof DBAArmyParser.ExprMultipleContext thatMult) {
-                    int multi = Integer.parseInt(mult.INTEGER().getText());
-                    int thatMulti = Integer.parseInt(thatMult.INTEGER().getText());
-                    if (multi != thatMulti) {
-                        System.out.println("Mismatched multi counts " + multi + "x" + mult.expr().getText() + " != " + thatMulti + "x" + thatMult.expr().getText());
-                        return false;
-                    }
-                    return matchTree( mult.expr(), thatMult.expr() );
-                }
-                return false;
-            }
-            // case DBAArmyParser.ExprContext expr -> {
-                // Matched by other rules
-                // System.out.println("Matching expr " + getNodeText( expr, true) + " to " + getNodeText(that, true));
-                // Let this fall to child matching
-            //}
-            //case DBAArmyParser.ExprGroupContext groupRule -> {
-            //   Group expr payloads are elevated at the beginning of this method.
-            //   ExprGroupContext should not be reached.
-            //}
-            case DBAArmyParser.ExprTypeContext exprType -> {
-                // System.out.println("Matching exprType " +  toStringTree(exprType)+ " to " + toStringTree(that));
-                if (that instanceof DBAArmyParser.ExprTypeContext thatType) {
-                    // System.out.println("Matching exprType " + exprType.getText() + " to " + thatType.getText() );
-                    return exprType.getText().equals( thatType.getText() );
-                } else if ( that instanceof DBAArmyParser.ExprOrContext ) {
-                    return matchTree( that, exprType );
-                }
-                return false;
-            }
-            // case RuleContext rule -> {
-                // With exprType above, this is never hit.
-                // Shows non-explicit rule matches which need child matching only.
-                // System.out.println( "Matching rule " + getNodeText(rule, true) + " to " + getNodeText(that, true));
-                // Let this fall to child matching
-            // }
-            case TerminalNode terminalNode -> {
-                // This rule only hits exprs child token matching, ie ","
-                // Can use DBAArmyLexer.VOCABULARY.getLiteralNames() or .getSymbolicNames() for the list
-                // "'Hd'", "'Art'", "'WWg'", "','", "'x'", "'//'", "'/'", "'or'", "'+'", // example literal names
-                // "EITHER_DELIM", "OR_DELIM", "AND_DELIM", "GROUP_OPEN", "GROUP_CLOSE", "INTEGER", "WS" // example symbolic
-                // System.out.println("Matching terminal " + getNodeText(t, true) + " to " + getNodeText(that, true));
-                String text = terminalNode.getText();
-                if (!(that instanceof TerminalNode thatTerminalNode)) {
-                    // System.out.println("Mismatched terminal " + text + " to " + getNodeText(that, true));
-                    return false;
-                }
-                String thatText = thatTerminalNode.getText();
-                return text.equals(thatText);
-                // String matchStr = match ? " matches " : " does not match ";
-                // System.out.println("Terminal text " + text + matchStr + thatText);
-                // return match;
-            }
-            // Army does not get here since the constructor throws IllegalArgumentException
-            // else if ( t instanceof ErrorNode) {
-            //    return t.toString();
-            // }
-            default -> System.out.println("Unmatched tree " + toStringTree( t ));
-        }
-
-        // Visit and match children in any order.
-        return matchChildrenAnyOrder( t, that );
+    public static boolean matchTree(final TroopNode ft, final TroopNode fthat) {
+        return new TroopMatcher().matchTree(ft, fthat);
     }
 
-    /** Match the children of two trees.
-     * Allow matches to happen in any order to support commutativity.
-     * In other words, allow Bd,Sp,Bw to match Bw,Bd,Sp or Wb+Bw to match Bw+Wb.
+    /** Match the children of two trees in any order. See {@link TroopMatcher#matchTreesAnyOrder}.
      * @param trees List of Trees
      * @param thats List of Trees
      * @param completeMatch whether thats must be a complete match or just a subset
      * @return whether the trees match in any order
      */
-    public static boolean matchTreesAnyOrder(final List<Tree> trees, final List<Tree> thats, boolean completeMatch) {
-        if (completeMatch && (trees.size() != thats.size()))
-            return false;
-        // Build a list of indexes of unmatched children.
-        List<Integer> unmatchedThats = new ArrayList<>();
-        for (int j = 0; j < thats.size(); j++) unmatchedThats.add(j);
-
-        for (int treei = 0; treei < trees.size(); treei++) {
-            int matchi = matchTreeFirst(trees.get(treei), thats, unmatchedThats);
-            if (completeMatch) {
-                // Could not match this treei to any unmatchedChildis.
-                if (-1 == matchi)
-                   return false;
-            } else {
-                // !completeMatch
-                if (-1 != matchi)
-                    return true;
-            }
-            // Remove the matchi from the unmatchedChildis
-            unmatchedThats.remove((Integer) matchi); // remove integer, not index!
-        }
-        // All thats tested, still here with no short circuits
-        return completeMatch;
+    public static boolean matchTreesAnyOrder(final List<TroopNode> trees, final List<TroopNode> thats, boolean completeMatch) {
+        return new TroopMatcher().matchTreesAnyOrder(trees, thats, completeMatch);
     }
 
     /**
-     * Matches t with one of List<Tree> of that.
+     * Matches t with one of List<Tree> of that. See {@link TroopMatcher#matchTreeFirst}.
      * @return thats.get(treeis) integer of match with t, or -1 for no match.
      */
-    public static int matchTreeFirst(final Tree t, final List<Tree> thats, final List<Integer> treeis) {
-        for (int i : treeis) {
-            if (matchTree(t, thats.get(i))) {
-                return i;
-            }
-        }
-        return -1;
+    public static int matchTreeFirst(final TroopNode t, final List<TroopNode> thats, final List<Integer> treeis) {
+        return new TroopMatcher().matchTreeFirst(t, thats, treeis);
     }
 
-    /** Match the children of two trees.
-     * Allow matches to happen in any order to support commutativity.
-     * In other words, allow Bd,Sp,Bw to match Bw,Bd,Sp or Wb+Bw to match Bw+Wb.
+    /** Match the children of two trees in any order. See {@link TroopMatcher#matchChildrenAnyOrder}.
      * @param tree Tree of children
      * @param that Tree to match one of Three children
      * @return whether the child lists have a match or -1 for not.
      */
-    public static boolean matchChildrenAnyOrder(final Tree tree, final Tree that) {
-        // Build a list of indexes of unmatched children.
-        List<Integer> unmatchedChildis = new ArrayList<>();
-        for (int j = 0; j < that.getChildCount(); j++) unmatchedChildis.add(j);
-
-        for (int myChildi = 0; myChildi < tree.getChildCount(); myChildi++) {
-            int matchi = matchTreeFirstChild(tree.getChild(myChildi), that, unmatchedChildis);
-            if (-1 == matchi) {
-                // Could not match myChildi to any unmatchedChildis.
-                // System.out.format( "Child %d/%d of this tree %s did not match\n",
-                //         i, t.getChildCount(), getNodeText( t.getChild(i), true ));
-                return false;
-            } else {
-                // Matched myChildi to an unmatchedChildis.
-                // System.out.format( "Child %d/%d of this tree %s matched child %d\n",
-                //        myChildi, t.getChildCount(), getNodeText( t.getChild(myChildi), true ), matchi);
-                // Remove the matchi from the unmatchedChildis
-                unmatchedChildis.remove((Integer) matchi); // remove integer, not index!
-            }
-        }
-        // All tree childis matched something in that
-        // What about extras in unmatched childis?
-        return true;
+    public static boolean matchChildrenAnyOrder(final TroopNode tree, final TroopNode that) {
+        return new TroopMatcher().matchChildrenAnyOrder(tree, that);
     }
 
     /**
      * Matches one of the children of that. Returns child integer of match or -1 for no match.
+     * See {@link TroopMatcher#matchTreeFirstChild}.
     */
-    public static int matchTreeFirstChild(final Tree t, final Tree that, final List<Integer> childis) {
-        for (int i : childis) {
-            if (matchTree(t, that.getChild(i))) {
-                return i;
-            }
-        }
-        return -1;
+    public static int matchTreeFirstChild(final TroopNode t, final TroopNode that, final List<Integer> childis) {
+        return new TroopMatcher().matchTreeFirstChild(t, that, childis);
     }
 
     /**
@@ -813,23 +688,113 @@ public class TroopDef implements Comparable<TroopDef> {
      * (eithers, ors, etc.),
      * Provide a list of possible permutations.
      * @return List of Army Strings, suitable for parsing.
+     * @see #permuteStream()
      */
     public List<String> permute() {
-        LOGGER.fine(tree.toStringTree(parser)); // print LISP-style tree
-        // Permute all the slots, for example
-        // List.of("Gen"), List.of("Cv+LH"), List.of("4xAx","2xBd"), List.of("3xBw","3xCb","3xLb")
-        ParseTree exprs = this.tree;
-        int childCount = exprs.getChildCount();
-        List<List<String>> slots = new ArrayList<>();
-        String listDelim = ","; // not using symbolic name of LIST_DELIM since exprs might be "Ps"
-        for (int i = 0; i < childCount; i++) {
-            Tree child = exprs.getChild(i);
-            if ( !listDelim.equals( child.toString() ) )
-                slots.add( permuteTree( child ) ); // gets terminal
-        }
+        return permuteStream().toList();
+    }
+
+    /**
+     * Provide the possible permutations one at a time, in the same order as {@link #permute()}.
+     * Nothing is built ahead, so the first permutation is ready at once and callers may stop early.
+     * @return lazy Stream of Army Strings, suitable for parsing.
+     */
+    public Stream<String> permuteStream() {
+        return getPermutations().stream();
+    }
+
+    /**
+     * Provide the possible permutations as a stream that may be parallel.
+     * A parallel stream splits the permutations evenly over all cores,
+     * and ordered operations such as toList keep the order of {@link #permute()}.
+     * @param parallel whether the stream is parallel
+     * @return lazy Stream of Army Strings, suitable for parsing.
+     */
+    public Stream<String> permuteStream(boolean parallel) {
+        return getPermutations().stream(parallel);
+    }
+
+    /**
+     * Provide the possible permutations one at a time, in the same order as {@link #permute()}.
+     * @return Iterator of Army Strings, suitable for parsing.
+     * @see TroopPermutations
+     */
+    public Iterator<String> permuteIterator() {
+        return getPermutations().iterator();
+    }
+
+    /**
+     * Returns the permutations of this army.
+     * They are counted again on each call, one pass over the tree, so a shared TroopDef
+     * does not keep the counts of every node for as long as it lives.
+     * @return the permutations of this army
+     */
+    public TroopPermutations getPermutations() {
+        return new TroopPermutations(this);
+    }
+
+    /**
+     * Returns the exact number of permutations without making any of them.
+     * For example "Cv or LH,2xPs or 3/4Bw" has 2 x 3 = 6.
+     * @return the number of permutations, however large
+     */
+    public BigInteger permuteCount() {
+        return getPermutations().exactCount();
+    }
+
+    /**
+     * Builds the n-th permutation directly, in the same order as {@link #permute()}.
+     * @param n index of the permutation, from 0
+     * @return the n-th Army String, suitable for parsing
+     * @throws IllegalArgumentException when n is not a permutation index
+     */
+    public String unrank(long n) {
+        return getPermutations().unrank(n);
+    }
+
+    /**
+     * Provide each distinct army composition once, ignoring order and grouping.
+     * For example "Cv or LH,LH or Cv" has 4 permutations but 3 compositions, as "Cv,LH" and "LH,Cv" are the same.
+     * @return the distinct compositions, and how many permutations collapsed into them
+     * @see TroopPermutations#distinct()
+     */
+    public TroopPermutations.Distinct permuteDistinct() {
+        return getPermutations().distinct();
+    }
 
-        // Take exprs lists and perform permuting.
-        return countOff( 0, slots, listDelim );
+    /**
+     * Provide one permutation at random, each with the same chance, without listing them.
+     * @param random source of randomness
+     * @return Army String, suitable for parsing.
+     * @see TroopPermutations#sample(SplittableRandom)
+     */
+    public String sample(SplittableRandom random) {
+        return getPermutations().sample(random);
+    }
+
+    /**
+     * Provide a number of random permutations, the same ones for the same seed, sequential or parallel.
+     * @param random source of randomness
+     * @param size number of samples
+     * @return Stream of Army Strings, suitable for parsing.
+     * @see TroopPermutations#samples(SplittableRandom, long)
+     */
+    public Stream<String> samples(SplittableRandom random, long size) {
+        return getPermutations().samples(random, size);
+    }
+
+    /**
+     * Provide a list of possible permutations, telling the given trace
+     * how many permutations each node gave as the permutations are counted.
+     * @param trace receives the permute steps, such as a {@link TraceRecorder}
+     * @return List of Army Strings, suitable for parsing.
+     * @see TroopPermutations#TroopPermutations(TroopDef, PermuteTrace)
+     */
+    public List<String> permute(PermuteTrace trace) {
+        if (null == trace) throw new IllegalArgumentException("trace is null");
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine(toStringTree(tree)); // print DBA tree
+        return new TroopPermutations(this, trace).stream().toList();
     }
 
     /** Given a List of List<String>, treats each list as
@@ -857,116 +822,6 @@ public class TroopDef implements Comparable<TroopDef> {
         }
     }
 
-    /**
-     * Given a parse Tree with multiple choices
-     * (eithers, ors, etc.),
-     * Provide a list of possible permutations.
-     * @return List of Army Strings, suitable for parsing.
-     */
-    public static List<String> permuteTree(final Tree tree) {
-        // Categorize and permute. May recurse or continue to children.
-        switch (tree) {
-            // case DBAArmyParser.ExprsContext exprs -> {
-            // Done in caller
-            // }
-            // case DBAArmyParser.ExprContext expr -> {
-            // System.out.println("Permuting expr " + getNodeText( expr, true);
-            // }
-            case DBAArmyParser.ExprTypeContext exprType -> {
-                // System.out.println("Permuting exprType " +  exprType.getText());
-                return List.of(exprType.getText());
-            }
-            case DBAArmyParser.ExprGroupContext exprGroup -> {
-                System.out.println("Permuting exprGroup");
-                return permuteTree( exprGroup.expr());
-            }
-            case DBAArmyParser.ExprDismountContext dismount -> {
-                System.out.println("Permuting exprDismount " +  getNodeText( dismount, true));
-                if ( 3 == dismount.getChildCount() ) {
-                    String dismountDelim = dismount.DISMOUNT_DELIM().getText();
-                    List<String> firstList = permuteTree(dismount.expr(0));
-                    List<String> secondList = permuteTree( dismount.expr(1) );
-                    return countOff( 0, List.of( firstList, secondList ), dismountDelim );
-                }
-                throw new IllegalStateException( "exprDismount does not have three children");
-            }
-            case DBAArmyParser.ExprAndContext exprAnd -> {
-                int childCount = exprAnd.getChildCount();
-                String childCountStr = ", " + childCount + (1==childCount ? " child." : " children.");
-                System.out.println("Permuting exprAnd" + childCountStr );
-                List<String> firstList = permuteTree( exprAnd.expr(0) );
-                if ( 3 == childCount) {
-                    String andDelim = exprAnd.AND_DELIM().getText();
-                    List<String> secondList = permuteTree( exprAnd.expr(1) );
-                    return countOff( 0, List.of(firstList, secondList), andDelim );
-                    // Stream<String> secondItems = secondList.stream();
-                    // List<String> zippedTogether = andList.stream() // Java 23 preview gatherer
-                    //     .gather(zip(secondItems).with((andItem,secondItem) -> andItem + andToken + secondItem))
-                    //     .toList();
-                }
-            }
-            case DBAArmyParser.ExprEitherUnitContext exprEitherUnit -> {
-                int childCount = exprEitherUnit.getChildCount();
-                String childCountStr = ", " + childCount + (1==childCount ? " child." : " children.");
-                System.out.println("Permuting exprEitherUnit" + childCountStr );
-                int firstUnitNum = Integer.parseInt(exprEitherUnit.INTEGER().getText());
-                String typeText = exprEitherUnit.type().getText();
-                List<String> numUnit = getNumCharGroups( typeText );
-                return List.of( firstUnitNum + numUnit.getLast(), typeText);
-            }
-            case DBAArmyParser.ExprEitherContext exprEither -> {
-                int childCount = exprEither.getChildCount();
-                String childCountStr = ", " + childCount + (1==childCount ? " child." : " children.");
-                System.out.println("Permuting exprEither" + childCountStr );
-                List<String> firstList = permuteTree( exprEither.expr(0) );
-                if ( 3 == childCount) {
-                    // String eitherDelim = exprEither.EITHER_DELIM().getText();
-                    List<String> secondList = permuteTree( exprEither.expr(1) );
-                    // return countOff( 0, List.of(firstList, secondList), eitherDelim );
-                    return Stream.concat(firstList.stream(), secondList.stream()).toList(); // concat two immutable lists
-                }
-                return firstList;
-            }
-            case DBAArmyParser.ExprOrContext exprOr -> {
-                int childCount = exprOr.getChildCount();
-                String childCountStr = ", " + childCount + (1==childCount ? " child." : " children.");
-                System.out.println("Permuting exprOr" + childCountStr );
-                List<String> firstList = permuteTree( exprOr.expr(0) );
-                if ( 3 == childCount) {
-                    // String orDelim = exprOr.OR_DELIM().toString(); // Why is OR_DELIM a list?
-                    List<String> secondList = permuteTree( exprOr.expr(1) );
-                    return Stream.concat(firstList.stream(), secondList.stream()).toList(); // concat two immutable lists
-                }
-                return firstList;
-            }
-            // might want to match 3Wb or 4Wb and 3Wb/4Wb
-            case DBAArmyParser.ExprMultipleContext mult -> {
-                // System.out.println("Permuting exprMulti " + getNodeText(mult, true));
-                int multi = Integer.parseInt(mult.INTEGER().getText());
-                String multDelim = mult.MULTIPLE_DELIM().getText();
-                if ( 3 == mult.getChildCount() ) {
-                    List<String> permutations = permuteTree(mult.expr());
-                    return permutations.stream().map(str-> multi + multDelim + str).toList();
-                }
-                throw new IllegalStateException( "exprMultiple does not have three children");
-            }
-            case TerminalNode terminalNode -> {
-                // This rule only hits exprs child token matching, ie ","
-                // Can use DBAArmyLexer.VOCABULARY.getLiteralNames() or .getSymbolicNames() for the list
-                // "'Hd'", "'Art'", "'WWg'", "','", "'x'", "'//'", "'/'", "'or'", "'+'", // example literal names
-                // "EITHER_DELIM", "OR_DELIM", "AND_DELIM", "GROUP_OPEN", "GROUP_CLOSE", "INTEGER", "WS" // example symbolic
-                // System.out.println("Matching terminal " + getNodeText(t, true) + " to " + getNodeText(that, true));
-                return List.of( terminalNode.getText() );
-            }
-            // Army does not get here since the constructor throws IllegalArgumentException
-            // else if ( t instanceof ErrorNode) {
-            //    return t.toString();
-            // }
-            default -> System.out.println("Unknown tree " + toStringTree(tree));
-        }
-        return List.of();
-    }
-
     // Testing out some permutation algorithms
     // https://www.baeldung.com/java-array-permutations
     public static <T> void printAllRecursive(T[] elements, String delimiter) {
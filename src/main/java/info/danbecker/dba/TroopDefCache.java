@@ -0,0 +1,129 @@
+package info.danbecker.dba;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * A TroopDefCache interns parsed TroopDefs by their raw troop String.
+ * <p>
+ * Many army variants and most submitted army instances share identical
+ * troop Strings, for example "2xPs" or "3Bd+Gen,8x4Bw,3xPs". Parsing each one
+ * again builds a new lexer, token stream, and parser, so this cache hands back
+ * one shared TroopDef for repeated Strings instead.
+ * <p>
+ * The cache is bounded. When full, the least recently used entry is evicted.
+ * Hit, miss, and eviction counts are kept for tuning the capacity.
+ * <p>
+ * Strings that do not parse are not cached. Each request for such a String
+ * will throw the same IllegalArgumentException as the TroopDef constructor.
+ * <p>
+ * The cache is thread-safe. Parsing happens outside the lock so that a slow
+ * parse does not block other lookups. If two threads parse the same String at once,
+ * the first one stored wins and both get the same instance back.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopDefCache {
+    static Logger LOGGER = Logger.getLogger(TroopDefCache.class.getName());
+
+    /** Enough for every army variant in the lists, plus plenty of instances. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    private final LinkedHashMap<String, TroopDef> entries;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Construct a cache that holds at most capacity TroopDefs.
+     *
+     * @param capacity maximum number of entries, 1 or greater
+     */
+    public TroopDefCache(int capacity) {
+        if (1 > capacity) throw new IllegalArgumentException("cache capacity should be 1 or greater, was " + capacity);
+        this.capacity = capacity;
+        // Access order gives least recently used iteration order.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TroopDef> eldest) {
+                if (size() > TroopDefCache.this.capacity) {
+                    evictions++;
+                    LOGGER.fine(() -> "Evicted \"" + eldest.getKey() + "\", " + evictions + " evictions");
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the shared TroopDef for the given raw troop String,
+     * parsing and storing it on the first request.
+     *
+     * @param armyStr raw troop String such as "3Bd + Gen,8x4Bw,3xPs"
+     * @return shared, parsed TroopDef for the String
+     * @throws IllegalArgumentException when the String is null, empty, blank, or does not parse
+     */
+    public TroopDef get(String armyStr) {
+        if (null == armyStr) throw new IllegalArgumentException("input string is null");
+        synchronized (this) {
+            TroopDef troopDef = entries.get(armyStr);
+            if (null != troopDef) {
+                hits++;
+                return troopDef;
+            }
+            misses++;
+        }
+        TroopDef parsed = new TroopDef(armyStr); // may throw, nothing cached
+        synchronized (this) {
+            TroopDef raced = entries.putIfAbsent(armyStr, parsed);
+            return (null == raced) ? parsed : raced;
+        }
+    }
+
+    /**
+     * Removes all entries and resets the counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /** @return the number of cached TroopDefs */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the maximum number of cached TroopDefs */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of requests answered from the cache */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** @return the number of requests that needed a parse */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** @return the number of entries dropped to stay within capacity */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return format("TroopDefCache size=%d/%d, hits=%d, misses=%d, evictions=%d",
+                entries.size(), capacity, hits, misses, evictions);
+    }
+}
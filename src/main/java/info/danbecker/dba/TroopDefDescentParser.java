@@ -0,0 +1,340 @@
+package info.danbecker.dba;
+
+import org.antlr.v4.runtime.Vocabulary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A TroopDefDescentParser is a hand-written precedence climbing parser for troop definition Strings.
+ * It builds the same TroopNode trees as the ANTLR4 generated parser in {@link TroopDefParser},
+ * without a lexer, token stream, parser, or parse tree per String.
+ * <p>
+ * The grammar in DBAArmy.g4 is small. Binary operators from tightest to loosest are
+ * <code>
+ *    //    exprDismount
+ *    +     exprAnd
+ *    /     exprEither
+ *    or    exprOr
+ * </code>
+ * and all are left associative. The atoms are a type, a group (expr), an exprEitherUnit such as 3/4Bw,
+ * and the prefix exprMultiple such as 2xLH or Ps. The multiple operand reaches over every binary operator,
+ * so "2xLH or Ps" is 2x(LH or Ps), just as the generated parser does it.
+ * <p>
+ * Element codes come from the literal names of the generated lexer vocabulary,
+ * so the grammar stays the one place element codes are listed.
+ * Tokens are matched longest first, as the ANTLR lexer does, so "3Kn" is one code but "12Bd" is 12 and Bd.
+ * <p>
+ * The exprEither and exprDismount cardinality rules are checked as nodes are built,
+ * from the delimiter counts of their children, and reported with the same messages as {@link TroopDefParser}.
+ * <p>
+ * This parser only accepts clean input. For any syntax error, unknown character, or trailing input,
+ * the String is handed to the ANTLR pipeline.
+ * That pipeline throws the IllegalArgumentException with the usual message,
+ * for example "Parse error "(Ps", pos 3: missing ')' at '&lt;EOF&gt;'",
+ * or returns the same tree that the ANTLR path would have returned.
+ * So both parsers agree on every String, not just on the good ones.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopDefDescentParser {
+    static Logger LOGGER = Logger.getLogger(TroopDefDescentParser.class.getName());
+
+    // Token kinds
+    private static final int EOF = 0;
+    private static final int TYPE = 1;
+    private static final int INTEGER = 2;
+    private static final int LIST = 3;
+    private static final int MULTIPLE = 4;
+    private static final int DISMOUNT = 5;
+    private static final int EITHER = 6;
+    private static final int OR = 7;
+    private static final int AND = 8;
+    private static final int OPEN = 9;
+    private static final int CLOSE = 10;
+    private static final int OTHER = 11; // lexer tokens such as '-' that the parser never accepts
+    private static final int ERROR = 12; // not a token at all
+
+    // Binary operator precedence, 0 is not a binary operator.
+    private static final int PREC_LOWEST = 1;
+    private static final int[] PRECEDENCE = new int[ERROR + 1];
+    static {
+        PRECEDENCE[OR] = 1;
+        PRECEDENCE[EITHER] = 2;
+        PRECEDENCE[AND] = 3;
+        PRECEDENCE[DISMOUNT] = 4;
+    }
+
+    /** Element codes by first character, longest first. */
+    private static final String[][] CODES = new String[128][];
+    /** Number of element codes. */
+    static final int CODE_COUNT;
+    static {
+        List<String> codes = new ArrayList<>();
+        Vocabulary vocabulary = DBAArmyLexer.VOCABULARY;
+        for (int i = 1; i <= vocabulary.getMaxTokenType(); i++) {
+            String literal = vocabulary.getLiteralName(i);
+            // Delimiters have symbolic names such as LIST_DELIM. Element codes are implicit tokens.
+            if (null != literal && null == vocabulary.getSymbolicName(i)) {
+                codes.add(literal.substring(1, literal.length() - 1));
+            }
+        }
+        CODE_COUNT = codes.size();
+        codes.sort(Comparator.comparingInt(String::length).reversed());
+        for (char first = 0; first < CODES.length; first++) {
+            final char c = first;
+            String[] starting = codes.stream().filter(code -> code.charAt(0) == c).toArray(String[]::new);
+            CODES[first] = (0 == starting.length) ? null : starting;
+        }
+    }
+
+    private static final LongAdder descentParses = new LongAdder();
+    private static final LongAdder antlrParses = new LongAdder();
+
+    /** Thrown internally to abandon this parse for the ANTLR pipeline. No stack trace. */
+    private static final RuntimeException DEFER = new RuntimeException("defer to ANTLR", null, false, false) {};
+
+    private final String str;
+    private final int len;
+    private int pos = 0; // next character to lex
+
+    // The current token
+    private int kind;
+    private int start;
+    private int end;
+    private int value; // INTEGER value
+    private String code; // TYPE code
+
+    // Delimiter counts of the last node built, "/" and "//" in its text
+    private int slashes;
+    private int dismounts;
+    private TroopDefParseException cardinalityError;
+
+    private TroopDefDescentParser(String str) {
+        this.str = str;
+        this.len = str.length();
+    }
+
+    /**
+     * Parse the given troop String to a TroopNode tree.
+     *
+     * @param armyStr troop definition String, see DBAArmy.g4 for grammar
+     * @return the TroopNode tree, always an Exprs
+     * @throws IllegalArgumentException for syntax errors or cardinality errors, as thrown by {@link TroopDefParser}
+     */
+    public static TroopNode.Exprs parse(String armyStr) {
+        if (null == armyStr) throw new IllegalArgumentException("input string is null");
+        try {
+            TroopNode.Exprs exprs = new TroopDefDescentParser(armyStr).exprs();
+            descentParses.increment();
+            return exprs;
+        } catch (RuntimeException e) {
+            if (DEFER != e) throw e;
+        }
+        LOGGER.finer(() -> "Descent parse gave up, using ANTLR for \"" + armyStr + "\"");
+        antlrParses.increment();
+        return TroopDefParser.parseNode(armyStr);
+    }
+
+    /**
+     * Returns the number of Strings parsed by this parser alone.
+     * @return count of descent parses
+     */
+    public static long getDescentCount() {
+        return descentParses.sum();
+    }
+
+    /**
+     * Returns the number of Strings handed to the ANTLR pipeline.
+     * This includes all Strings with syntax errors.
+     * @return count of ANTLR fallbacks
+     */
+    public static long getFallbackCount() {
+        return antlrParses.sum();
+    }
+
+    /** exprs: expr (LIST_DELIM expr)* EOF */
+    private TroopNode.Exprs exprs() {
+        next();
+        List<TroopNode> exprs = new ArrayList<>();
+        exprs.add(expr(PREC_LOWEST));
+        while (LIST == kind) {
+            next();
+            exprs.add(expr(PREC_LOWEST));
+        }
+        // The ANTLR exprs rule stops at trailing input. Let it decide what that means.
+        if (EOF != kind) throw DEFER;
+        // Syntax errors come first, as with ANTLR, then the first cardinality error.
+        if (null != cardinalityError) throw cardinalityError;
+        return new TroopNode.Exprs(exprs);
+    }
+
+    /**
+     * Parses binary operators of the given precedence or tighter.
+     * Afterward, slashes and dismounts hold the delimiter counts of the returned node.
+     */
+    private TroopNode expr(int minPrec) {
+        int exprStart = start;
+        TroopNode left = atom();
+        int prec;
+        while (0 != (prec = PRECEDENCE[kind]) && prec >= minPrec) {
+            int op = kind;
+            int leftSlashes = slashes, leftDismounts = dismounts;
+            next();
+            TroopNode right = expr(prec + 1); // left associative
+            slashes += leftSlashes;
+            dismounts += leftDismounts;
+            left = switch (op) {
+                case DISMOUNT -> {
+                    TroopNode.Dismount dismount = new TroopNode.Dismount(left, right);
+                    slashes += 2;
+                    dismounts += 1;
+                    if (2 <= dismounts) cardinalityError(dismount, dismounts, exprStart);
+                    yield dismount;
+                }
+                case AND -> new TroopNode.And(left, right);
+                case EITHER -> {
+                    TroopNode.Either either = new TroopNode.Either(left, right);
+                    slashes += 1;
+                    if (2 <= slashes) cardinalityError(either, slashes, exprStart);
+                    yield either;
+                }
+                case OR -> new TroopNode.Or(left, right);
+                default -> throw new IllegalStateException("not a binary operator " + op);
+            };
+        }
+        return left;
+    }
+
+    /** type | (expr) | INTEGER / type | INTEGER x expr */
+    private TroopNode atom() {
+        switch (kind) {
+            case TYPE -> {
+                TroopNode.Type type = TroopNode.Type.of(code);
+                next();
+                slashes = 0;
+                dismounts = 0;
+                return type;
+            }
+            case OPEN -> {
+                next();
+                TroopNode expr = expr(PREC_LOWEST);
+                if (CLOSE != kind) throw DEFER;
+                next();
+                return new TroopNode.Group(expr);
+            }
+            case INTEGER -> {
+                int count = value;
+                next();
+                if (EITHER == kind) {
+                    next();
+                    if (TYPE != kind) throw DEFER;
+                    TroopNode.Type type = TroopNode.Type.of(code);
+                    next();
+                    slashes = 1;
+                    dismounts = 0;
+                    return new TroopNode.EitherUnit(count, type);
+                } else if (MULTIPLE == kind) {
+                    next();
+                    return new TroopNode.Multiple(count, expr(PREC_LOWEST));
+                }
+                throw DEFER;
+            }
+            default -> throw DEFER;
+        }
+    }
+
+    /**
+     * Keeps the first exprEither or exprDismount with more than one delimiter.
+     * It is thrown once the whole String has parsed, so a syntax error anywhere is reported first.
+     */
+    private void cardinalityError(TroopNode node, int count, int position) {
+        if (null == cardinalityError)
+            cardinalityError = TroopDefParser.cardinalityError(node, count, position);
+    }
+
+    /** Lex the next token, longest match first. */
+    private void next() {
+        while (pos < len && isWhitespace(str.charAt(pos))) pos++;
+        start = pos;
+        if (pos >= len) {
+            kind = EOF;
+            end = pos;
+            return;
+        }
+        char c = str.charAt(pos);
+
+        // Element codes, which may start with a digit such as 3Kn.
+        int codeLength = 0;
+        if (c < CODES.length && null != CODES[c]) {
+            for (String candidate : CODES[c]) {
+                if (str.startsWith(candidate, pos)) {
+                    code = candidate;
+                    codeLength = candidate.length();
+                    break;
+                }
+            }
+        }
+        if (isDigit(c)) {
+            int digitsEnd = pos + 1;
+            while (digitsEnd < len && isDigit(str.charAt(digitsEnd))) digitsEnd++;
+            if (digitsEnd - pos > codeLength) {
+                if (digitsEnd - pos > 9) throw DEFER; // let ANTLR report it
+                value = Integer.parseInt(str, pos, digitsEnd, 10);
+                token(INTEGER, digitsEnd - pos);
+                return;
+            }
+        }
+        if (0 < codeLength) {
+            token(TYPE, codeLength);
+            return;
+        }
+        switch (c) {
+            case ',' -> token(LIST, 1);
+            case 'x' -> token(MULTIPLE, 1);
+            case '-' -> token(OTHER, 1);
+            case '/' -> {
+                if (pos + 1 < len && '/' == str.charAt(pos + 1)) token(DISMOUNT, 2);
+                else token(EITHER, 1);
+            }
+            case 'o' -> {
+                if (str.startsWith(TroopNode.OR_DELIM, pos)) token(OR, 2);
+                else token(ERROR, 1);
+            }
+            case '+' -> token(AND, 1);
+            case '(' -> token(OPEN, 1);
+            case ')' -> token(CLOSE, 1);
+            default -> token(ERROR, 1);
+        }
+    }
+
+    private void token(int tokenKind, int length) {
+        kind = tokenKind;
+        pos += length;
+        end = pos;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return ' ' == c || '\r' == c || '\n' == c || '\t' == c;
+    }
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    /**
+     * Returns the element codes this parser knows, from the generated lexer vocabulary.
+     * @return element codes, longest first for each first character
+     */
+    static List<String> getCodes() {
+        return Arrays.stream(CODES)
+                .filter(codes -> null != codes)
+                .flatMap(Arrays::stream)
+                .toList();
+    }
+}
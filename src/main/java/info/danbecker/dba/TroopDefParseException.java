@@ -0,0 +1,35 @@
+package info.danbecker.dba;
+
+/**
+ * A TroopDefParseException is an IllegalArgumentException for a troop String that does not parse.
+ * It keeps the character position of the problem, so callers can report it without reading the message.
+ * The message is the same as before, for example "Parse error "(Ps", pos 3: missing ')' at '&lt;EOF&gt;'".
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public class TroopDefParseException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /** Position when there is no single character to blame, as for a blank String. */
+    public static final int NO_POSITION = -1;
+
+    private final int position;
+
+    public TroopDefParseException(String message, int position, Throwable cause) {
+        super(message, cause);
+        this.position = position;
+    }
+
+    public TroopDefParseException(String message, int position) {
+        this(message, position, null);
+    }
+
+    /**
+     * Returns the zero based character position of the problem in the troop String.
+     * @return character position, or NO_POSITION
+     */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,263 @@
+package info.danbecker.dba;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A TroopDefParser runs the DBAArmy lexer and parser generated by the ANTLR4 tool
+ * for troop definition Strings such as "3Bd or 3/4Bw,6x3Ax or 3Wb,3xPs".
+ * <p>
+ * Building a lexer, token stream, parser and listeners for every String is wasteful
+ * for Strings of 60 or so characters. Instead, each thread keeps one pipeline and
+ * resets its input stream for every parse.
+ * <p>
+ * Parsing is done in two stages:
+ * <ul>
+ * <li>SLL prediction with a bail out error strategy. This is fast and succeeds for nearly all input.</li>
+ * <li>Full LL prediction with the default error strategy, only when the first stage fails.
+ * This stage reports syntax errors as IllegalArgumentExceptions.</li>
+ * </ul>
+ * The ATN and DFA prediction cache are static in the generated DBAArmyParser,
+ * so what one thread learns during prediction is shared by all threads.
+ * <p>
+ * The stage counts are kept to show how often the LL fallback fires.
+ * <p>
+ * The exprEither and exprDismount cardinality rules are checked in one pass
+ * while lowering the parse tree to TroopNodes, not by rescanning node text during the parse.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopDefParser {
+    static Logger LOGGER = Logger.getLogger(TroopDefParser.class.getName());
+
+    /** Rule names of the DBAArmy grammar, for LISP-style tree printing. */
+    public static final List<String> RULE_NAMES = Arrays.asList(DBAArmyParser.ruleNames);
+
+    private static final ThreadLocal<TroopDefParser> PIPELINE = ThreadLocal.withInitial(TroopDefParser::new);
+    private static final LongAdder sllParses = new LongAdder();
+    private static final LongAdder llParses = new LongAdder();
+
+    private final DBAArmyLexer lexer;
+    private final CommonTokenStream tokenStream;
+    private final DBAArmyParser parser;
+    private final ThrowingErrorListener errorListener = new ThrowingErrorListener();
+    private final BailErrorStrategy bailStrategy = new BailErrorStrategy();
+    private final DefaultErrorStrategy defaultStrategy = new DefaultErrorStrategy();
+    // Visitors are invoked by user-provided tree walkers. This one keeps counts, so one per pipeline.
+    private final NodeBuilder nodeBuilder = new NodeBuilder();
+
+    private TroopDefParser() {
+        lexer = new DBAArmyLexer(CharStreams.fromString(""));
+        tokenStream = new CommonTokenStream(lexer);
+        parser = new DBAArmyParser(tokenStream);
+    }
+
+    /**
+     * Parse the given troop String with this thread's pipeline.
+     *
+     * @param armyStr troop definition String, see DBAArmy.g4 for grammar
+     * @return the exprs parse tree
+     * @throws IllegalArgumentException for syntax errors
+     */
+    public static DBAArmyParser.ExprsContext parse(String armyStr) {
+        return PIPELINE.get().parseExprs(armyStr);
+    }
+
+    /**
+     * Parse the given troop String and lower it to a compact TroopNode tree.
+     * No ANTLR objects are kept once this returns.
+     * <p>
+     * The exprEither and exprDismount cardinality rules are checked while lowering,
+     * so they are only reported for Strings with no syntax errors.
+     *
+     * @param armyStr troop definition String, see DBAArmy.g4 for grammar
+     * @return the TroopNode tree, always an Exprs
+     * @throws IllegalArgumentException for syntax errors or cardinality errors
+     */
+    public static TroopNode.Exprs parseNode(String armyStr) {
+        TroopDefParser pipeline = PIPELINE.get();
+        return (TroopNode.Exprs) pipeline.nodeBuilder.visit(pipeline.parseExprs(armyStr));
+    }
+
+    /**
+     * Reset the pipeline to the start of the token stream with the given prediction mode.
+     */
+    private void reset(PredictionMode mode, ANTLRErrorStrategy strategy) {
+        parser.reset();
+        parser.getInterpreter().setPredictionMode(mode);
+        parser.setErrorHandler(strategy);
+    }
+
+    private DBAArmyParser.ExprsContext parseExprs(String armyStr) {
+        lexer.setInputStream(CharStreams.fromString(armyStr)); // also resets lexer
+        tokenStream.setTokenSource(lexer); // also resets token stream
+        parser.setTokenStream(tokenStream); // also resets parser
+        errorListener.armyStr = armyStr;
+
+        // Stage 1, SLL with no error reporting, bail on the first error.
+        parser.removeErrorListeners();
+        reset(PredictionMode.SLL, bailStrategy);
+        try {
+            DBAArmyParser.ExprsContext tree = parser.exprs();
+            sllParses.increment();
+            return tree;
+        } catch (ParseCancellationException e) {
+            LOGGER.finer(() -> "SLL parse failed, retrying LL for \"" + armyStr + "\"");
+        }
+
+        // Stage 2, full LL. Syntax errors are reported and rethrown by the error listener.
+        // A listener designed to catch and rethrow parse errors, similar to constructor IllegalArgumentExceptions.
+        llParses.increment();
+        parser.addErrorListener(errorListener);
+        reset(PredictionMode.LL, defaultStrategy);
+        return parser.exprs();
+    }
+
+    /**
+     * Returns the number of Strings parsed by the SLL first stage alone.
+     * @return count of SLL parses
+     */
+    public static long getSllCount() {
+        return sllParses.sum();
+    }
+
+    /**
+     * Returns the number of Strings that fell back to the full LL second stage.
+     * This includes all Strings with syntax errors.
+     * @return count of LL fallbacks
+     */
+    public static long getFallbackCount() {
+        return llParses.sum();
+    }
+
+    /**
+     * Returns the fraction of all parses that needed the LL second stage.
+     * @return fallback rate from 0.0 to 1.0
+     */
+    public static double getFallbackRate() {
+        long sll = sllParses.sum();
+        long ll = llParses.sum();
+        return (0 == sll + ll) ? 0.0 : (double) ll / (sll + ll);
+    }
+
+    /**
+     * Returns the error for an exprEither or exprDismount with more than one delimiter.
+     * Each alternative may have at most one "/" and one "//".
+     * The count is the number of delimiters in the text of the node, so the "/" count includes
+     * the slashes of "3/4Bw" and "Cv//Bd", just as a count of "/" in the text would.
+     *
+     * @param node the exprEither or exprDismount node
+     * @param count number of delimiters in the node text
+     * @param position character position of the start of the node
+     * @return the exception to throw
+     */
+    static TroopDefParseException cardinalityError(TroopNode node, int count, int position) {
+        // Typical output Parse error exprEither cardinality 2 exceeded at  "Cv/Wb/Sp"
+        return new TroopDefParseException("Parse error " + node.kind() + " cardinality " + count + " exceeded at  \"" +
+                TroopNode.text(node) + "\"", position);
+    }
+
+    /**
+     * Lowers an ANTLR parse tree to a TroopNode tree, one record per labeled alternative.
+     * <p>
+     * The delimiter counts of each node are worked out from the counts of its children,
+     * so checking cardinality is linear in the size of the tree.
+     * After each visit, slashes and dismounts hold the counts for the node just built.
+     */
+    static class NodeBuilder extends DBAArmyBaseVisitor<TroopNode> {
+        int slashes = 0; // count of "/" in the node text
+        int dismounts = 0; // count of "//" in the node text
+
+        @Override
+        public TroopNode visitExprs(DBAArmyParser.ExprsContext ctx) {
+            return new TroopNode.Exprs(ctx.expr().stream().map(this::visit).toList());
+        }
+
+        @Override
+        public TroopNode visitExprType(DBAArmyParser.ExprTypeContext ctx) {
+            slashes = 0;
+            dismounts = 0;
+            return TroopNode.Type.of(ctx.type().getText());
+        }
+
+        @Override
+        public TroopNode visitExprGroup(DBAArmyParser.ExprGroupContext ctx) {
+            return new TroopNode.Group(visit(ctx.expr()));
+        }
+
+        @Override
+        public TroopNode visitExprDismount(DBAArmyParser.ExprDismountContext ctx) {
+            TroopNode mounted = visit(ctx.expr(0));
+            int leftSlashes = slashes, leftDismounts = dismounts;
+            TroopNode.Dismount dismount = new TroopNode.Dismount(mounted, visit(ctx.expr(1)));
+            slashes += leftSlashes + 2;
+            dismounts += leftDismounts + 1;
+            if (2 <= dismounts) throw cardinalityError(dismount, dismounts, ctx.getStart().getCharPositionInLine());
+            return dismount;
+        }
+
+        @Override
+        public TroopNode visitExprAnd(DBAArmyParser.ExprAndContext ctx) {
+            TroopNode left = visit(ctx.expr(0));
+            int leftSlashes = slashes, leftDismounts = dismounts;
+            TroopNode.And and = new TroopNode.And(left, visit(ctx.expr(1)));
+            slashes += leftSlashes;
+            dismounts += leftDismounts;
+            return and;
+        }
+
+        @Override
+        public TroopNode visitExprEitherUnit(DBAArmyParser.ExprEitherUnitContext ctx) {
+            slashes = 1;
+            dismounts = 0;
+            return new TroopNode.EitherUnit(Integer.parseInt(ctx.INTEGER().getText()),
+                    TroopNode.Type.of(ctx.type().getText()));
+        }
+
+        @Override
+        public TroopNode visitExprEither(DBAArmyParser.ExprEitherContext ctx) {
+            TroopNode left = visit(ctx.expr(0));
+            int leftSlashes = slashes, leftDismounts = dismounts;
+            TroopNode.Either either = new TroopNode.Either(left, visit(ctx.expr(1)));
+            slashes += leftSlashes + 1;
+            dismounts += leftDismounts;
+            if (2 <= slashes) throw cardinalityError(either, slashes, ctx.getStart().getCharPositionInLine());
+            return either;
+        }
+
+        @Override
+        public TroopNode visitExprOr(DBAArmyParser.ExprOrContext ctx) {
+            TroopNode left = visit(ctx.expr(0));
+            int leftSlashes = slashes, leftDismounts = dismounts;
+            TroopNode.Or or = new TroopNode.Or(left, visit(ctx.expr(1)));
+            slashes += leftSlashes;
+            dismounts += leftDismounts;
+            return or;
+        }
+
+        @Override
+        public TroopNode visitExprMultiple(DBAArmyParser.ExprMultipleContext ctx) {
+            return new TroopNode.Multiple(Integer.parseInt(ctx.INTEGER().getText()), visit(ctx.expr()));
+        }
+    }
+
+    /**
+     * Rethrows the first syntax error as a TroopDefParseException, an IllegalArgumentException.
+     * Typical output "Parse error "(Ps", pos 3: missing ')' at '&lt;EOF&gt;'"
+     */
+    static class ThrowingErrorListener extends BaseErrorListener {
+        String armyStr = "";
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int pos, String msg, RecognitionException e) {
+            throw new TroopDefParseException("Parse error \"" + armyStr + "\", pos " + pos + ": " + msg, pos, e);
+        }
+    }
+}
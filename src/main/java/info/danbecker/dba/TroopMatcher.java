@@ -0,0 +1,413 @@
+package info.danbecker.dba;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import static info.danbecker.dba.TroopDef.getAllExprs;
+
+/**
+ * A TroopMatcher decides whether two TroopNode trees match, for example whether
+ * an army instance "Gen+Cv,5xCv,3xLH,Ps,1x4Wb+1x7Hd" matches the army variant
+ * "Gen+Cv,5xCv,3xCv or LH,1xLH or Ps,2xCv or 2x7Hd or (1x7Hd + 1x4Wb)".
+ * <p>
+ * Matching tries alternatives in any order, so the same pair of sub trees
+ * may be matched more than once. For example Ax+Bd+Cv against Cv+Bd+Ax first tries
+ * the two halves both ways round, then all the terms in any order.
+ * Results are not kept. A memo table of pairs was tried, and TroopMatcherBenchmark measured it
+ * slower than plain matching on the worst rows of the army list, about 45-55 ms against 30-35 ms,
+ * since only 4-9% of pair evaluations repeat there. Even a chain of eight dismounts repeats only
+ * about a quarter, as the grammar limits either chains and any-order slots are assigned by matching, below.
+ * {@link #getEvaluations()} counts the pairs worked out.
+ * <p>
+ * Comma lists and "+" groups match in any order. Each child is matched against every other child once,
+ * and the slots are assigned by maximum bipartite matching, so no valid assignment is missed.
+ * <p>
+ * Matching steps go to a {@link MatchTrace}, which does nothing unless one is given.
+ * <p>
+ * A TroopMatcher is for one thread. It is cheap to make.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopMatcher {
+    static Logger LOGGER = Logger.getLogger(TroopMatcher.class.getName());
+
+    private final MatchTrace trace;
+    private int depth = 0; // nesting of matchTree calls, for the trace
+    private long evaluations = 0;
+
+    /** Makes a matcher. */
+    public TroopMatcher() {
+        this(MatchTrace.NONE);
+    }
+
+    /**
+     * Makes a matcher that tells the given trace each step.
+     * @param trace receives the match steps, such as a {@link TraceRecorder}
+     */
+    public TroopMatcher(MatchTrace trace) {
+        if (null == trace) throw new IllegalArgumentException("trace is null");
+        this.trace = trace;
+    }
+
+    /**
+     * Determine the two trees match each other.
+     * Given an army with options
+     * <code>Gen+Cv,5xCv,3xCv or LH,1xLH or Ps,2xCv or 2x7Hd or (1x7Hd + 1x4Wb)</code> // III/18
+     * the following pass:
+     * <code>Gen+Cv,5xCv,3xLH,Ps,1x4Wb+1x7Hd       Gen+Cv,5xCv,3xCv,LH,2xCv</code>
+     * the following do not pass:
+     * <code>Cv,4xCv,5xLH,Wb,3x7Hd                 Gen+Cv,5xKn,3xCv,Bw,2xCv</code>
+     * <p>
+     * The general process is:
+     * <ul>
+     * <li>promote or convert simple expressions such as groups or exprEitherUnit</li>
+     * <li>categorize and match expressions where possible</li>
+     * <li>visit child nodes (in any order) to continue matching</li>
+     * </ul>
+     * @param t tree of the definition
+     * @param that tree of the instance
+     * @return whether the trees match
+     */
+    public boolean matchTree(final TroopNode t, final TroopNode that) {
+        evaluations++;
+        return traced(t, that);
+    }
+
+    /** Evaluates one pair one level deeper, and tells the trace the result. */
+    private boolean traced(final TroopNode t, final TroopNode that) {
+        depth++;
+        boolean match = evaluate(t, that);
+        depth--;
+        trace.step(match ? MatchTrace.Step.MATCHED : MatchTrace.Step.NOT_MATCHED, t, that, depth);
+        return match;
+    }
+
+    /** Promotes a node with the given promotion, and tells the trace when it changes. */
+    private TroopNode promote(TroopNode node, UnaryOperator<TroopNode> promotion, MatchTrace.Step step) {
+        TroopNode promoted = promotion.apply(node);
+        if (promoted != node) trace.step(step, node, promoted, depth);
+        return promoted;
+    }
+
+    private boolean evaluate(final TroopNode ft, final TroopNode fthat) {
+        TroopNode t = ft;
+        TroopNode that = fthat;
+
+        // Instead of this iterative promoting, might
+        // want to handle it right at the type switch.
+        // Possible convert exprMultiple with 1x to expr
+        t = promote( t, TroopDef::promoteExprMultiple1x, MatchTrace.Step.PROMOTE_1X );
+        that = promote( that, TroopDef::promoteExprMultiple1x, MatchTrace.Step.PROMOTE_1X );
+        t = promote( t, TroopDef::promoteExprEitherUnit, MatchTrace.Step.PROMOTE_EITHER_UNIT );
+        that = promote( that, TroopDef::promoteExprEitherUnit, MatchTrace.Step.PROMOTE_EITHER_UNIT );
+        // Promote exprGroup to simpler expr
+        while(t instanceof TroopNode.Group group) {
+            trace.step(MatchTrace.Step.ELEVATE_GROUP, group, group.expr(), depth);
+            t = group.expr();
+        }
+        while(that instanceof TroopNode.Group group) {
+            trace.step(MatchTrace.Step.ELEVATE_GROUP, group, group.expr(), depth);
+            that = group.expr();
+        }
+        t = promote( t, TroopDef::promoteExprMultiple1x, MatchTrace.Step.PROMOTE_1X );
+        that = promote( that, TroopDef::promoteExprMultiple1x, MatchTrace.Step.PROMOTE_1X );
+
+        // Categorize and match. May recurse or continue to children.
+        switch (t) {
+            case TroopNode.Exprs exprs -> {
+                if (!(that instanceof TroopNode.Exprs thatExprs)) {
+                    trace.step(MatchTrace.Step.MISMATCH_KIND, exprs, that, depth);
+                    return false;
+                }
+                if (exprs.exprs().size() != thatExprs.exprs().size()) {
+                    trace.step(MatchTrace.Step.MISMATCH_COUNT, exprs, that, depth);
+                    return false;
+                }
+                trace.step(MatchTrace.Step.MATCH, exprs, that, depth);
+                // Let this fall to any-order child matching
+            }
+            case TroopNode.Either either -> {
+                trace.step(MatchTrace.Step.MATCH, either, that, depth);
+                if (that instanceof TroopNode.Either thatExprEither) {
+                    // Allow either expressions to match in any order.
+                    return ((matchTree( either.left(), thatExprEither.left()) &&
+                             matchTree( either.right(), thatExprEither.right())) ||
+                            (matchTree( either.left(), thatExprEither.right()) &&
+                             matchTree( either.right(), thatExprEither.left())));
+                }
+                return matchTree( either.left(), that) || matchTree( either.right(), that);
+            }
+            case TroopNode.Dismount dismount -> {
+                // Unlike either where Cv/Bd == Bd/Cv, dismount Cv//Bd != Bd//Cv, similarly Cv//Bd != Cv
+                trace.step(MatchTrace.Step.MATCH, dismount, that, depth);
+                if (that instanceof TroopNode.Dismount thatExprDismount) {
+                    // Dismount expressions must match order.
+                    return matchTree( dismount.mounted(), thatExprDismount.mounted()) &&
+                         matchTree( dismount.dismounted(), thatExprDismount.dismounted());
+                }
+                return false;
+            }
+            case TroopNode.And exprAnd -> {
+                trace.step(MatchTrace.Step.MATCH, exprAnd, that, depth);
+                TroopNode thisA = exprAnd.left();
+                TroopNode thisB = exprAnd.right();
+                if (that instanceof TroopNode.And thatExprAnd) {
+                    // Matching exprAnd Ax+Bd to Bd+Ax
+                    // Also matching exprAnd Ax+Bd+Cv to Ax+Cv+Bd
+                    TroopNode thatA = thatExprAnd.left();
+                    TroopNode thatB = thatExprAnd.right();
+                    if ((matchTree( thisA, thatA ) && matchTree( thisB, thatB )) ||
+                           (matchTree( thisA, thatB ) && matchTree( thisB, thatA ))) {
+                        return true;
+                    }
+                    // Swap tail to see if that matches
+                    if (( thisA instanceof TroopNode.And ) &&
+                        ( thatA instanceof TroopNode.And )) {
+                        return matchTreesAnyOrder( getAllExprs( exprAnd ), getAllExprs(thatExprAnd), true );
+                    }
+                }
+                else if  (that instanceof TroopNode.Or thatExprOr) {
+                    // Matching thisA+thisB to thatC or thatA+thatC?
+                    // Also matching thisA+thisB to thatA+thatB or thatC?
+                    TroopNode thatA = thatExprOr.left();
+                    TroopNode thatB = thatExprOr.right();
+                    return matchTree( exprAnd, thatA ) || matchTree( exprAnd, thatB );
+                    // matchTreesAnyOrder(exprAnd, thatExprOr, false);
+                }
+                return false;
+            }
+            case TroopNode.Or exprOr -> {
+                trace.step(MatchTrace.Step.MATCH, exprOr, that, depth);
+                TroopNode thisA = exprOr.left();
+                TroopNode thisB = exprOr.right();
+                if (that instanceof TroopNode.Or thatExprOr) {
+                    // Matching exprOr Ax or Bd to Bd or Ax
+                    // Also matching exprOr Ax or Bd or Cv to Ax or Cv or Bd
+                    TroopNode thatA = thatExprOr.left();
+                    TroopNode thatB = thatExprOr.right();
+                    return matchTree( thisA, thatA ) || matchTree( thisA, thatB ) ||
+                            matchTree( thisB, thatA ) || matchTree( thisB, thatB );
+                }
+                else if (that instanceof TroopNode.Either thatExprOr) {
+                    // Matching exprOr Ax or Bd to Bd or Ax
+                    // Also matching exprOr Ax or Bd or Cv to Ax or Cv or Bd
+                    TroopNode thatA = thatExprOr.left();
+                    TroopNode thatB = thatExprOr.right();
+                    return matchTree( thisA, thatA ) || matchTree( thisA, thatB ) ||
+                            matchTree( thisB, thatA ) || matchTree( thisB, thatB );
+                }
+                return matchTree( thisA, that ) || matchTree( thisB, that );
+            }
+            case TroopNode.Multiple mult -> {
+                // 1x exprMultiples are promoted to expr above.
+                trace.step(MatchTrace.Step.MATCH, mult, that, depth);
+                if (that instanceof TroopNode.Multiple thatMult) {
+                    int multi = mult.count();
+                    int thatMulti = thatMult.count();
+                    if (multi != thatMulti) {
+                        trace.step(MatchTrace.Step.MISMATCH_COUNT, mult, that, depth);
+                        return false;
+                    }
+                    return matchTree( mult.expr(), thatMult.expr() );
+                } else if ( that instanceof TroopNode.Or ) {
+                    // Desugaring spreads 9x(4Bw or Ps) to 9x4Bw or 9xPs. As with a type, any one may match.
+                    return matchTree( that, mult );
+                }
+                return false;
+            }
+            case TroopNode.Type exprType -> {
+                if (that instanceof TroopNode.Type thatType) {
+                    return exprType.equals( thatType );
+                } else if ( that instanceof TroopNode.Or ) {
+                    return matchTree( that, exprType );
+                }
+                return false;
+            }
+            //case TroopNode.Group groupRule -> {
+            //   Group expr payloads are elevated at the beginning of this method.
+            //   Group should not be reached.
+            //}
+            default -> trace.step(MatchTrace.Step.UNMATCHED, t, that, depth);
+        }
+
+        // Visit and match children in any order.
+        return matchChildrenAnyOrder( t, that );
+    }
+
+    /** Match the children of two trees.
+     * Allow matches to happen in any order to support commutativity.
+     * In other words, allow Bd,Sp,Bw to match Bw,Bd,Sp or Wb+Bw to match Bw+Wb.
+     * <p>
+     * A complete match pairs every tree with a different that, found as a maximum bipartite matching.
+     * So "Cv or LH,LH" matches "LH,Cv" even though "Cv or LH" could also take the LH.
+     * @param trees List of Trees
+     * @param thats List of Trees
+     * @param completeMatch whether thats must be a complete match or just a subset
+     * @return whether the trees match in any order
+     */
+    public boolean matchTreesAnyOrder(final List<TroopNode> trees, final List<TroopNode> thats, boolean completeMatch) {
+        if (completeMatch && (trees.size() != thats.size()))
+            return false;
+        if (!completeMatch) {
+            // Any one tree matching any one that will do.
+            for (TroopNode tree : trees) {
+                for (TroopNode that : thats) {
+                    if (matchTree(tree, that))
+                        return true;
+                }
+            }
+            return false;
+        }
+        return matchAllSlots(trees, thats);
+    }
+
+    /**
+     * Matches t with one of List<Tree> of that.
+     * @return thats.get(treeis) integer of match with t, or -1 for no match.
+     */
+    public int matchTreeFirst(final TroopNode t, final List<TroopNode> thats, final List<Integer> treeis) {
+        for (int i : treeis) {
+            if (matchTree(t, thats.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Match the children of two trees.
+     * Allow matches to happen in any order to support commutativity.
+     * In other words, allow Bd,Sp,Bw to match Bw,Bd,Sp or Wb+Bw to match Bw+Wb.
+     * <p>
+     * Every child of tree must match a different child of that.
+     * Extra children of that are allowed. Callers check the counts when they must be equal.
+     * @param tree Tree of children
+     * @param that Tree to match one of Three children
+     * @return whether the child lists have a match or -1 for not.
+     */
+    public boolean matchChildrenAnyOrder(final TroopNode tree, final TroopNode that) {
+        return matchAllSlots(tree.children(), that.children());
+    }
+
+    /**
+     * Whether every tree can be given its own matching that.
+     * Taking the first match for each tree in turn can wrongly fail,
+     * when an early tree takes the only that a later tree could match.
+     * Instead, every pair is matched once to build a compatibility matrix,
+     * and the matrix is solved as a maximum bipartite matching.
+     */
+    private boolean matchAllSlots(final List<TroopNode> trees, final List<TroopNode> thats) {
+        if (trees.size() > thats.size())
+            return false;
+        boolean[][] compatible = new boolean[trees.size()][thats.size()];
+        for (int treei = 0; treei < trees.size(); treei++) {
+            boolean any = false;
+            for (int thati = 0; thati < thats.size(); thati++) {
+                compatible[treei][thati] = matchTree(trees.get(treei), thats.get(thati));
+                any |= compatible[treei][thati];
+            }
+            // A tree with nothing to match cannot be in a complete matching.
+            if (!any) return false;
+        }
+        return trees.size() == maximumMatching(compatible);
+    }
+
+    /**
+     * Returns the size of a maximum matching of a bipartite graph, by the Hopcroft-Karp algorithm.
+     * Each phase finds a maximal set of shortest augmenting paths with one breadth first search
+     * and depth first searches along its layers. There are at most O(sqrt(V)) phases,
+     * so the whole is O(E sqrt(V)), well within reach for 12 slots full of "or" choices.
+     *
+     * @param compatible compatible[left][right] is whether the left vertex may pair with the right vertex
+     * @return the number of pairs in a maximum matching
+     */
+    static int maximumMatching(final boolean[][] compatible) {
+        int lefts = compatible.length;
+        int rights = (0 == lefts) ? 0 : compatible[0].length;
+        int[] leftMate = new int[lefts];
+        int[] rightMate = new int[rights];
+        Arrays.fill(leftMate, -1);
+        Arrays.fill(rightMate, -1);
+        int[] layer = new int[lefts];
+        int[] queue = new int[lefts];
+
+        int size = 0;
+        while (layers(compatible, leftMate, rightMate, layer, queue)) {
+            for (int left = 0; left < lefts; left++) {
+                if (-1 == leftMate[left] && augment(left, compatible, leftMate, rightMate, layer))
+                    size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Breadth first search from all free lefts, giving each left its layer.
+     * @return whether some free right can be reached, that is whether an augmenting path exists
+     */
+    private static boolean layers(boolean[][] compatible, int[] leftMate, int[] rightMate, int[] layer, int[] queue) {
+        int head = 0, tail = 0;
+        for (int left = 0; left < leftMate.length; left++) {
+            if (-1 == leftMate[left]) {
+                layer[left] = 0;
+                queue[tail++] = left;
+            } else {
+                layer[left] = Integer.MAX_VALUE;
+            }
+        }
+        boolean found = false;
+        while (head < tail) {
+            int left = queue[head++];
+            for (int right = 0; right < rightMate.length; right++) {
+                if (!compatible[left][right]) continue;
+                int next = rightMate[right];
+                if (-1 == next) {
+                    found = true;
+                } else if (Integer.MAX_VALUE == layer[next]) {
+                    layer[next] = layer[left] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return found;
+    }
+
+    /** Depth first search along the layers for an augmenting path from left. Flips the path when found. */
+    private static boolean augment(int left, boolean[][] compatible, int[] leftMate, int[] rightMate, int[] layer) {
+        for (int right = 0; right < rightMate.length; right++) {
+            if (!compatible[left][right]) continue;
+            int next = rightMate[right];
+            if (-1 == next || (layer[next] == layer[left] + 1 && augment(next, compatible, leftMate, rightMate, layer))) {
+                leftMate[left] = right;
+                rightMate[right] = left;
+                return true;
+            }
+        }
+        // No path through this left in this phase.
+        layer[left] = Integer.MAX_VALUE;
+        return false;
+    }
+
+    /**
+     * Matches one of the children of that. Returns child integer of match or -1 for no match.
+    */
+    public int matchTreeFirstChild(final TroopNode t, final TroopNode that, final List<Integer> childis) {
+        List<TroopNode> thatChildren = that.children();
+        for (int i : childis) {
+            if (matchTree(t, thatChildren.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of node pairs worked out.
+     * @return count of pair evaluations
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+}
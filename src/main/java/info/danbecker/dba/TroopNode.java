@@ -0,0 +1,496 @@
+package info.danbecker.dba;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A TroopNode is one node of a compact, immutable troop definition tree.
+ * <p>
+ * The ANTLR4 parse tree of a troop String keeps every token, token stream and rule context alive.
+ * A TroopDef instead lowers its parse tree to these small records right after parsing,
+ * and the ANTLR objects are dropped. There is one record for each labeled
+ * alternative of the expr rule in DBAArmy.g4, plus Exprs for the top level list:
+ * <code>
+ *    exprs: expr (LIST_DELIM expr)*        Exprs
+ *    type                                  Type
+ *    GROUP_OPEN expr GROUP_CLOSE           Group
+ *    expr DISMOUNT_DELIM expr              Dismount
+ *    expr AND_DELIM expr                   And
+ *    INTEGER EITHER_DELIM type             EitherUnit
+ *    expr EITHER_DELIM expr                Either
+ *    expr OR_DELIM expr                    Or
+ *    INTEGER MULTIPLE_DELIM expr           Multiple
+ * </code>
+ * Binary nodes keep the same shape as the parse tree, so "Ax+Bd+Cv" is And(And(Ax,Bd),Cv).
+ * <p>
+ * Element codes are interned. There is only one Type record for each code,
+ * such as "Cv" or "4Bw", no matter how many trees use it.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public sealed interface TroopNode {
+    String LIST_DELIM = ",";
+    String MULTIPLE_DELIM = "x";
+    String DISMOUNT_DELIM = "//";
+    String EITHER_DELIM = "/";
+    String OR_DELIM = "or";
+    String AND_DELIM = "+";
+    String GROUP_OPEN = "(";
+    String GROUP_CLOSE = ")";
+
+    /**
+     * Returns the expr children of this node, in parse order.
+     * @return List of children, empty for leaves
+     */
+    List<TroopNode> children();
+
+    /**
+     * Returns the grammar label of this node, such as "exprs" or "exprOr".
+     * @return the grammar label of this node
+     */
+    String kind();
+
+    /** exprs: expr (LIST_DELIM expr)* */
+    record Exprs(List<TroopNode> exprs) implements TroopNode {
+        public Exprs {
+            exprs = List.copyOf(exprs);
+        }
+        @Override public List<TroopNode> children() { return exprs; }
+        @Override public String kind() { return "exprs"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** type #exprType, an element code such as Cv or 4Bw */
+    record Type(String code) implements TroopNode {
+        private static final Map<String, Type> TYPES = new ConcurrentHashMap<>();
+
+        /**
+         * Returns the one shared Type for the given element code.
+         * @param code element code such as Cv or 4Bw
+         * @return interned Type node
+         */
+        public static Type of(String code) {
+            Type type = TYPES.get(code);
+            return (null != type) ? type : TYPES.computeIfAbsent(code.intern(), Type::new);
+        }
+        @Override public List<TroopNode> children() { return List.of(); }
+        @Override public String kind() { return "exprType"; }
+        @Override public String toString() { return code; }
+    }
+
+    /** GROUP_OPEN expr GROUP_CLOSE #exprGroup */
+    record Group(TroopNode expr) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(expr); }
+        @Override public String kind() { return "exprGroup"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** expr DISMOUNT_DELIM expr #exprDismount, order matters */
+    record Dismount(TroopNode mounted, TroopNode dismounted) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(mounted, dismounted); }
+        @Override public String kind() { return "exprDismount"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** expr AND_DELIM expr #exprAnd */
+    record And(TroopNode left, TroopNode right) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(left, right); }
+        @Override public String kind() { return "exprAnd"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** INTEGER EITHER_DELIM type #exprEitherUnit, such as 3/4Bd */
+    record EitherUnit(int count, Type type) implements TroopNode {
+        // Optional base count then the letters, such as 4Bw or Bw
+        private static final Pattern COUNTED_CODE = Pattern.compile("[0-9]*([A-Za-z]+)");
+
+        /**
+         * Returns the first type of the pair, such as 3Bd for 3/4Bd.
+         * @return the first type, or null when the code has no plain letter part to count, such as Mtd-4Bw
+         */
+        public Type first() {
+            Matcher matcher = COUNTED_CODE.matcher(type.code());
+            return matcher.matches() ? Type.of(count + matcher.group(1)) : null;
+        }
+
+        /**
+         * Returns the equivalent Either, such as 3Bd/4Bd for 3/4Bd.
+         * @return the Either, or this when there is no first type
+         */
+        public TroopNode promoted() {
+            Type first = first();
+            return (null == first) ? this : new Either(first, type);
+        }
+        @Override public List<TroopNode> children() { return List.of(type); }
+        @Override public String kind() { return "exprEitherUnit"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** expr EITHER_DELIM expr #exprEither */
+    record Either(TroopNode left, TroopNode right) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(left, right); }
+        @Override public String kind() { return "exprEither"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** expr OR_DELIM expr #exprOr */
+    record Or(TroopNode left, TroopNode right) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(left, right); }
+        @Override public String kind() { return "exprOr"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /** INTEGER MULTIPLE_DELIM expr #exprMultiple */
+    record Multiple(int count, TroopNode expr) implements TroopNode {
+        @Override public List<TroopNode> children() { return List.of(expr); }
+        @Override public String kind() { return "exprMultiple"; }
+        @Override public String toString() { return text(this); }
+    }
+
+    /**
+     * Returns the DBA String of a tree, with no white space.
+     * This is the same as the getText of the ANTLR parse tree, for example "3Axor4AxorHd".
+     *
+     * @param node tree to print
+     * @return DBA String of the tree
+     */
+    static String text(TroopNode node) {
+        StringBuilder sb = new StringBuilder();
+        appendText(sb, node);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the DBA String of a tree to the given StringBuilder.
+     * @param sb StringBuilder to append to
+     * @param node tree to print
+     */
+    static void appendText(StringBuilder sb, TroopNode node) {
+        switch (node) {
+            case Exprs exprs -> {
+                for (int i = 0; i < exprs.exprs().size(); i++) {
+                    if (0 < i) sb.append(LIST_DELIM);
+                    appendText(sb, exprs.exprs().get(i));
+                }
+            }
+            case Type type -> sb.append(type.code());
+            case Group group -> {
+                sb.append(GROUP_OPEN);
+                appendText(sb, group.expr());
+                sb.append(GROUP_CLOSE);
+            }
+            case Dismount dismount -> {
+                appendText(sb, dismount.mounted());
+                sb.append(DISMOUNT_DELIM);
+                appendText(sb, dismount.dismounted());
+            }
+            case And and -> {
+                appendText(sb, and.left());
+                sb.append(AND_DELIM);
+                appendText(sb, and.right());
+            }
+            case EitherUnit eitherUnit -> sb.append(eitherUnit.count()).append(EITHER_DELIM).append(eitherUnit.type().code());
+            case Either either -> {
+                appendText(sb, either.left());
+                sb.append(EITHER_DELIM);
+                appendText(sb, either.right());
+            }
+            case Or or -> {
+                appendText(sb, or.left());
+                sb.append(OR_DELIM);
+                appendText(sb, or.right());
+            }
+            case Multiple mult -> {
+                sb.append(mult.count()).append(MULTIPLE_DELIM);
+                appendText(sb, mult.expr());
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical form of a tree, so that trees with the same meaning are equal.
+     * <ul>
+     * <li>groups are removed, the tree shape holds the grouping</li>
+     * <li>1x multiples are removed</li>
+     * <li>either units become eithers, so 3/4Bw is 3Bw/4Bw, as in {@link #simplify(TroopNode)}</li>
+     * <li>chains of the commutative +, or, and / are flattened, sorted, and rebuilt left associative</li>
+     * </ul>
+     * The Exprs list order is kept, since the first slot holds the general.
+     * Dismounts keep their order, since Cv//Bd is not Bd//Cv.
+     * For example "(LH + Cv) or 1xPs" and "Ps or Cv+LH" both give "Cv+LHorPs".
+     *
+     * @param node tree to convert
+     * @return canonical tree
+     */
+    static TroopNode canonical(TroopNode node) {
+        return switch (node) {
+            case Exprs exprs -> new Exprs(exprs.exprs().stream().map(TroopNode::canonical).toList());
+            case Type type -> type;
+            case Group group -> canonical(group.expr());
+            case Dismount dismount -> new Dismount(canonical(dismount.mounted()), canonical(dismount.dismounted()));
+            case And and -> sortedChain(and);
+            case EitherUnit eitherUnit -> {
+                TroopNode promoted = eitherUnit.promoted();
+                yield (promoted == eitherUnit) ? eitherUnit : canonical(promoted);
+            }
+            case Either either -> sortedChain(either);
+            case Or or -> sortedChain(or);
+            case Multiple mult -> (1 == mult.count()) ? canonical(mult.expr()) : new Multiple(mult.count(), canonical(mult.expr()));
+        };
+    }
+
+    /** Flattens, canonicalizes, sorts and rebuilds one commutative chain. */
+    private static TroopNode sortedChain(TroopNode chain) {
+        List<TroopNode> operands = new ArrayList<>();
+        addChainOperands(chain, chain.getClass(), operands);
+        // Sort by minimal text, computed once per operand.
+        String[] keys = new String[operands.size()];
+        Integer[] order = new Integer[operands.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = minimalText(operands.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing((Integer i) -> keys[i]));
+        TroopNode left = operands.get(order[0]);
+        for (int i = 1; i < order.length; i++) {
+            TroopNode right = operands.get(order[i]);
+            left = switch (chain) {
+                case And and -> new And(left, right);
+                case Either either -> new Either(left, right);
+                case Or or -> new Or(left, right);
+                default -> throw new IllegalArgumentException("not a commutative chain " + chain.kind());
+            };
+        }
+        return left;
+    }
+
+    /** Adds canonical operands of a chain, also through groups and 1x multiples of the same operator. */
+    private static void addChainOperands(TroopNode node, Class<?> chainClass, List<TroopNode> operands) {
+        if (node.getClass() == chainClass) {
+            for (TroopNode child : node.children()) addChainOperands(child, chainClass, operands);
+            return;
+        }
+        TroopNode canonical = canonical(node);
+        if (canonical.getClass() == chainClass) {
+            addFlatChain(canonical, chainClass, operands); // (Cv+LH)+Ps
+        } else {
+            operands.add(canonical);
+        }
+    }
+
+    private static void addFlatChain(TroopNode node, Class<?> chainClass, List<TroopNode> operands) {
+        if (node.getClass() == chainClass) {
+            for (TroopNode child : node.children()) addFlatChain(child, chainClass, operands);
+        } else {
+            operands.add(node);
+        }
+    }
+
+    /**
+     * Returns the desugared form of a tree, the one matching and permuting work on.
+     * Unlike {@link #canonical(TroopNode)}, the order of every operand is kept.
+     * <ul>
+     * <li>either units become eithers, so 3/4Bd is 3Bd/4Bd</li>
+     * <li>1x multiples are removed</li>
+     * <li>groups are removed, and chains of +, or, and / are flattened and rebuilt left associative</li>
+     * <li>nested multiples are folded, so 2x(3xBd) is 6xBd</li>
+     * <li>multiples of alternatives are spread over them, so 2x(Cv or 2x7Hd) is (2xCv) or (4x7Hd).
+     *     That is the same choice, since every element of a multiple makes the same one.</li>
+     * <li>repeated alternatives of or and / are dropped, so Cv or LH or Cv is Cv or LH</li>
+     * </ul>
+     * For example "1x(Cv/Cv),(Ax+Bd)+3/4Bw" gives "Cv,Ax+Bd+(3Bw/4Bw)".
+     *
+     * @param node tree to convert
+     * @return desugared tree
+     */
+    static TroopNode simplify(TroopNode node) {
+        return switch (node) {
+            case Exprs exprs -> new Exprs(exprs.exprs().stream().map(TroopNode::simplify).toList());
+            case Type type -> type;
+            case Group group -> simplify(group.expr());
+            case Dismount dismount -> new Dismount(simplify(dismount.mounted()), simplify(dismount.dismounted()));
+            case EitherUnit eitherUnit -> {
+                TroopNode promoted = eitherUnit.promoted();
+                yield (promoted == eitherUnit) ? eitherUnit : simplify(promoted);
+            }
+            case And and -> simplifiedChain(and);
+            case Either either -> simplifiedChain(either);
+            case Or or -> simplifiedChain(or);
+            case Multiple mult -> {
+                TroopNode expr = simplify(mult.expr());
+                yield (1 == mult.count()) ? expr : multiply(mult.count(), expr);
+            }
+        };
+    }
+
+    /** Multiplies a simplified tree, folding into inner multiples and spreading over alternatives. */
+    private static TroopNode multiply(int count, TroopNode node) {
+        return switch (node) {
+            case Multiple inner -> new Multiple(count * inner.count(), inner.expr());
+            case Or or -> new Or(multiply(count, or.left()), multiply(count, or.right()));
+            case Either either -> new Either(multiply(count, either.left()), multiply(count, either.right()));
+            default -> new Multiple(count, node);
+        };
+    }
+
+    /** Flattens, simplifies and rebuilds one chain in order, without repeats for alternatives. */
+    private static TroopNode simplifiedChain(TroopNode chain) {
+        List<TroopNode> operands = new ArrayList<>();
+        addSimpleOperands(chain, chain.getClass(), operands);
+        if (!(chain instanceof And)) {
+            // Alternatives that mean the same thing give the same choice.
+            Set<TroopNode> seen = new HashSet<>();
+            operands.removeIf(operand -> !seen.add(canonical(operand)));
+        }
+        TroopNode left = operands.getFirst();
+        for (int i = 1; i < operands.size(); i++) {
+            TroopNode right = operands.get(i);
+            left = switch (chain) {
+                case And and -> new And(left, right);
+                case Either either -> new Either(left, right);
+                case Or or -> new Or(left, right);
+                default -> throw new IllegalArgumentException("not a chain " + chain.kind());
+            };
+        }
+        return left;
+    }
+
+    /** Adds simplified operands of a chain, also through groups, 1x multiples and either units of the same operator. */
+    private static void addSimpleOperands(TroopNode node, Class<?> chainClass, List<TroopNode> operands) {
+        if (node.getClass() == chainClass) {
+            for (TroopNode child : node.children()) addSimpleOperands(child, chainClass, operands);
+            return;
+        }
+        TroopNode simple = simplify(node);
+        if (simple.getClass() == chainClass) {
+            addFlatChain(simple, chainClass, operands); // (Cv+LH)+Ps
+        } else {
+            operands.add(simple);
+        }
+    }
+
+    /**
+     * Returns the DBA String of a tree with only the parentheses the grammar needs,
+     * so the String parses back to the same tree shape.
+     * Unlike {@link #text(TroopNode)}, groups are not printed as such.
+     * For example And(Cv, Or(LH, Ps)) is "Cv+(LHorPs)" and Or(And(Cv, LH), Ps) is "Cv+LHorPs".
+     *
+     * @param node tree to print
+     * @return DBA String of the tree with minimal parentheses
+     */
+    static String minimalText(TroopNode node) {
+        StringBuilder sb = new StringBuilder();
+        appendMinimalText(sb, node);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the binding precedence of a node, higher binds tighter.
+     * Multiple is 0 since its operand reaches over every binary operator to the right.
+     * Atoms are 5.
+     * @param node tree node
+     * @return precedence 0 to 5
+     */
+    static int precedence(TroopNode node) {
+        return switch (node) {
+            case Multiple mult -> 0;
+            case Or or -> 1;
+            case Either either -> 2;
+            case And and -> 3;
+            case Dismount dismount -> 4;
+            case Exprs exprs -> 0;
+            default -> 5;
+        };
+    }
+
+    /**
+     * Appends the DBA String of a tree with minimal parentheses.
+     * @param sb StringBuilder to append to
+     * @param node tree to print
+     */
+    static void appendMinimalText(StringBuilder sb, TroopNode node) {
+        switch (node) {
+            case Exprs exprs -> {
+                for (int i = 0; i < exprs.exprs().size(); i++) {
+                    if (0 < i) sb.append(LIST_DELIM);
+                    appendMinimalText(sb, exprs.exprs().get(i));
+                }
+            }
+            case Group group -> appendMinimalText(sb, group.expr());
+            case Dismount dismount -> appendBinary(sb, dismount, dismount.mounted(), DISMOUNT_DELIM, dismount.dismounted());
+            case And and -> appendBinary(sb, and, and.left(), AND_DELIM, and.right());
+            case Either either -> appendBinary(sb, either, either.left(), EITHER_DELIM, either.right());
+            case Or or -> appendBinary(sb, or, or.left(), OR_DELIM, or.right());
+            case Multiple mult -> {
+                sb.append(mult.count()).append(MULTIPLE_DELIM);
+                appendMinimalText(sb, mult.expr());
+            }
+            case Type type -> appendText(sb, type);
+            case EitherUnit eitherUnit -> appendText(sb, eitherUnit);
+        }
+    }
+
+    private static void appendBinary(StringBuilder sb, TroopNode node, TroopNode left, String delim, TroopNode right) {
+        int prec = precedence(node);
+        // Left associative: equal precedence on the left needs no parentheses, on the right it does.
+        // A multiple operand would swallow the operator, so it always gets parentheses.
+        appendOperand(sb, left, precedence(left) < prec || left instanceof Multiple);
+        sb.append(delim);
+        appendOperand(sb, right, precedence(right) <= prec);
+    }
+
+    private static void appendOperand(StringBuilder sb, TroopNode operand, boolean parens) {
+        if (operand instanceof Group group) {
+            appendOperand(sb, group.expr(), parens);
+            return;
+        }
+        if (parens) sb.append(GROUP_OPEN);
+        appendMinimalText(sb, operand);
+        if (parens) sb.append(GROUP_CLOSE);
+    }
+
+    /**
+     * Returns a 64-bit structural hash of a tree.
+     * Trees that are equal have equal hashes, and with 64 bits unequal trees almost never collide.
+     * Use it on canonical trees for a hash of the meaning rather than the spelling.
+     *
+     * @param node tree to hash
+     * @return 64-bit hash
+     */
+    static long hash64(TroopNode node) {
+        long hash = switch (node) {
+            case Type type -> {
+                long h = 0xcbf29ce484222325L; // FNV-1a
+                for (int i = 0; i < type.code().length(); i++) {
+                    h ^= type.code().charAt(i);
+                    h *= 0x100000001b3L;
+                }
+                yield h;
+            }
+            case EitherUnit eitherUnit -> mix(hash64(eitherUnit.type()) + eitherUnit.count());
+            case Multiple mult -> mix(hash64(mult.expr()) + mult.count());
+            default -> {
+                long h = node.kind().hashCode();
+                for (TroopNode child : node.children()) h = mix(h * 31 + hash64(child));
+                yield h;
+            }
+        };
+        return mix(hash ^ node.kind().hashCode());
+    }
+
+    /** SplitMix64 finalizer, spreads every input bit over the output. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,638 @@
+package info.danbecker.dba;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The permutations of a TroopDef, made one at a time.
+ * <p>
+ * Each list slot of the desugared tree has a number of alternatives,
+ * for example "Gen", "Cv+LH", "4xAx" or "2xBd". A permutation takes one alternative from every slot.
+ * Rather than build the whole product up front, as {@link TroopDef#countOff} would,
+ * a mixed-radix counter with one digit per slot steps through it.
+ * The last slot turns fastest, so the order is the same as {@link TroopDef#permute()}.
+ * <p>
+ * The number of alternatives of each node is worked out once, by one pass over the tree:
+ * <ul>
+ * <li>"or" and "/" add the counts of their parts, and 3/4Bw has 2</li>
+ * <li>",", "+" and "//" multiply the counts of their parts</li>
+ * <li>a type has 1, and a multiple has the count of its part</li>
+ * </ul>
+ * So the exact number of permutations is known without making any of them,
+ * and the n-th permutation is built directly, digit by digit, by {@link #unrank(long)}.
+ * Counts are kept in longs. Only the total falls back to a BigInteger when it does not fit,
+ * see {@link #exactCount()}.
+ * <p>
+ * Nothing is built ahead, so memory does not grow with the number of permutations,
+ * the first one is ready at once, and callers may stop early.
+ * <p>
+ * The {@link #spliterator()} splits the index range of the permutations in halves
+ * and knows the exact size of each half, so a parallel stream shares the work evenly
+ * over the fork-join pool and still gives the sequential order to ordered operations such as toList.
+ * <p>
+ * A {@link Cursor} steps through the permutations as numbers rather than Strings,
+ * an element count per code and the alternative chosen in each slot, written into arrays the caller owns.
+ * As in a {@link Composition} and in {@link CountVector#legal(TroopNode)}, a dismounting element such as Kn//Sp
+ * gives no element counts. It is kept whole and counted on its own, see {@link #dismounts()}.
+ * It makes no objects per step, and a String is built only when asked for.
+ * <p>
+ * Random permutations are drawn uniformly by {@link #sample(SplittableRandom)}, which picks
+ * a uniform alternative in each slot, then goes down the slot choosing each part of an "or" by its count.
+ * No permutations are listed, so it costs one walk of the tree however many there are.
+ * <p>
+ * Many permutations are the same army in a different order, such as "Cv,LH" and "LH,Cv",
+ * or come from overlapping alternatives, such as "2xLH or Ps" next to "1xLH or Ps".
+ * {@link #distinct()} gives each {@link Composition} once. It works out the compositions of each node
+ * from those of its parts, dropping repeats at every step, so the raw permutations are never made.
+ * This is the same walk as {@link CountVector#legal(TroopNode)}, with compositions as the leaves.
+ * <p>
+ * A TroopPermutations is immutable and may be iterated many times. Each iterator is for one thread.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopPermutations implements Iterable<String> {
+    static Logger LOGGER = Logger.getLogger(TroopPermutations.class.getName());
+
+    /** Count of a total that does not fit a long. */
+    public static final long TOO_MANY = -1L;
+    /** Index ranges smaller than this are not split. */
+    static final long MIN_SPLIT = 256;
+
+    private final TroopNode tree;
+    private final List<TroopNode> slots;
+    private final long[] slotCounts;
+    // Alternatives of every node below the slots, by identity.
+    private final Map<TroopNode, Long> counts = new IdentityHashMap<>();
+    // Index of each distinct dismounting element, such as Kn//Sp, in the order first met.
+    private final Map<String, Integer> dismountIndexes = new LinkedHashMap<>();
+    // Index of the element of each alternative of every dismount node, by identity.
+    private final Map<TroopNode, int[]> dismountAlternatives = new IdentityHashMap<>();
+    private final List<String> dismounts;
+    private final long count;
+    private final BigInteger exactCount;
+
+    /**
+     * Prepares the permutations of the given army.
+     * @param troopDef army to permute
+     * @throws IllegalArgumentException for a null army, a single slot with more than Long.MAX_VALUE alternatives,
+     * or a dismounting element with more than {@link CountVector#MAX_VECTORS}
+     */
+    public TroopPermutations(TroopDef troopDef) {
+        this(troopDef, PermuteTrace.NONE);
+    }
+
+    /**
+     * Prepares the permutations of the given army, telling the trace
+     * how many alternatives each node has as they are counted.
+     * @param troopDef army to permute
+     * @param trace receives the count of each node, children before parents
+     * @throws IllegalArgumentException for a null army or trace, a single slot with more than Long.MAX_VALUE alternatives,
+     * or a dismounting element with more than {@link CountVector#MAX_VECTORS}
+     */
+    public TroopPermutations(TroopDef troopDef, PermuteTrace trace) {
+        if (null == troopDef) throw new IllegalArgumentException("troop def is null");
+        if (null == trace) throw new IllegalArgumentException("trace is null");
+        this.tree = troopDef.simple;
+        this.slots = troopDef.simple.exprs();
+        this.slotCounts = new long[slots.size()];
+        BigInteger total = BigInteger.ONE;
+        for (int sloti = 0; sloti < slotCounts.length; sloti++) {
+            try {
+                slotCounts[sloti] = count(slots.get(sloti), trace, 0);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("slot " + sloti + " of \"" + troopDef + "\" has too many alternatives", e);
+            }
+            total = total.multiply(BigInteger.valueOf(slotCounts[sloti]));
+        }
+        this.exactCount = total;
+        this.count = (total.bitLength() < Long.SIZE) ? total.longValue() : TOO_MANY;
+        this.dismounts = List.copyOf(dismountIndexes.keySet());
+    }
+
+    /** Counts and keeps the alternatives of a node and all below it. Throws ArithmeticException past a long. */
+    private long count(TroopNode node, PermuteTrace trace, int depth) {
+        int below = depth + 1;
+        long nodeCount = switch (node) {
+            case TroopNode.Type ignored -> 1L;
+            case TroopNode.EitherUnit eitherUnit -> (null == eitherUnit.first()) ? 1L : 2L;
+            case TroopNode.Group group -> count(group.expr(), trace, below);
+            case TroopNode.Multiple mult -> count(mult.expr(), trace, below);
+            case TroopNode.Either either -> Math.addExact(count(either.left(), trace, below), count(either.right(), trace, below));
+            case TroopNode.Or or -> Math.addExact(count(or.left(), trace, below), count(or.right(), trace, below));
+            case TroopNode.And and -> Math.multiplyExact(count(and.left(), trace, below), count(and.right(), trace, below));
+            case TroopNode.Dismount dismount -> {
+                long product = Math.multiplyExact(count(dismount.mounted(), trace, below), count(dismount.dismounted(), trace, below));
+                indexDismount(dismount, product);
+                yield product;
+            }
+            case TroopNode.Exprs exprs -> {
+                long product = 1L;
+                for (TroopNode expr : exprs.exprs()) product = Math.multiplyExact(product, count(expr, trace, below));
+                yield product;
+            }
+        };
+        counts.put(node, nodeCount);
+        trace.permuted(node, nodeCount, depth);
+        return nodeCount;
+    }
+
+    /** Keeps the index of the dismounting element of each alternative of a dismount node. */
+    private void indexDismount(TroopNode.Dismount dismount, long dismountCount) {
+        if (dismountCount > CountVector.MAX_VECTORS)
+            throw new IllegalArgumentException("dismount \"" + TroopNode.text(dismount) + "\" has more than "
+                    + CountVector.MAX_VECTORS + " alternatives");
+        int[] alternatives = new int[(int) dismountCount];
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < alternatives.length; k++) {
+            sb.setLength(0);
+            unrank(dismount, k, sb);
+            alternatives[k] = dismountIndexes.computeIfAbsent(sb.toString(), text -> dismountIndexes.size());
+        }
+        dismountAlternatives.put(dismount, alternatives);
+    }
+
+    /**
+     * Returns the number of permutations.
+     * @return the exact count, or {@link #TOO_MANY} when it does not fit a long
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of permutations, however large.
+     * @return the exact count
+     */
+    public BigInteger exactCount() {
+        return exactCount;
+    }
+
+    /**
+     * Builds the n-th permutation directly, in the order of {@link #iterator()} and {@link TroopDef#permute()}.
+     * Useful for paging through a large number of permutations.
+     * @param n index of the permutation, from 0
+     * @return the n-th army String, suitable for parsing
+     * @throws IllegalArgumentException when n is negative or not less than the count
+     */
+    public String unrank(long n) {
+        if (n < 0 || (TOO_MANY != count && n >= count))
+            throw new IllegalArgumentException("permutation " + n + " is not in 0 to " + exactCount + " exclusive");
+        long[] digits = new long[slots.size()];
+        long rest = n;
+        for (int sloti = digits.length - 1; 0 <= sloti; sloti--) {
+            digits[sloti] = rest % slotCounts[sloti];
+            rest /= slotCounts[sloti];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int sloti = 0; sloti < digits.length; sloti++) {
+            if (0 < sloti) sb.append(TroopNode.LIST_DELIM);
+            unrank(slots.get(sloti), digits[sloti], sb);
+        }
+        return sb.toString();
+    }
+
+    /** Appends the k-th alternative of a node. Alternatives of the left part of an "or" come first. */
+    private void unrank(TroopNode node, long k, StringBuilder sb) {
+        switch (node) {
+            case TroopNode.Type type -> sb.append(type.code());
+            case TroopNode.EitherUnit eitherUnit -> {
+                TroopNode.Type first = eitherUnit.first();
+                sb.append((null != first && 0 == k) ? first.code() : eitherUnit.type().code());
+            }
+            case TroopNode.Group group -> unrank(group.expr(), k, sb);
+            case TroopNode.Multiple mult -> {
+                sb.append(mult.count()).append(TroopNode.MULTIPLE_DELIM);
+                unrank(mult.expr(), k, sb);
+            }
+            case TroopNode.Either either -> unrankAlternative(either.left(), either.right(), k, sb);
+            case TroopNode.Or or -> unrankAlternative(or.left(), or.right(), k, sb);
+            // The left part turns slowest, as in countOff.
+            case TroopNode.And and -> unrankProduct(and.left(), TroopNode.AND_DELIM, and.right(), k, sb);
+            case TroopNode.Dismount dismount ->
+                    unrankProduct(dismount.mounted(), TroopNode.DISMOUNT_DELIM, dismount.dismounted(), k, sb);
+            case TroopNode.Exprs exprs -> throw new IllegalArgumentException("nested list " + exprs);
+        }
+    }
+
+    private void unrankAlternative(TroopNode left, TroopNode right, long k, StringBuilder sb) {
+        long leftCount = counts.get(left);
+        if (k < leftCount) unrank(left, k, sb);
+        else unrank(right, k - leftCount, sb);
+    }
+
+    private void unrankProduct(TroopNode left, String delim, TroopNode right, long k, StringBuilder sb) {
+        long rightCount = counts.get(right);
+        unrank(left, k / rightCount, sb);
+        sb.append(delim);
+        unrank(right, k % rightCount, sb);
+    }
+
+    /**
+     * The distinct compositions of an army, and how many permutations they came from.
+     * @param compositions each composition once, in the order of its first permutation
+     * @param rawCount number of permutations, with repeats
+     */
+    public record Distinct(List<Composition> compositions, BigInteger rawCount) {
+        public Distinct {
+            compositions = List.copyOf(compositions);
+        }
+
+        /**
+         * Returns the number of permutations that repeat an earlier composition.
+         * @return raw count less distinct count
+         */
+        public BigInteger collapsed() {
+            return rawCount.subtract(BigInteger.valueOf(compositions.size()));
+        }
+    }
+
+    /**
+     * Returns each distinct composition of the army once, in the order of its first permutation.
+     * Two permutations with the same elements in any order or grouping are the same composition.
+     * @return the distinct compositions and the raw permutation count
+     * @throws IllegalArgumentException when any node has more than {@link CountVector#MAX_VECTORS} compositions
+     */
+    public Distinct distinct() {
+        try {
+            return new Distinct(List.copyOf(CountVector.multisets(tree, compositionSums)), exactCount);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("more than " + CountVector.MAX_VECTORS + " distinct compositions", e);
+        }
+    }
+
+    /** Adds up compositions as {@link CountVector#legal} adds up counts. Each dismounting element is kept whole. */
+    private final CountVector.Multiset<Composition> compositionSums = new CountVector.Multiset<>() {
+        @Override public Composition zero() { return new Composition(new CountVector(new int[CountVector.getCodes().size()]), List.of()); }
+        @Override public Composition of(String code) { return Composition.of(code); }
+        @Override public Composition plus(Composition left, Composition right) { return left.plus(right); }
+        @Override public Composition times(Composition part, int multiple) { return part.times(multiple); }
+
+        // Kn//Sp is neither a Kn nor a Sp.
+        @Override public Collection<Composition> of(TroopNode.Dismount dismount) {
+            List<Composition> compositions = new ArrayList<>();
+            for (int dismounti : dismountAlternatives.get(dismount)) compositions.add(Composition.ofDismount(dismounts.get(dismounti)));
+            return compositions;
+        }
+    };
+
+    /**
+     * Draws one permutation at random, each with the same chance.
+     * @param random source of randomness
+     * @return army String, suitable for parsing
+     * @throws IllegalArgumentException when random is null or there are no permutations
+     */
+    public String sample(SplittableRandom random) {
+        if (null == random) throw new IllegalArgumentException("random is null");
+        if (0 == exactCount.signum()) throw new IllegalArgumentException("no permutations to sample");
+        StringBuilder sb = new StringBuilder();
+        for (int sloti = 0; sloti < slotCounts.length; sloti++) {
+            if (0 < sloti) sb.append(TroopNode.LIST_DELIM);
+            unrank(slots.get(sloti), random.nextLong(slotCounts[sloti]), sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Draws a number of permutations at random, with repeats.
+     * Sample i comes from its own generator, seeded from one draw of the given random and i,
+     * so the same seed gives the same samples in the same order, sequential or parallel.
+     * @param random source of randomness, drawn once
+     * @param size number of samples
+     * @return a sequential stream of army Strings, call parallel() to share the work
+     * @throws IllegalArgumentException when random is null, size is negative, or there are no permutations
+     */
+    public Stream<String> samples(SplittableRandom random, long size) {
+        if (null == random) throw new IllegalArgumentException("random is null");
+        if (size < 0) throw new IllegalArgumentException("sample size " + size + " is negative");
+        if (0 == exactCount.signum()) throw new IllegalArgumentException("no permutations to sample");
+        long seed = random.nextLong();
+        return LongStream.range(0, size).mapToObj(i -> sample(seeded(seed, i)));
+    }
+
+    /** Returns the generator of sample i of a seed. Spreads the bits so neighbouring samples are not alike. */
+    static SplittableRandom seeded(long seed, long i) {
+        long z = seed + i * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new SplittableRandom(z ^ (z >>> 31));
+    }
+
+    /**
+     * Returns the number of list slots, the length of the choices of a {@link Cursor}.
+     * @return number of slots
+     */
+    public int slotCount() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the distinct dismounting elements of the army, such as Kn//Sp, in the order first met.
+     * These index the dismount counts of a {@link Cursor}.
+     * @return unmodifiable list of dismounting elements, empty when none
+     */
+    public List<String> dismounts() {
+        return dismounts;
+    }
+
+    /**
+     * Returns a cursor over the permutations that writes into new arrays.
+     * @return a cursor before the first permutation
+     */
+    public Cursor cursor() {
+        return new Cursor(new int[CountVector.getCodes().size()], new long[slots.size()]);
+    }
+
+    /**
+     * Returns a cursor over the permutations that writes into the given arrays.
+     * @param counts element counts, indexed as {@link CountVector#indexOf(String)}
+     * @param choices alternative of each slot, of length {@link #slotCount()}
+     * @return a cursor before the first permutation
+     * @throws IllegalArgumentException when an array is null or the wrong length
+     */
+    public Cursor cursor(int[] counts, long[] choices) {
+        return new Cursor(counts, choices);
+    }
+
+    /**
+     * Steps through the permutations in order, keeping the current one in the caller's arrays.
+     * The counts are updated for the slots whose choice turns, so a step costs about one slot,
+     * and no objects are made. A dismounting element such as Kn//Sp is not in the element counts,
+     * it is counted in {@link #dismounts()}. The arrays are not defined after {@link #advance()} returns false.
+     * <p>
+     * For example
+     * <pre>
+     * TroopPermutations.Cursor cursor = troopDef.getPermutations().cursor(counts, choices);
+     * while (cursor.advance()) score(counts);
+     * </pre>
+     * A cursor is for one thread.
+     */
+    public final class Cursor {
+        private final int[] counts;
+        private final long[] choices;
+        private final int[] dismountCounts = new int[dismounts.size()];
+        private final StringBuilder sb = new StringBuilder();
+        private long index = -1;
+        private boolean hasNext = 0 != exactCount.signum();
+
+        private Cursor(int[] counts, long[] choices) {
+            if (null == counts) throw new IllegalArgumentException("counts are null");
+            if (null == choices) throw new IllegalArgumentException("choices are null");
+            if (CountVector.getCodes().size() != counts.length)
+                throw new IllegalArgumentException("counts length " + counts.length + " is not code count " + CountVector.getCodes().size());
+            if (slots.size() != choices.length)
+                throw new IllegalArgumentException("choices length " + choices.length + " is not slot count " + slots.size());
+            this.counts = counts;
+            this.choices = choices;
+        }
+
+        /**
+         * Moves to the next permutation.
+         * @return false when there are no more permutations
+         */
+        public boolean advance() {
+            if (!hasNext) return false;
+            if (-1 == index) {
+                Arrays.fill(counts, 0);
+                Arrays.fill(choices, 0);
+                Arrays.fill(dismountCounts, 0);
+                for (int sloti = 0; sloti < choices.length; sloti++) addCounts(slots.get(sloti), 0, 1, counts, dismountCounts);
+                index = 0;
+                return true;
+            }
+            for (int sloti = choices.length - 1; 0 <= sloti; sloti--) {
+                addCounts(slots.get(sloti), choices[sloti], -1, counts, dismountCounts);
+                if (++choices[sloti] < slotCounts[sloti]) {
+                    addCounts(slots.get(sloti), choices[sloti], 1, counts, dismountCounts);
+                    index++;
+                    return true;
+                }
+                choices[sloti] = 0;
+                addCounts(slots.get(sloti), 0, 1, counts, dismountCounts);
+            }
+            hasNext = false;
+            return false;
+        }
+
+        /** @return index of the current permutation, in the order of {@link #iterator()} */
+        public long index() {
+            return index;
+        }
+
+        /** @return the counts array, updated in place */
+        public int[] counts() {
+            return counts;
+        }
+
+        /** @return the choices array, updated in place */
+        public long[] choices() {
+            return choices;
+        }
+
+        /** @return the count of each dismounting element, indexed as {@link TroopPermutations#dismounts()}, updated in place */
+        public int[] dismounts() {
+            return dismountCounts;
+        }
+
+        /**
+         * Builds the String of the current permutation, the same as {@link #unrank(long)}.
+         * @return army String, suitable for parsing
+         * @throws IllegalStateException before the first or after the last permutation
+         */
+        public String render() {
+            if (-1 == index || !hasNext) throw new IllegalStateException("no current permutation");
+            sb.setLength(0);
+            for (int sloti = 0; sloti < choices.length; sloti++) {
+                if (0 < sloti) sb.append(TroopNode.LIST_DELIM);
+                unrank(slots.get(sloti), choices[sloti], sb);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Adds scale times the element and dismount counts of the k-th alternative of a node. */
+    private void addCounts(TroopNode node, long k, int scale, int[] elementCounts, int[] dismountCounts) {
+        switch (node) {
+            case TroopNode.Type type -> elementCounts[CountVector.indexOf(type.code())] += scale;
+            case TroopNode.EitherUnit eitherUnit -> {
+                TroopNode.Type first = eitherUnit.first();
+                String code = (null != first && 0 == k) ? first.code() : eitherUnit.type().code();
+                elementCounts[CountVector.indexOf(code)] += scale;
+            }
+            case TroopNode.Group group -> addCounts(group.expr(), k, scale, elementCounts, dismountCounts);
+            case TroopNode.Multiple mult -> addCounts(mult.expr(), k, scale * mult.count(), elementCounts, dismountCounts);
+            case TroopNode.Either either -> {
+                long leftCount = counts.get(either.left());
+                if (k < leftCount) addCounts(either.left(), k, scale, elementCounts, dismountCounts);
+                else addCounts(either.right(), k - leftCount, scale, elementCounts, dismountCounts);
+            }
+            case TroopNode.Or or -> {
+                long leftCount = counts.get(or.left());
+                if (k < leftCount) addCounts(or.left(), k, scale, elementCounts, dismountCounts);
+                else addCounts(or.right(), k - leftCount, scale, elementCounts, dismountCounts);
+            }
+            case TroopNode.And and -> {
+                long rightCount = counts.get(and.right());
+                addCounts(and.left(), k / rightCount, scale, elementCounts, dismountCounts);
+                addCounts(and.right(), k % rightCount, scale, elementCounts, dismountCounts);
+            }
+            case TroopNode.Dismount dismount -> dismountCounts[dismountAlternatives.get(dismount)[(int) k]] += scale;
+            case TroopNode.Exprs exprs -> throw new IllegalArgumentException("nested list " + exprs);
+        }
+    }
+
+    /**
+     * Returns the permutations in order, one at a time.
+     * @return a new iterator from the first permutation
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Odometer();
+    }
+
+    /**
+     * Returns the permutations in order as a lazy stream.
+     * @return a sequential stream of army Strings, suitable for parsing
+     */
+    public Stream<String> stream() {
+        return stream(false);
+    }
+
+    /**
+     * Returns the permutations as a lazy stream, which may be parallel.
+     * Ordered operations such as toList or forEachOrdered keep the sequential order.
+     * @param parallel whether the stream is parallel
+     * @return a stream of army Strings, suitable for parsing
+     */
+    public Stream<String> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * Returns a spliterator over the permutations, which is SIZED and SUBSIZED
+     * when the count fits a long. Totals past a long are not split evenly.
+     * @return a spliterator from the first permutation
+     */
+    @Override
+    public Spliterator<String> spliterator() {
+        if (TOO_MANY == count)
+            return Spliterators.spliteratorUnknownSize(iterator(),
+                    Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return new RangeSpliterator(0, count);
+    }
+
+    /** The permutations from index next to end, exclusive. Splits off its first half until it starts. */
+    private final class RangeSpliterator implements Spliterator<String> {
+        private long next;
+        private final long end;
+        private Odometer odometer; // made on the first advance
+
+        RangeSpliterator(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            if (next >= end) return false;
+            if (null == odometer) odometer = new Odometer(next);
+            next++;
+            action.accept(odometer.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            long size = end - next;
+            if (null != odometer || size < MIN_SPLIT) return null;
+            long mid = next + size / 2;
+            RangeSpliterator prefix = new RangeSpliterator(next, mid);
+            next = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+        }
+    }
+
+    /**
+     * A mixed-radix counter with one digit per slot, the last digit turns fastest.
+     * Each slot keeps the text of its current alternative, which is built again only when its digit turns.
+     */
+    private final class Odometer implements Iterator<String> {
+        private final long[] digits = new long[slots.size()];
+        private final String[] texts = new String[slots.size()];
+        private final StringBuilder sb = new StringBuilder();
+        private boolean hasNext = 0 != exactCount.signum();
+
+        Odometer() {
+            this(0);
+        }
+
+        /** Starts at the given permutation index, which must be less than the count. */
+        Odometer(long start) {
+            long rest = start;
+            for (int sloti = digits.length - 1; 0 <= sloti; sloti--) {
+                digits[sloti] = rest % slotCounts[sloti];
+                rest /= slotCounts[sloti];
+            }
+            if (hasNext) {
+                for (int sloti = 0; sloti < texts.length; sloti++) render(sloti);
+            }
+        }
+
+        private void render(int sloti) {
+            sb.setLength(0);
+            unrank(slots.get(sloti), digits[sloti], sb);
+            texts[sloti] = sb.toString();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext) throw new NoSuchElementException();
+            String permutation = String.join(TroopNode.LIST_DELIM, texts);
+            advance();
+            return permutation;
+        }
+
+        private void advance() {
+            for (int sloti = digits.length - 1; 0 <= sloti; sloti--) {
+                if (++digits[sloti] < slotCounts[sloti]) {
+                    render(sloti);
+                    return;
+                }
+                digits[sloti] = 0;
+                render(sloti);
+            }
+            hasNext = false;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package info.danbecker.dba;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Exact statistics of the element types over all the permutations of a TroopDef, worked out without making any.
+ * <p>
+ * Each node of the desugared tree is summed up once, from the bottom up:
+ * <ul>
+ * <li>the number of permutations, as in {@link TroopPermutations}</li>
+ * <li>the least and most elements of each ElementType</li>
+ * <li>the total of each ElementType over all permutations, which divided by the number is the expected count
+ * when every permutation is equally likely</li>
+ * <li>the number of permutations for each total of element equivalents</li>
+ * </ul>
+ * An "or" takes the least and most of its parts and adds their totals and distributions.
+ * A "+" or "," adds the least and most of its parts, and convolves their distributions.
+ * <p>
+ * Element equivalents count a double element such as 8Sp or 6Cv as 2, see {@link ElementType#isDouble(String)}.
+ * A general such as "Gen" in "Cv+Gen" marks the element it rides with, so it is counted in its type but adds no equivalents.
+ * A dismounting element such as Kn//Sp counts as its mounted element.
+ * <p>
+ * TroopStats are immutable.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ * @version DBA30
+ */
+public final class TroopStats {
+    static Logger LOGGER = Logger.getLogger(TroopStats.class.getName());
+
+    private static final ElementType[] TYPES = ElementType.values();
+
+    private final BigInteger count;
+    private final int[] min;
+    private final int[] max;
+    private final BigInteger[] sums;
+    private final SortedMap<Integer, BigInteger> equivalents;
+
+    /** The summary of one node. */
+    private record Summary(BigInteger count, int[] min, int[] max, BigInteger[] sums, TreeMap<Integer, BigInteger> equivalents) {}
+
+    private TroopStats(Summary summary) {
+        this.count = summary.count;
+        this.min = summary.min;
+        this.max = summary.max;
+        this.sums = summary.sums;
+        this.equivalents = Collections.unmodifiableSortedMap(summary.equivalents);
+    }
+
+    /**
+     * Works out the statistics of the given army.
+     * @param troopDef army definition
+     * @return statistics over all its permutations
+     */
+    public static TroopStats of(TroopDef troopDef) {
+        if (null == troopDef) throw new IllegalArgumentException("troop def is null");
+        return new TroopStats(summarize(troopDef.simple));
+    }
+
+    private static Summary summarize(TroopNode node) {
+        return switch (node) {
+            case TroopNode.Type type -> unit(type.code());
+            case TroopNode.EitherUnit eitherUnit -> {
+                TroopNode.Type first = eitherUnit.first();
+                Summary second = unit(eitherUnit.type().code());
+                yield (null == first) ? second : either(unit(first.code()), second);
+            }
+            case TroopNode.Group group -> summarize(group.expr());
+            case TroopNode.Multiple mult -> times(summarize(mult.expr()), mult.count());
+            case TroopNode.Either either -> either(summarize(either.left()), summarize(either.right()));
+            case TroopNode.Or or -> either(summarize(or.left()), summarize(or.right()));
+            case TroopNode.And and -> both(summarize(and.left()), summarize(and.right()));
+            // Deployed mounted, the dismounted choices only add to the count.
+            case TroopNode.Dismount dismount -> {
+                Summary mounted = summarize(dismount.mounted());
+                yield scaleCount(mounted, summarize(dismount.dismounted()).count);
+            }
+            case TroopNode.Exprs exprs -> {
+                Summary total = null;
+                for (TroopNode expr : exprs.exprs()) {
+                    Summary part = summarize(expr);
+                    total = (null == total) ? part : both(total, part);
+                }
+                yield total;
+            }
+        };
+    }
+
+    private static Summary unit(String code) {
+        int[] counts = new int[TYPES.length];
+        BigInteger[] sums = new BigInteger[TYPES.length];
+        Arrays.fill(sums, BigInteger.ZERO);
+        ElementType type = typeOf(code);
+        if (null != type) {
+            counts[type.ordinal()] = 1;
+            sums[type.ordinal()] = BigInteger.ONE;
+        }
+        TreeMap<Integer, BigInteger> equivalents = new TreeMap<>();
+        equivalents.put(equivalents(code), BigInteger.ONE);
+        return new Summary(BigInteger.ONE, counts, counts.clone(), sums, equivalents);
+    }
+
+    /** Returns the ElementType of a code, including mounted infantry such as Mtd-4Bw. */
+    static ElementType typeOf(String code) {
+        if (code.startsWith("Mtd-")) return ElementType.MOUNTED_INFANTRY;
+        return ElementType.fromCode(code);
+    }
+
+    /** Returns the element equivalents of a code, 2 for doubles and 0 for a general riding with an element. */
+    static int equivalents(String code) {
+        if ("Gen".equals(code)) return 0;
+        return ElementType.isDouble(code) ? 2 : 1;
+    }
+
+    private static Summary either(Summary left, Summary right) {
+        int[] min = new int[TYPES.length];
+        int[] max = new int[TYPES.length];
+        BigInteger[] sums = new BigInteger[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            min[i] = Math.min(left.min[i], right.min[i]);
+            max[i] = Math.max(left.max[i], right.max[i]);
+            sums[i] = left.sums[i].add(right.sums[i]);
+        }
+        TreeMap<Integer, BigInteger> equivalents = new TreeMap<>(left.equivalents);
+        right.equivalents.forEach((total, ways) -> equivalents.merge(total, ways, BigInteger::add));
+        return new Summary(left.count.add(right.count), min, max, sums, equivalents);
+    }
+
+    private static Summary both(Summary left, Summary right) {
+        int[] min = new int[TYPES.length];
+        int[] max = new int[TYPES.length];
+        BigInteger[] sums = new BigInteger[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            min[i] = left.min[i] + right.min[i];
+            max[i] = left.max[i] + right.max[i];
+            // Each left permutation goes with every right one, and the other way round.
+            sums[i] = left.sums[i].multiply(right.count).add(right.sums[i].multiply(left.count));
+        }
+        TreeMap<Integer, BigInteger> equivalents = new TreeMap<>();
+        for (Map.Entry<Integer, BigInteger> l : left.equivalents.entrySet()) {
+            for (Map.Entry<Integer, BigInteger> r : right.equivalents.entrySet())
+                equivalents.merge(l.getKey() + r.getKey(), l.getValue().multiply(r.getValue()), BigInteger::add);
+        }
+        return new Summary(left.count.multiply(right.count), min, max, sums, equivalents);
+    }
+
+    private static Summary times(Summary part, int multiple) {
+        int[] min = new int[TYPES.length];
+        int[] max = new int[TYPES.length];
+        BigInteger[] sums = new BigInteger[TYPES.length];
+        BigInteger scale = BigInteger.valueOf(multiple);
+        for (int i = 0; i < TYPES.length; i++) {
+            min[i] = part.min[i] * multiple;
+            max[i] = part.max[i] * multiple;
+            sums[i] = part.sums[i].multiply(scale);
+        }
+        // A multiple repeats one choice, it does not choose again.
+        TreeMap<Integer, BigInteger> equivalents = new TreeMap<>();
+        part.equivalents.forEach((total, ways) -> equivalents.put(total * multiple, ways));
+        return new Summary(part.count, min, max, sums, equivalents);
+    }
+
+    private static Summary scaleCount(Summary part, BigInteger ways) {
+        BigInteger[] sums = new BigInteger[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) sums[i] = part.sums[i].multiply(ways);
+        TreeMap<Integer, BigInteger> equivalents = new TreeMap<>();
+        part.equivalents.forEach((total, count) -> equivalents.put(total, count.multiply(ways)));
+        return new Summary(part.count.multiply(ways), part.min, part.max, sums, equivalents);
+    }
+
+    /**
+     * Returns the number of permutations.
+     * @return the exact count, as {@link TroopDef#permuteCount()}
+     */
+    public BigInteger count() {
+        return count;
+    }
+
+    /**
+     * Returns the least number of elements of the given type in any permutation.
+     * @param type element type
+     * @return least count
+     */
+    public int min(ElementType type) {
+        return min[type.ordinal()];
+    }
+
+    /**
+     * Returns the most elements of the given type in any permutation.
+     * @param type element type
+     * @return most count
+     */
+    public int max(ElementType type) {
+        return max[type.ordinal()];
+    }
+
+    /**
+     * Returns the mean number of elements of the given type, every permutation equally likely.
+     * @param type element type
+     * @return expected count
+     */
+    public double expected(ElementType type) {
+        return new BigDecimal(sums[type.ordinal()]).divide(new BigDecimal(count), MathContext.DECIMAL64).doubleValue();
+    }
+
+    /**
+     * Returns the number of permutations for each total of element equivalents.
+     * For example "3Bd,8x4Bw,3xPs" gives {12=1}, and "Sp or 8Sp" gives {1=1, 2=1}.
+     * @return unmodifiable map from total equivalents to number of permutations, in total order
+     */
+    public SortedMap<Integer, BigInteger> equivalents() {
+        return equivalents;
+    }
+
+    /** @return the least total of element equivalents */
+    public int minEquivalents() {
+        return equivalents.firstKey();
+    }
+
+    /** @return the most total of element equivalents */
+    public int maxEquivalents() {
+        return equivalents.lastKey();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("count=" + count);
+        for (ElementType type : TYPES) {
+            if (0 != max(type))
+                sb.append(String.format(", %s=%d..%d~%.2f", type, min(type), max(type), expected(type)));
+        }
+        return sb.append(", equivalents=").append(equivalents).toString();
+    }
+}
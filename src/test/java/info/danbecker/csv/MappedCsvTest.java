@@ -0,0 +1,106 @@
+package info.danbecker.csv;
+
+import com.opencsv.bean.CsvToBeanBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static info.danbecker.dba.ArmyList.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedCsvTest {
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSameAsOpenCsv() throws IOException {
+        Path headerPath = Paths.get(PATH_DEFAULT, ARMY_HEADER_DEFAULT);
+        List<ArmyHeaderBean> headerBeans = new CsvToBeanBuilder<ArmyHeaderBean>(new FileReader(headerPath.toString()))
+                .withType(ArmyHeaderBean.class).build().parse();
+        MappedCsv headers = MappedCsv.open(headerPath);
+        assertEquals(List.of("ArmyRef", "VarCount", "GroupName"), headers.columns());
+        assertEquals(headerBeans.size(), headers.rowCount());
+        for (int i = 0; i < headers.rowCount(); i++) {
+            MappedCsv.Row row = headers.row(i);
+            assertEquals(headerBeans.get(i).armyRef, row.string(headers.column("ArmyRef")));
+            assertEquals(headerBeans.get(i).varCount, row.intField(headers.column("VarCount")));
+            // Quotes inside a field are kept, as THE "GREAT REVOLT".
+            assertEquals(headerBeans.get(i).name, row.string(headers.column("GroupName")));
+        }
+
+        Path variantPath = Paths.get(PATH_DEFAULT, ARMY_DEFAULT);
+        List<ArmyVariantBean> variantBeans = new CsvToBeanBuilder<ArmyVariantBean>(new FileReader(variantPath.toString()))
+                .withType(ArmyVariantBean.class).build().parse();
+        MappedCsv variants = MappedCsv.open(variantPath);
+        assertEquals(variantBeans.size(), variants.rowCount());
+        for (int i = 0; i < variants.rowCount(); i++) {
+            MappedCsv.Row row = variants.row(i);
+            ArmyVariantBean bean = variantBeans.get(i);
+            assertEquals(bean.book, row.intField(variants.column("Book")));
+            assertEquals(bean.armyNum, row.intField(variants.column("Army")));
+            assertEquals(bean.agg, row.intField(variants.column("Agg")));
+            // Doubled quotes are made single, as "Guti ""Great Revolt"" Army".
+            assertEquals(bean.name, row.string(variants.column("Army Name")));
+            assertEquals(bean.enemies, row.field(variants.column("Enemies")).toString());
+            assertEquals(bean.allies, row.string(variants.column("Allies")));
+            assertEquals(bean.ele1, row.string(variants.column("1")));
+        }
+        // Columns the beans leave out.
+        assertEquals(1, variants.row(0).intField(variants.column("Check")));
+        assertEquals(1, variants.row(0).intField(variants.column("Bd")));
+        assertEquals(0, variants.row(0).intField(variants.column("Kn")));
+    }
+
+    @Test
+    public void testQuotes() throws IOException {
+        Path path = Files.createTempFile("MappedCsv", ".csv");
+        try {
+            Files.writeString(path, "A,B,C\r\n1,\"x, \"\"y\"\"\",-42\r\n\r\n2,say \"hi\"\n\"multi\nline\",é,7", StandardCharsets.UTF_8);
+            MappedCsv csv = MappedCsv.open(path);
+            assertEquals(3, csv.rowCount());
+            assertEquals(List.of("A", "B", "C"), csv.columns());
+
+            MappedCsv.Row row = csv.row(0);
+            assertEquals(1, row.intField(0));
+            assertEquals("x, \"y\"", row.string(1));
+            assertEquals("x, \"y\"", row.field(1).toString());
+            assertEquals(-42, row.intField(2));
+
+            // Short rows have empty fields at the end.
+            row = csv.row(1);
+            assertEquals("say \"hi\"", row.string(1));
+            assertTrue(row.isEmpty(2));
+            assertEquals("", row.field(2).toString());
+            assertThrows(IllegalArgumentException.class, () -> csv.row(1).intField(2));
+            assertThrows(IllegalArgumentException.class, () -> csv.row(1).intField(1));
+
+            row = csv.row(2);
+            assertEquals("multi\nline", row.string(0));
+            assertEquals("é", row.field(1).toString());
+            CharSequence seven = row.field(2);
+            assertEquals(1, seven.length());
+            assertEquals('7', seven.charAt(0));
+
+            assertThrows(IndexOutOfBoundsException.class, () -> csv.row(3));
+            assertThrows(IllegalArgumentException.class, () -> csv.column("D"));
+
+            // Backslash escapes, as opencsv.
+            Files.writeString(path, "A,B\nMAKKAN\\, DILMUN,\"q\\\"r\"\n");
+            MappedCsv escapes = MappedCsv.open(path);
+            assertEquals("MAKKAN, DILMUN", escapes.row(0).string(0));
+            assertEquals("MAKKAN, DILMUN", escapes.row(0).field(0).toString());
+            assertEquals("q\"r", escapes.row(0).string(1));
+            // The file was read at open, so rewriting it leaves the rows as they were.
+            assertEquals("x, \"y\"", csv.row(0).string(1));
+
+            Files.writeString(path, "A,B\n\"open,2\n");
+            assertThrows(IllegalArgumentException.class, () -> MappedCsv.open(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -3,8 +3,14 @@ package info.danbecker.dba;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
 
 import static info.danbecker.dba.ArmyList.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -235,4 +241,140 @@ public class ArmyListTest {
         assertEquals(ArmyRef.parse("I/1a"), variants.getFirst().getArmyRef());
         assertEquals(ArmyRef.parse("IV/85b"), variants.getLast().getArmyRef());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testArmyListByInstance() throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.getByInstance((TroopDef) null));
+
+        // Load something
+        ArmyList.main(LOAD_ARGS);
+
+        List<ArmyVariant> all = Armies.values().stream()
+                .flatMap(army -> army.getVariants().stream())
+                .sorted()
+                .toList();
+        ArmyVariant variant = all.stream()
+                .filter(av -> av.getArmyRef().equals(ArmyRef.parse("I/1a")))
+                .findFirst().orElseThrow();
+        for (String instStr : variant.getTroopDef().permute()) {
+            List<ArmyRef> refs = ArmyList.getByInstance(instStr);
+            assertTrue(refs.contains(variant.getArmyRef()), instStr);
+            // Same as checking every variant one after another.
+            TroopDef instance = TroopDef.of(instStr);
+            assertEquals(all.stream().filter(av -> av.getTroopDef().isInstance(instance)).map(ArmyVariant::getArmyRef).toList(),
+                    refs, instStr);
+        }
+        // Choices left in the army are matched against every variant.
+        assertTrue(ArmyList.getByInstance(variant.getTroopDef()).contains(variant.getArmyRef()));
+        assertEquals(List.of(), ArmyList.getByInstance("12xWWg"));
+
+        // The index narrows a concrete army to the variants that can field all of its codes.
+        ArmyList.VariantIndex index = ArmyList.getVariantIndex();
+        assertEquals(ALL_VARIANT_COUNT, index.variants.size());
+        assertEquals(ArmyList.getByElementType("WWg").size(), index.candidates(TroopDef.of("WWg")).cardinality());
+        assertEquals(ALL_VARIANT_COUNT, index.candidates(TroopDef.of("WWg or Cv")).cardinality());
+        // Concrete once desugared.
+        assertEquals(index.candidates(TroopDef.of("WWg")), index.candidates(TroopDef.of("WWg or WWg")));
+        assertEquals(index.candidates(TroopDef.of("WWg")), index.candidates(TroopDef.of("1x(WWg)")));
+    }
+
+    @Test
+    public void testValidateAll() throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.validateAll(null));
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.validateAll(List.of(), 0));
+
+        // Load something
+        ArmyList.main(LOAD_ARGS);
+
+        ArmyRef ref = ArmyRef.parse("I/1a");
+        ArmyVariant variant = Armies.get(ArmyRef.parse("I/1")).getVariants().getFirst();
+        assertEquals(ref, variant.getArmyRef());
+        String legalStr = variant.getTroopDef().permute().getFirst();
+        List<ArmyList.Submission> submissions = new ArrayList<>();
+        submissions.add(new ArmyList.Submission(ref, legalStr));
+        submissions.add(new ArmyList.Submission(ref, "12xWWg"));
+        submissions.add(new ArmyList.Submission(ref, "(Ps"));
+        submissions.add(new ArmyList.Submission(new ArmyRef(1, 1, 25), legalStr));
+        submissions.add(null);
+        submissions.add(new ArmyList.Submission(ref, null));
+        // Nested too deeply to parse on a pool thread stack.
+        submissions.add(new ArmyList.Submission(ref, "(".repeat(20000) + "Ps" + ")".repeat(20000)));
+        for (String instStr : variant.getTroopDef().permute())
+            submissions.add(new ArmyList.Submission(ref, instStr));
+
+        List<ArmyList.Verdict> verdicts = ArmyList.validateAll(submissions, 3);
+        assertEquals(submissions.size(), verdicts.size());
+        assertEquals(ArmyList.Outcome.LEGAL, verdicts.get(0).outcome());
+        assertTrue(verdicts.get(0).isLegal());
+        assertEquals(ArmyList.Outcome.ILLEGAL, verdicts.get(1).outcome());
+        assertEquals(ArmyList.Outcome.PARSE_ERROR, verdicts.get(2).outcome());
+        assertEquals(3, verdicts.get(2).position());
+        assertEquals(ArmyList.Outcome.UNKNOWN_VARIANT, verdicts.get(3).outcome());
+        assertEquals(ArmyList.Outcome.ERROR, verdicts.get(4).outcome());
+        assertEquals(ArmyList.Outcome.ERROR, verdicts.get(5).outcome());
+        assertEquals("troops are null", verdicts.get(5).message());
+        assertEquals(ArmyList.Outcome.ERROR, verdicts.get(6).outcome());
+        assertTrue(verdicts.get(6).message().contains("StackOverflowError"), verdicts.get(6).message());
+        for (int i = 0; i < verdicts.size(); i++) assertEquals(i, verdicts.get(i).index());
+        assertTrue(verdicts.subList(7, verdicts.size()).stream().allMatch(ArmyList.Verdict::isLegal));
+        // One thread gives the same verdicts.
+        assertEquals(verdicts, ArmyList.validateAll(submissions, 1));
+    }
+
+    @Test
+    public void testSamples() throws IOException {
+        // Load something
+        ArmyList.main(LOAD_ARGS);
+
+        List<ArmyList.Submission> samples = ArmyList.samples(new SplittableRandom(11), 2).toList();
+        assertEquals(2 * getVariantIndex().variants.size(), samples.size());
+        assertEquals(samples, ArmyList.samples(new SplittableRandom(11), 2).parallel().toList());
+        // Every sample is a legal instance of its variant. Check by variant, as the two II/3 rows share a ref.
+        List<ArmyVariant> variants = getVariantIndex().variants;
+        for (int i = 0; i < samples.size(); i++) {
+            ArmyVariant variant = variants.get(i / 2);
+            assertEquals(variant.getArmyRef(), samples.get(i).armyRef());
+            assertTrue(variant.getTroopDef().isInstance(samples.get(i).instStr()), samples.get(i).toString());
+        }
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.samples(null, 1));
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        Path headerPath = Paths.get(PATH_DEFAULT, ARMY_HEADER_DEFAULT);
+        Path variantPath = Paths.get(PATH_DEFAULT, ARMY_DEFAULT);
+        ArmyList.load(headerPath, variantPath, 1);
+        List<ArmyVariant> oneThread = getVariantIndex().variants;
+        Map<ArmyRef, List<String>> oneThreadNames = variantNames();
+
+        // Any number of threads gives the same armies, with variants in the same order.
+        ArmyList.load(headerPath, variantPath, 4);
+        assertEquals(oneThread, getVariantIndex().variants);
+        assertEquals(oneThreadNames, variantNames());
+        assertEquals(605, getVariantIndex().variants.size());
+
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.load(headerPath, variantPath, 0));
+        assertThrows(IOException.class, () -> ArmyList.load(headerPath, Paths.get(PATH_DEFAULT, "missing.csv"), 2));
+
+        // Every bad troop definition is reported, in row order.
+        List<String> lines = Files.readAllLines(variantPath);
+        Path badPath = Files.createTempFile("ArmyVariants", ".csv");
+        try {
+            List<String> bad = new ArrayList<>(lines);
+            bad.set(1, bad.get(1).replace("8x4Bw", "8x(4Bw"));
+            bad.set(500, bad.get(500).replaceFirst(",([0-9]+x)", ",$1("));
+            Files.write(badPath, bad);
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ArmyList.load(headerPath, badPath, 3));
+            assertTrue(e.getMessage().startsWith("2 troop definitions did not parse, first: "), e.getMessage());
+            assertTrue(e.getMessage().contains("armyRef=I/1a"), e.getMessage());
+        } finally {
+            Files.delete(badPath);
+        }
+    }
+
+    static Map<ArmyRef, List<String>> variantNames() {
+        Map<ArmyRef, List<String>> names = new HashMap<>();
+        Armies.forEach((armyRef, army) -> names.put(armyRef, army.getVariants().stream().map(ArmyVariant::getVariantName).toList()));
+        return names;
+    }
+}
@@ -0,0 +1,184 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static info.danbecker.dba.ArmyList.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArmySnapshotTest {
+    Path dir;
+    Path headerPath;
+    Path variantPath;
+    Path snapshotPath;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ArmySnapshotTest");
+        headerPath = Files.copy(Paths.get(PATH_DEFAULT, ARMY_HEADER_DEFAULT), dir.resolve(ARMY_HEADER_DEFAULT));
+        variantPath = Files.copy(Paths.get(PATH_DEFAULT, ARMY_DEFAULT), dir.resolve(ARMY_DEFAULT));
+        snapshotPath = dir.resolve("DBA3.0-Armies.snapshot");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (Path path : List.of(headerPath, variantPath, snapshotPath)) Files.deleteIfExists(path);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertEquals(ArmyListTest.ALL_VARIANT_COUNT, roundTrip());
+        // Nothing of the read snapshot holds the file, so it can be replaced at once.
+        Map<ArmyRef, Army> armies = ArmySnapshot.read(snapshotPath, headerPath, variantPath);
+        ArmySnapshot.write(snapshotPath, armies, headerPath, variantPath);
+        assertEquals(armies, ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+    }
+
+    @Test
+    public void testRespelledTroops() throws IOException {
+        // I/1b becomes "3Bd+Gen,8x(4Bw),3xPs", the same army as I/1a "3Bd+Gen,8x4Bw,3xPs" spelled another way.
+        List<String> lines = new ArrayList<>(Files.readAllLines(variantPath));
+        lines.set(2, lines.get(2).replace(",4Pk or 3Bd or HCh or LCh,1xHCh or 4Bw,6x4Pk,1x4Pk or 4Bw,2xPs,1x3Ax or Ps,",
+                ",3Bd,8x(4Bw),3xPs,,,,"));
+        Files.write(variantPath, lines);
+        roundTrip();
+
+        Map<ArmyRef, Army> armies = ArmySnapshot.read(snapshotPath, headerPath, variantPath);
+        List<ArmyVariant> variants = armies.get(new ArmyRef(1, 1, 0)).variants;
+        TroopDef a = variants.get(0).getTroopDef();
+        TroopDef b = variants.get(1).getTroopDef();
+        assertEquals(a, b);
+        assertEquals("3Bd+Gen,8x4Bw,3xPs", a.armyStr);
+        assertEquals("3Bd+Gen,8x(4Bw),3xPs", b.armyStr);
+        assertEquals(new TroopDef("3Bd+Gen,8x4Bw,3xPs").tree, a.tree);
+        assertEquals(new TroopDef("3Bd+Gen,8x(4Bw),3xPs").tree, b.tree);
+        assertNotEquals(a.tree, b.tree);
+    }
+
+    /** Loads the CSVs, writes and reads a snapshot, and checks every variant. Returns the variant count. */
+    int roundTrip() throws IOException {
+        Map<ArmyRef, Army> loaded = ArmyList.read(headerPath, variantPath, 2);
+        ArmySnapshot.write(snapshotPath, loaded, headerPath, variantPath);
+        Map<ArmyRef, Army> armies = ArmySnapshot.read(snapshotPath, headerPath, variantPath);
+        assertNotNull(armies);
+        assertEquals(loaded.keySet(), armies.keySet());
+
+        int variantCount = 0;
+        for (Map.Entry<ArmyRef, Army> entry : loaded.entrySet()) {
+            Army expected = entry.getValue();
+            Army actual = armies.get(entry.getKey());
+            assertEquals(expected.header.names, actual.header.names);
+            assertEquals(expected.header.getYearRanges(), actual.header.getYearRanges());
+            assertEquals(expected.header.getVariantCount(), actual.header.getVariantCount());
+            assertEquals(expected, actual);
+            assertEquals(expected.variants.size(), actual.variants.size());
+            for (int i = 0; i < expected.variants.size(); i++) {
+                ArmyVariant ev = expected.variants.get(i);
+                ArmyVariant av = actual.variants.get(i);
+                assertEquals(ev.getArmyRef(), av.getArmyRef());
+                assertEquals(ev.getVariantName(), av.getVariantName());
+                assertEquals(ev.getYears(), av.getYears());
+                assertEquals(ev.getTerrain(), av.getTerrain());
+                assertEquals(ev.aggression, av.aggression);
+                assertEquals(ev.getEnemies(), av.getEnemies());
+                assertEquals(ev.getAllies(), av.getAllies());
+                assertEquals(ev.getTroopDef().armyStr, av.getTroopDef().armyStr);
+                // The tree is read back, not parsed again.
+                assertEquals(ev.getTroopDef().tree, av.getTroopDef().tree);
+                assertEquals(ev.getTroopDef().canonicalStr, av.getTroopDef().canonicalStr);
+                assertEquals(ev.getTroopDef().permuteCount(), av.getTroopDef().permuteCount());
+                variantCount++;
+            }
+        }
+        return variantCount;
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        // No snapshot, so the CSVs are read and one is written.
+        assertFalse(ArmyList.load(headerPath, variantPath, snapshotPath, 2));
+        assertTrue(Files.isReadable(snapshotPath));
+        List<ArmyVariant> fromCsv = getVariantIndex().variants;
+        Map<ArmyRef, List<String>> csvNames = ArmyListTest.variantNames();
+
+        assertTrue(ArmyList.load(headerPath, variantPath, snapshotPath, 2));
+        assertEquals(fromCsv, getVariantIndex().variants);
+        assertEquals(csvNames, ArmyListTest.variantNames());
+
+        assertThrows(IllegalArgumentException.class, () -> ArmyList.load(headerPath, variantPath, null, 2));
+    }
+
+    @Test
+    public void testOnlyLoadedArmies() throws IOException {
+        // IV/85 is dropped from these CSVs, so an IV/85 left in the ArmyList from elsewhere is not in their snapshot.
+        Files.write(headerPath, Files.readAllLines(headerPath).stream().filter(line -> !line.startsWith("IV/85,")).toList());
+        Files.write(variantPath, Files.readAllLines(variantPath).stream().filter(line -> !line.startsWith("4,85,")).toList());
+        ArmyRef other = new ArmyRef(4, 85, 0);
+        Army saved = Armies.put(other, new Army(new ArmyHeader(other, "OTHER BURGUNDIAN 1471AD - 1506AD", 1), new ArrayList<>()));
+        try {
+            assertFalse(ArmyList.load(headerPath, variantPath, snapshotPath, 2));
+            Map<ArmyRef, Army> armies = ArmySnapshot.read(snapshotPath, headerPath, variantPath);
+            assertFalse(armies.containsKey(other));
+            assertEquals(ArmyList.read(headerPath, variantPath, 1).keySet(), armies.keySet());
+        } finally {
+            if (null == saved) Armies.remove(other);
+            else Armies.put(other, saved);
+        }
+    }
+
+    @Test
+    public void testStale() throws IOException {
+        ArmyList.load(headerPath, variantPath, snapshotPath, 1);
+        assertNotNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+
+        // An edited CSV makes the snapshot stale, and the next load writes a new one.
+        List<String> lines = new ArrayList<>(Files.readAllLines(variantPath));
+        lines.set(1, lines.get(1).replace("8x4Bw", "8x3Bw"));
+        Files.write(variantPath, lines);
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+        assertFalse(ArmyList.load(headerPath, variantPath, snapshotPath, 1));
+        assertTrue(ArmyList.load(headerPath, variantPath, snapshotPath, 1));
+        assertTrue(Armies.get(new ArmyRef(1, 1, 0)).variants.getFirst().getTroopDef().armyStr.contains("8x3Bw"));
+    }
+
+    @Test
+    public void testRejected() throws IOException {
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+        ArmyList.load(headerPath, variantPath, snapshotPath, 1);
+        byte[] good = Files.readAllBytes(snapshotPath);
+
+        // A changed byte in the body.
+        byte[] damaged = good.clone();
+        damaged[damaged.length / 2] ^= 0x10;
+        Files.write(snapshotPath, damaged);
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+
+        // Another version.
+        byte[] version = good.clone();
+        ByteBuffer.wrap(version).putInt(4, ArmySnapshot.VERSION + 1);
+        Files.write(snapshotPath, version);
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+
+        // Not a snapshot, or cut short.
+        Files.write(snapshotPath, Files.readAllBytes(headerPath));
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+        Files.write(snapshotPath, new byte[]{0x44, 0x42}, StandardOpenOption.TRUNCATE_EXISTING);
+        assertNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+
+        Files.write(snapshotPath, good);
+        assertNotNull(ArmySnapshot.read(snapshotPath, headerPath, variantPath));
+        assertThrows(IllegalArgumentException.class, () -> ArmySnapshot.read(null, headerPath, variantPath));
+    }
+}
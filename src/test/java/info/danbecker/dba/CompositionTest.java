@@ -0,0 +1,35 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompositionTest {
+    @Test
+    public void testOf() {
+        Composition composition = Composition.of(TroopDef.of("Cv+Gen,5xCv,2xLH").tree);
+        assertEquals(composition, Composition.of(TroopDef.of("2xLH,5xCv,Gen,Cv").tree));
+        assertEquals(9, composition.total());
+        assertEquals(6, composition.counts().count("Cv"));
+        assertNull(Composition.of(TroopDef.of("Cv or LH").tree));
+        assertThrows(IllegalArgumentException.class, () -> Composition.of("Zz"));
+
+        Composition dismounts = Composition.of(TroopDef.of("2xKn//Sp,Cv,Kn//Sp").tree);
+        assertEquals(List.of("Kn//Sp", "Kn//Sp", "Kn//Sp"), dismounts.dismounts());
+        assertEquals(0, dismounts.counts().count("Kn"));
+        assertEquals("1xCv,3xKn//Sp", dismounts.toString());
+        // The String parses back to the same composition.
+        assertEquals(dismounts, Composition.of(TroopDef.of(dismounts.toString()).tree));
+    }
+
+    @Test
+    public void testPlusAndTimes() {
+        Composition cv = Composition.of("Cv");
+        Composition knSp = Composition.ofDismount("Kn//Sp");
+        assertEquals(cv.plus(knSp), knSp.plus(cv));
+        assertEquals(cv.plus(cv).plus(cv), cv.times(3));
+        assertEquals("2xCv,2xKn//Sp", cv.plus(knSp).times(2).toString());
+    }
+}
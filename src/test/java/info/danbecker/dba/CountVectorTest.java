@@ -0,0 +1,111 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static info.danbecker.dba.ArmyListTest.LOAD_ARGS;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CountVectorTest {
+    @Test
+    public void testCodes() {
+        assertEquals(0, CountVector.indexOf("El"));
+        assertEquals(-1, CountVector.indexOf("Xx"));
+        assertTrue(CountVector.getCodes().containsAll(ElementType.getAllCodes()));
+        assertTrue(CountVector.getCodes().containsAll(TroopDefDescentParser.getCodes()));
+        assertThrows(IllegalArgumentException.class, () -> new CountVector(null));
+        assertThrows(IllegalArgumentException.class, () -> new CountVector(new int[3]));
+
+        assertEquals(1L, CountVector.bit("El"));
+        assertEquals(0L, CountVector.bit("Xx"));
+        assertEquals(CountVector.bit("Cv") | CountVector.bit("LH") | CountVector.bit("Ps"),
+                CountVector.mask(new TroopDef("Cv,2xLH or Ps,1xCv").tree));
+        long bows = CountVector.mask(ElementType.BOWS);
+        assertNotEquals(0L, bows & CountVector.bit("3Bw"));
+        assertNotEquals(0L, bows & CountVector.bit("8Lb"));
+        assertEquals(0L, bows & CountVector.bit("Ps"));
+    }
+
+    @Test
+    public void testConcrete() {
+        CountVector counts = CountVector.of(new TroopDef("Cv+Gen,5xCv,2xLH,2x(Ps+3Ax)").tree);
+        assertNotNull(counts);
+        assertEquals(6, counts.count("Cv"));
+        assertEquals(1, counts.count("Gen"));
+        assertEquals(2, counts.count("LH"));
+        assertEquals(2, counts.count("3Ax"));
+        assertEquals(0, counts.count("Bd"));
+        assertEquals(13, counts.total());
+        assertEquals("6xCv,2xLH,2x3Ax,2xPs,1xGen", counts.toString());
+        assertEquals(counts, CountVector.of(new TroopDef("2xLH,Gen+Cv,2xPs,2x3Ax,5xCv").tree));
+
+        assertNull(CountVector.of(new TroopDef("Cv or LH").tree));
+        assertNull(CountVector.of(new TroopDef("3/4Bw").tree));
+        assertNull(CountVector.of(new TroopDef("Cv//4Wb").tree));
+    }
+
+    @Test
+    public void testLegal() {
+        Set<CountVector> legal = new TroopDef("Cv+Gen,2xLH or Ps,3/4Bw").getCountVectors();
+        assertEquals(4, legal.size());
+        assertTrue(legal.contains(CountVector.of(new TroopDef("Cv+Gen,2xPs,4Bw").tree)));
+        assertFalse(legal.contains(CountVector.of(new TroopDef("Cv+Gen,LH,Ps,4Bw").tree)));
+        // Duplicate choices count once.
+        assertEquals(1, new TroopDef("Cv or Cv,LH/LH").getCountVectors().size());
+        // Dismounts are never concrete.
+        assertTrue(new TroopDef("Cv//4Wb,7x4Wb").getCountVectors().isEmpty());
+        // Too many to keep, 12 slots of 10 choices.
+        String big = String.join(",", Collections.nCopies(12, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd"));
+        assertNull(CountVector.legal(new TroopDef(big).tree));
+        assertTrue(new TroopDef(big).isInstance("Ax,Bd,Sp,Ps,Cv,LH,Kn,El,Wb,Hd,Ax,Bd"));
+        assertFalse(new TroopDef(big).isInstance("Ax,Bd,Sp,Ps,Cv,LH,Kn,El,Wb,Hd,Ax,Art"));
+        assertTrue(CountVector.isLegal(new TroopDef(big).simple, CountVector.of(new TroopDef("12xHd").tree)));
+        assertFalse(CountVector.isLegal(new TroopDef(big).simple, CountVector.of(new TroopDef("12xHd,Gen").tree)));
+    }
+
+    @Test
+    public void testTooManyIsInstance() {
+        // Concrete armies are multisets, with or without the legal vectors kept.
+        String choices = "Kn or LH or 4Bd or Ps or 4Ax or 4Cb or 3Wb or 7Hd or Cv or Bw";
+        TroopDef small = new TroopDef("Cv+Gen,LH or Ps,4Bd,9x4Ax");
+        TroopDef big = new TroopDef("Cv+Gen,LH or Ps,4Bd," + String.join(",", Collections.nCopies(9, choices)));
+        assertNotNull(small.getCountVectors());
+        assertNull(big.getCountVectors());
+        for (TroopDef troopDef : List.of(small, big)) {
+            assertTrue(troopDef.isInstance("Cv+Gen,LH,4Bd,9x4Ax"), troopDef.toString());
+            assertTrue(troopDef.isInstance("Gen,Cv,LH,4Bd,9x4Ax"), troopDef.toString());
+            assertTrue(troopDef.isInstance("Cv+Gen,LH+4Bd,9x4Ax"), troopDef.toString());
+            assertFalse(troopDef.isInstance("Cv+Gen,LH,Ps,9x4Ax"), troopDef.toString());
+            assertFalse(troopDef.isInstance("Cv+Gen,LH,4Bd,8x4Ax"), troopDef.toString());
+        }
+        assertTrue(big.isInstance("4Bd,Bw,Cv,7Hd,Gen,Kn,LH,Cv,Ps,4Ax,3Wb,4Cb,4Bd"));
+        assertFalse(big.isInstance("4Bd,Bw,Cv,7Hd,Gen,Kn,LH,Cv,Ps,4Ax,3Wb,4Cb,4Bd,Ps"));
+    }
+
+    @Test
+    public void testIsInstance() {
+        TroopDef troopDef = new TroopDef("Cv+Gen,5xCv,3xCv or LH,1xLH or Ps,2xCv or 7Hd");
+        assertTrue(troopDef.isInstance("Gen+Cv,5xCv,3xLH,Ps,2x7Hd"));
+        assertTrue(troopDef.isInstance("Cv+Gen,5xCv,3xCv,LH,2xCv"));
+        assertFalse(troopDef.isInstance("Cv+Gen,5xCv,3xCv,LH,2xLH"));
+        // Only the counts matter to a concrete army.
+        assertTrue(troopDef.isInstance("Gen,Cv,5xCv,3xLH,Ps,7Hd,7Hd"));
+        // Choices left in the instance are matched as trees.
+        assertTrue(troopDef.isInstance("Cv+Gen,5xCv,3xCv or LH,1xLH or Ps,2xCv or 7Hd"));
+        assertTrue(new TroopDef("Cv//4Wb,7x4Wb").isInstance("Cv//4Wb,7x4Wb"));
+    }
+
+    @Test
+    public void testArmyVariants() throws IOException {
+        ArmyList.main(LOAD_ARGS);
+        for (Army army : ArmyList.Armies.values()) {
+            for (ArmyVariant variant : army.getVariants()) {
+                assertNotNull(variant.getTroopDef().getCountVectors(), variant.toString());
+            }
+        }
+    }
+}
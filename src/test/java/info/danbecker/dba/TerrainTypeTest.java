@@ -40,6 +40,8 @@ public class TerrainTypeTest {
 
         assertIterableEquals( List.of( HILLY ), TerrainType.listFromString( "Hilly"));
         assertIterableEquals( List.of( STEPPE, DRY ), TerrainType.listFromString("Steppe/Dry" ));
+        assertIterableEquals( List.of( ARABLE, LITTORAL, FOREST ), TerrainType.listFromString( "Arable/littoral/FOREST/" ));
+        assertIterableEquals( List.of(), TerrainType.listFromString( "/" ));
 
         IllegalArgumentException ie = assertThrows(
                 IllegalArgumentException.class,
@@ -51,5 +53,10 @@ public class TerrainTypeTest {
                 () -> TerrainType.listFromString( "Fred/Farkle" )
         );
         assertTrue(ie.getMessage().contains("No enum constant "));
+        ie = assertThrows(
+                IllegalArgumentException.class,
+                () -> TerrainType.listFromString( "Arable//Forest" )
+        );
+        assertTrue(ie.getMessage().contains("No enum constant "));
     }
 }
\ No newline at end of file
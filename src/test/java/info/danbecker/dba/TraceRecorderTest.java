@@ -0,0 +1,76 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static info.danbecker.dba.MatchTrace.Step.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceRecorderTest {
+    @Test
+    public void testMatchTrace() {
+        TroopDef troopDef = new TroopDef("1x(Cv or LH),3/4Bw");
+        TraceRecorder recorder = new TraceRecorder();
+        // The parsed trees still have 1x, groups and either units to promote.
+        assertTrue(new TroopMatcher(recorder).matchTree(troopDef.tree, new TroopDef("LH,4Bw").tree));
+
+        List<TraceRecorder.Event> events = recorder.getEvents();
+        assertTrue(events.stream().allMatch(event -> TraceRecorder.Kind.MATCH == event.kind()));
+        List<MatchTrace.Step> steps = events.stream().map(TraceRecorder.Event::step).toList();
+        assertThat(steps, hasItems(PROMOTE_1X, ELEVATE_GROUP, PROMOTE_EITHER_UNIT, MATCH, MATCHED, NOT_MATCHED));
+        // The last event is the result of the first call.
+        TraceRecorder.Event last = events.getLast();
+        assertEquals(MATCHED, last.step());
+        assertEquals(0, last.depth());
+        assertEquals("exprs", last.nodeKind());
+        assertEquals("MATCHED exprs 1x(CvorLH),3/4Bw to LH,4Bw", last.toString());
+        assertTrue(events.stream().anyMatch(event -> 0 < event.depth()));
+        assertThat(events.stream().filter(event -> PROMOTE_1X == event.step()).findFirst().orElseThrow().toString(),
+                containsString("PROMOTE_1X exprMultiple 1x(CvorLH) to (CvorLH)"));
+
+        recorder.clear();
+        assertTrue(recorder.getEvents().isEmpty());
+        // The desugared trees matched by TroopDef have nothing to promote.
+        assertTrue(troopDef.matches(new TroopDef("LH,4Bw"), recorder));
+        assertEquals("MATCHED exprs CvorLH,3Bw/4Bw to LH,4Bw", recorder.getEvents().getLast().toString());
+        assertThat(recorder.getEvents().stream().map(TraceRecorder.Event::step).toList(),
+                everyItem(not(in(List.of(ELEVATE_GROUP, PROMOTE_1X, PROMOTE_EITHER_UNIT)))));
+
+        recorder.clear();
+        assertFalse(troopDef.matches(new TroopDef("LH,LH,4Bw"), recorder));
+        assertEquals(MISMATCH_COUNT, recorder.getEvents().getFirst().step());
+
+        assertThrows(IllegalArgumentException.class, () -> new TroopMatcher((MatchTrace) null));
+        assertThrows(UnsupportedOperationException.class, () -> recorder.getEvents().clear());
+    }
+
+    @Test
+    public void testPermuteTrace() {
+        TroopDef troopDef = new TroopDef("Cv+Gen,2xLH or Ps,3/4Bw");
+        TraceRecorder recorder = new TraceRecorder();
+        assertEquals(troopDef.permute(), troopDef.permute(recorder));
+
+        List<TraceRecorder.Event> events = recorder.getEvents();
+        assertTrue(events.stream().allMatch(event -> TraceRecorder.Kind.PERMUTED == event.kind() && null == event.step()));
+        // One slot event per list item at depth 0.
+        List<TraceRecorder.Event> slots = events.stream().filter(event -> 0 == event.depth()).toList();
+        assertEquals(List.of(1L, 2L, 2L), slots.stream().map(TraceRecorder.Event::count).toList());
+        // Permuting works on the desugared tree, 2x(LH or Ps) is 2xLH or 2xPs and 3/4Bw is 3Bw/4Bw.
+        assertEquals(List.of("exprAnd", "exprOr", "exprEither"), slots.stream().map(TraceRecorder.Event::nodeKind).toList());
+        assertEquals("    PERMUTED exprType LH gives 1", events.stream()
+                .filter(event -> "LH".equals(TroopNode.text(event.node()))).findFirst().orElseThrow().toString());
+        assertThrows(IllegalArgumentException.class, () -> troopDef.permute(null));
+        // The trace counts the permutations lazily, so a count past any list is still traced.
+        recorder.clear();
+        TroopDef big = new TroopDef(String.join(",", Collections.nCopies(20, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd")));
+        new TroopPermutations(big, recorder);
+        assertEquals(20 * 19, recorder.getEvents().size());
+        assertEquals(10L, recorder.getEvents().getLast().count());
+        assertThrows(IllegalArgumentException.class, () -> new TroopPermutations(big, null));
+        assertThrows(IllegalArgumentException.class, () -> new TraceRecorder.Event(TraceRecorder.Kind.MATCH, null, big.tree, null, 0, 0));
+    }
+}
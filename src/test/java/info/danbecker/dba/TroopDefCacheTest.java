@@ -0,0 +1,81 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TroopDefCacheTest {
+    @Test
+    public void testHitsAndMisses() {
+        TroopDefCache cache = new TroopDefCache(8);
+        TroopDef first = cache.get("3Bd + Gen,8x4Bw,3xPs");
+        TroopDef second = cache.get("3Bd + Gen,8x4Bw,3xPs");
+        assertSame(first, second);
+        assertEquals("3Bd+Gen,8x4Bw,3xPs", second.toString());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // Keyed by raw String, so spacing differences are separate entries.
+        TroopDef spaced = cache.get("3Bd+Gen,8x4Bw,3xPs");
+        assertNotSame(first, spaced);
+        assertEquals(first, spaced);
+        assertEquals(2, cache.getMissCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testEviction() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> new TroopDefCache(0));
+        assertTrue(e.getMessage().contains("capacity"));
+
+        TroopDefCache cache = new TroopDefCache(2);
+        TroopDef ps = cache.get("Ps");
+        cache.get("Wb");
+        cache.get("Ps"); // Ps is now most recently used
+        cache.get("Bd"); // evicts Wb
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(ps, cache.get("Ps"));
+        cache.get("Wb"); // parsed again
+        assertEquals(4, cache.getMissCount());
+        assertEquals(2, cache.getCapacity());
+    }
+
+    @Test
+    public void testErrors() {
+        TroopDefCache cache = new TroopDefCache(4);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> cache.get(null));
+        assertTrue(e.getMessage().contains("null"));
+        e = assertThrows(IllegalArgumentException.class,
+                () -> cache.get("(Ps"));
+        assertTrue(e.getMessage().contains("Parse error"));
+        // Failures are not stored.
+        assertEquals(0, cache.size());
+        assertThrows(IllegalArgumentException.class, () -> cache.get("(Ps"));
+    }
+
+    @Test
+    public void testShared() {
+        TroopDefCache cache = new TroopDefCache(16);
+        List<TroopDef> parsed = IntStream.range(0, 200)
+                .parallel()
+                .mapToObj(i -> cache.get("Cv or 4Bd or CP,2x3Bw,7x4Bd,1xPs or LCm,1xLH or Cm/Bd"))
+                .toList();
+        TroopDef first = cache.get("Cv or 4Bd or CP,2x3Bw,7x4Bd,1xPs or LCm,1xLH or Cm/Bd");
+        parsed.forEach(troopDef -> assertSame(first, troopDef));
+        assertEquals(1, cache.size());
+
+        assertSame(TroopDef.of("2xPs"), TroopDef.of("2xPs"));
+        assertTrue(TroopDef.getCache().getHitCount() > 0);
+    }
+}
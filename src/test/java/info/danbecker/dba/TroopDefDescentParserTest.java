@@ -0,0 +1,107 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static info.danbecker.dba.ArmyListTest.ALL_VARIANT_COUNT;
+import static info.danbecker.dba.ArmyListTest.LOAD_ARGS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Differential tests of the hand-written parser against the ANTLR parser. */
+public class TroopDefDescentParserTest {
+    @Test
+    public void testCodes() {
+        assertEquals(56, TroopDefDescentParser.CODE_COUNT);
+        List<String> codes = TroopDefDescentParser.getCodes();
+        assertEquals(56, codes.size());
+        assertTrue(codes.contains("Mtd-3Bw"));
+        assertTrue(codes.contains("3Kn"));
+        assertTrue(codes.contains("Gen"));
+        assertFalse(codes.contains("or"));
+        assertFalse(codes.contains("//"));
+    }
+
+    @Test
+    public void testSameTrees() {
+        for (String troopStr : List.of(
+                "Ps", "3Bd or 3/4Bw,6x3Ax or 3Wb,3xPs",
+                "2xLH or Ps", "Cv+2xEl or Bd", "1xCv or 2xBd+Ax", "Cv/Bd+Ax or Ps",
+                "Kn/(2xLCh or WWg)", "2x2xSp", "((Bd))", "Cv//4Wb,7x4Wb",
+                "3Kn+4Kn", "Mtd-3Bw or Mtd-4Cb", "3/4Bw", "3/Cv",
+                "Ax+Bd+Cv+Hd", "Ax or Bd or Cv or Hd", "Cv or Gen+Cv",
+                " Cv , Cvor\tLH\n,Ps ")) {
+            assertEquals(TroopDefParser.parseNode(troopStr), TroopDefDescentParser.parse(troopStr), troopStr);
+        }
+    }
+
+    @Test
+    public void testSameErrors() {
+        // Errors and oddities are given to the ANTLR pipeline, so the outcome is the same.
+        for (String troopStr : List.of(
+                "(Ps", "Cv/Wb/Sp", "(Cv/Wb)/Sp", "Cv//Wb//Sp", "Cv//Wb/Sp", "Cv+", "3/", "3/(Cv)", "2x",
+                "500", "12Bd", "Cv,", ",Cv", "or", "Cv Bd", "Cv,Bd)", "Mtd-X", "Cv+Gen,9x3Ax|4Ax",
+                "99999999999xCv", "Cv x Bd", "Cv/Wb/Sp+")) {
+            assertSameOutcome(troopStr);
+        }
+        assertEquals("Parse error \"(Ps\", pos 3: missing ')' at '<EOF>'",
+                assertThrows(IllegalArgumentException.class, () -> TroopDefDescentParser.parse("(Ps")).getMessage());
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> TroopDefDescentParser.parse("Cv/Wb/Sp"))
+                .getMessage().contains("exprEither cardinality 2"));
+        assertThrows(IllegalArgumentException.class, () -> TroopDefDescentParser.parse(null));
+    }
+
+    @Test
+    public void testArmyVariants() throws IOException {
+        ArmyList.main(LOAD_ARGS);
+        long fallbackCount = TroopDefDescentParser.getFallbackCount();
+        long descentCount = TroopDefDescentParser.getDescentCount();
+        List<String> troopStrs = ArmyList.Armies.values().stream()
+                .flatMap(army -> army.getVariants().stream())
+                .map(variant -> variant.getTroopDef().armyStr)
+                .toList();
+        assertEquals(ALL_VARIANT_COUNT, troopStrs.size());
+        for (String troopStr : troopStrs) {
+            assertEquals(TroopDefParser.parseNode(troopStr), TroopDefDescentParser.parse(troopStr), troopStr);
+        }
+        // Two variants have trailing input "1xMtd-3Bw (Cm)" that ANTLR quietly drops.
+        // Those are handed to ANTLR, all others are parsed by the descent parser alone.
+        assertEquals(fallbackCount + 2, TroopDefDescentParser.getFallbackCount());
+        assertEquals(descentCount + ALL_VARIANT_COUNT - 2, TroopDefDescentParser.getDescentCount());
+    }
+
+    @Test
+    public void testEngine() {
+        assertEquals(TroopDef.ParserEngine.ANTLR, TroopDef.getParserEngine());
+        assertThrows(IllegalArgumentException.class, () -> TroopDef.setParserEngine(null));
+        try {
+            TroopDef.setParserEngine(TroopDef.ParserEngine.DESCENT);
+            long descentCount = TroopDefDescentParser.getDescentCount();
+            TroopDef troopDef = new TroopDef("3Bd + Gen,8x4Bw,3xPs");
+            assertEquals(descentCount + 1, TroopDefDescentParser.getDescentCount());
+            assertEquals(new TroopDef("3Bd+Gen,8x4Bw,3xPs"), troopDef);
+            assertTrue(troopDef.isInstance("3Bd+Gen,8x4Bw,3xPs"));
+            assertThrows(IllegalArgumentException.class, () -> new TroopDef("3Bd+"));
+        } finally {
+            TroopDef.setParserEngine(TroopDef.ParserEngine.ANTLR);
+        }
+    }
+
+    private static void assertSameOutcome(String troopStr) {
+        TroopNode expected = null;
+        String expectedError = null;
+        try {
+            expected = TroopDefParser.parseNode(troopStr);
+        } catch (RuntimeException e) {
+            expectedError = e.getClass().getName() + ": " + e.getMessage();
+        }
+        try {
+            TroopNode actual = TroopDefDescentParser.parse(troopStr);
+            assertNull(expectedError, troopStr);
+            assertEquals(expected, actual, troopStr);
+        } catch (RuntimeException e) {
+            assertEquals(expectedError, e.getClass().getName() + ": " + e.getMessage(), troopStr);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package info.danbecker.dba;
+
+import com.opencsv.bean.CsvToBeanBuilder;
+import info.danbecker.csv.ArmyVariantBean;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static info.danbecker.dba.ArmyList.ARMY_DEFAULT;
+import static info.danbecker.dba.ArmyList.PATH_DEFAULT;
+
+/**
+ * Throughput of the ANTLR and hand-written troop parsers over every variant of DBA3.0-ArmyVariants.csv.
+ * Not a unit test. Run the main method from the project directory with the test classpath.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TroopDefParserBenchmark {
+    List<String> troopStrs;
+
+    @Setup
+    public void setup() throws FileNotFoundException {
+        List<ArmyVariantBean> variantBeans = new CsvToBeanBuilder<ArmyVariantBean>(new FileReader(Paths.get(PATH_DEFAULT, ARMY_DEFAULT).toString()))
+                .withType(ArmyVariantBean.class)
+                .build()
+                .parse();
+        troopStrs = variantBeans.stream().map(ArmyVariantBean::getElements).toList();
+    }
+
+    /** One operation is a parse of every variant. */
+    @Benchmark
+    public void antlr(Blackhole blackhole) {
+        for (String troopStr : troopStrs)
+            blackhole.consume(TroopDefParser.parseNode(troopStr));
+    }
+
+    /** One operation is a parse of every variant. */
+    @Benchmark
+    public void descent(Blackhole blackhole) {
+        for (String troopStr : troopStrs)
+            blackhole.consume(TroopDefDescentParser.parse(troopStr));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TroopDefParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
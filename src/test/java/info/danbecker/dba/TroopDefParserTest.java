@@ -9,6 +9,7 @@ import org.junit.jupiter.api.Test;
 import org.antlr.v4.runtime.CharStream;
 
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -39,4 +40,67 @@ public class TroopDefParserTest {
         assertInstanceOf( DBAArmyParser.ExprContext.class, tree); // Kn / expression
         assertEquals( 3, tree.getChildCount()); // Kn / expression
     }
+
+    @Test
+    public void testPipeline() {
+        long sllCount = TroopDefParser.getSllCount();
+        DBAArmyParser.ExprsContext tree = TroopDefParser.parse("Kn/(2xLCh or WWg)");
+        assertEquals( "(exprs (expr (expr (type (knights Kn))) / (expr ( (expr 2 x (expr (expr (type (cavalry LCh))) or (expr (type (war_wagons WWg))))) ))))",
+                tree.toStringTree(TroopDefParser.RULE_NAMES));
+        assertTrue( TroopDefParser.getSllCount() > sllCount );
+
+        // Reused pipeline gives independent trees.
+        DBAArmyParser.ExprsContext second = TroopDefParser.parse("3Bd + Gen,8x4Bw,3xPs");
+        assertEquals( 3, second.expr().size());
+        assertEquals( "Kn/(2xLChorWWg)", tree.getText());
+
+        // Errors fall back to LL and are reported.
+        long fallbackCount = TroopDefParser.getFallbackCount();
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> TroopDefParser.parse("(Ps"));
+        assertEquals( "Parse error \"(Ps\", pos 3: missing ')' at '<EOF>'", e.getMessage());
+        assertEquals( fallbackCount + 1, TroopDefParser.getFallbackCount());
+        e = assertThrows(IllegalArgumentException.class,
+                () -> TroopDefParser.parseNode("Cv/Wb/Sp"));
+        assertTrue( e.getMessage().contains("cardinality 2"));
+        assertTrue( 0.0 < TroopDefParser.getFallbackRate());
+
+        // Pipeline still good after errors.
+        assertEquals( "Ps", TroopDefParser.parse("Ps").getText());
+
+        // Each thread has a pipeline.
+        List<String> texts = IntStream.range(0, 100)
+                .parallel()
+                .mapToObj( i -> TroopDefParser.parse( i + "xPs,Cv").getText())
+                .toList();
+        for ( int i = 0; i < texts.size(); i++ )
+            assertEquals( i + "xPs,Cv", texts.get(i));
+    }
+
+    @Test
+    public void testCardinality() {
+        // Checked once, while lowering to TroopNodes
+        assertEquals( "Cv/Wb/Sp", TroopDefParser.parse("Cv/Wb/Sp").getText());
+        assertEquals( "((((Cv/Bd))))+Ps", TroopDefParser.parseNode("((((Cv/Bd))))+Ps").toString());
+        assertEquals( "Cv//Bd,3/4Bw,Cv/Bd,Cv+Ps/LH", TroopDefParser.parseNode("Cv//Bd,3/4Bw,Cv/Bd,Cv+Ps/LH").toString());
+
+        TroopDefParseException e = assertThrows(TroopDefParseException.class,
+                () -> TroopDefParser.parseNode("(Cv/Bd)/Ps"));
+        assertEquals( "Parse error exprEither cardinality 2 exceeded at  \"(Cv/Bd)/Ps\"", e.getMessage());
+        assertEquals( 0, e.getPosition());
+        e = assertThrows(TroopDefParseException.class, () -> TroopDefParser.parseNode("Cv, Ps/3/4Bw"));
+        assertEquals( "Parse error exprEither cardinality 2 exceeded at  \"Ps/3/4Bw\"", e.getMessage());
+        assertEquals( 4, e.getPosition());
+        e = assertThrows(TroopDefParseException.class, () -> TroopDefParser.parseNode("Cv//Bd/Ps"));
+        assertEquals( "Parse error exprEither cardinality 3 exceeded at  \"Cv//Bd/Ps\"", e.getMessage());
+        e = assertThrows(TroopDefParseException.class, () -> TroopDefParser.parseNode("Ax,Cv//(Bd//Ps)"));
+        assertEquals( "Parse error exprDismount cardinality 2 exceeded at  \"Cv//(Bd//Ps)\"", e.getMessage());
+        assertEquals( 3, e.getPosition());
+        // The first one, in tree order
+        e = assertThrows(TroopDefParseException.class, () -> TroopDefParser.parseNode("Ax/Bd/Cv/Hd"));
+        assertEquals( "Parse error exprEither cardinality 2 exceeded at  \"Ax/Bd/Cv\"", e.getMessage());
+        // Syntax errors come first
+        e = assertThrows(TroopDefParseException.class, () -> TroopDefParser.parseNode("Cv/Wb/Sp,(Ps"));
+        assertTrue( e.getMessage().contains("missing ')'"));
+    }
 }
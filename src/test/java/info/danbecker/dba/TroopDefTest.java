@@ -137,6 +137,73 @@ public class TroopDefTest {
         assertEquals(-1, expected.compareTo(null));
         assertTrue(0 < expected.compareTo(new TroopDef("Ax")));
         assertTrue(0 > expected.compareTo(new TroopDef("Wb")));
+
+        // Semantic equality on the canonical form
+        assertEquals(new TroopDef("Cv+LH"), new TroopDef("LH+Cv"));
+        assertEquals(new TroopDef("Cv+LH").hashCode(), new TroopDef("LH+Cv").hashCode());
+        assertEquals(0, new TroopDef("Cv+LH").compareTo(new TroopDef("LH + Cv")));
+        assertEquals(new TroopDef("(LH + Cv) or 1xPs"), new TroopDef("Ps or Cv+LH"));
+        assertEquals("Cv+LHorPs", new TroopDef("(LH + Cv) or 1xPs").getCanonicalString());
+        assertEquals("LH+Cv", new TroopDef("LH+Cv").toString()); // toString keeps the spelling
+        assertEquals(new TroopDef("Bd/Cv,2x(Ax or Wb)"), new TroopDef("Cv/Bd,2xWb or Ax"));
+        assertNotEquals(new TroopDef("Cv//Bd"), new TroopDef("Bd//Cv"));
+        assertNotEquals(new TroopDef("Cv,LH"), new TroopDef("LH,Cv")); // list order is kept
+        assertNotEquals(new TroopDef("(Cv+LH) or Ps"), new TroopDef("Cv+(LH or Ps)"));
+        assertNotEquals(0, new TroopDef("(Cv+LH) or Ps").compareTo(new TroopDef("Cv+(LH or Ps)")));
+        assertEquals(1, new HashSet<>(List.of(new TroopDef("Ax+Bd+Cv"), new TroopDef("Cv+(Bd+Ax)"), new TroopDef("1xBd+Cv+Ax"))).size());
+    }
+
+    @Test
+    public void testSimple() {
+        // Desugared once at construction, the spelling is kept for toString.
+        TroopDef troopDef = new TroopDef("1x(Cv/6Cv),2x(2xBd),3/4Bw or 3/4Bw");
+        assertEquals("Cv/6Cv,4xBd,3Bw/4Bw", troopDef.getSimpleString());
+        assertEquals("1x(Cv/6Cv),2x(2xBd),3/4Bwor3/4Bw", troopDef.toString());
+        assertTrue(troopDef.matches("6Cv,4xBd,4Bw"));
+        assertTrue(troopDef.isInstance("Cv,2x2xBd,3Bw"));
+        assertThat(troopDef.permute(), contains("Cv,4xBd,3Bw", "Cv,4xBd,4Bw", "6Cv,4xBd,3Bw", "6Cv,4xBd,4Bw"));
+        assertEquals(List.of("4", "Wb"), getNumCharGroups("4Wb"));
+    }
+
+    @Test
+    public void testParseAll() {
+        List<String> troopStrs = List.of("3Bd+Gen,8x4Bw,3xPs", "(Ps", "Cv/Wb/Sp", " ", "Ps or Bd", "Cv,Bd//Ax//Sp");
+        List<ArmyRef> armyRefs = List.of(ArmyRef.parse("I/1a"), ArmyRef.parse("I/1b"), ArmyRef.parse("I/2"),
+                ArmyRef.parse("I/3"), ArmyRef.parse("I/4a"), ArmyRef.parse("I/4b"));
+        TroopDef.ParseResults results = TroopDef.parseAll(armyRefs, troopStrs);
+        assertFalse(results.isOk());
+        assertEquals(6, results.troopDefs().size());
+        assertEquals(new TroopDef("3Bd+Gen,8x4Bw,3xPs"), results.troopDefs().get(0));
+        assertNull(results.troopDefs().get(1));
+        assertEquals(new TroopDef("Bd or Ps"), results.troopDefs().get(4));
+
+        // Every failure, in input order, with army reference and position
+        assertEquals(4, results.failures().size());
+        TroopDef.ParseFailure failure = results.failures().getFirst();
+        assertEquals(ArmyRef.parse("I/1b"), failure.armyRef());
+        assertEquals(1, failure.index());
+        assertEquals(3, failure.position());
+        assertEquals("(Ps", failure.armyStr());
+        assertEquals("Parse error \"(Ps\", pos 3: missing ')' at '<EOF>'", failure.message());
+        assertTrue(failure.toString().contains("armyRef=I/1b"));
+        assertEquals(0, results.failures().get(1).position());
+        assertTrue(results.failures().get(1).message().contains("exprEither cardinality 2"));
+        assertEquals(TroopDefParseException.NO_POSITION, results.failures().get(2).position());
+        assertEquals("input string is blank", results.failures().get(2).message());
+        assertEquals(3, results.failures().get(3).position());
+        assertTrue(results.failures().get(3).message().contains("exprDismount cardinality 2"));
+
+        // Larger batches keep input order
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < 500; i++) many.add((0 == i % 50) ? "Cv+" : (1 + i % 9) + "xPs");
+        results = TroopDef.parseAll(many);
+        assertEquals(10, results.failures().size());
+        assertNull(results.failures().getFirst().armyRef());
+        assertEquals(50, results.failures().get(1).index());
+        assertEquals("7xPs", results.troopDefs().get(105).toString());
+
+        assertTrue(TroopDef.parseAll(List.of()).isOk());
+        assertThrows(IllegalArgumentException.class, () -> TroopDef.parseAll(armyRefs, List.of("Ps")));
     }
 
     @Test
@@ -160,6 +227,23 @@ public class TroopDefTest {
         assertTrue(new TroopDef("Ps,Wb").containsAllUnits("Wb,Ps")); // simple type match
         assertFalse(new TroopDef("Ps,Wb").containsAllUnits("Wb,Bd")); // simple type match
         assertIterableEquals(new TroopDef("Ax+Bd+Cv").getUnitList(), new TroopDef("Ax,Bd,Cv").getUnitList());
+        assertThrows(UnsupportedOperationException.class, () -> new TroopDef("Ax").getUnitList().add("Bd"));
+
+        // Unit masks
+        TroopDef troopDef = new TroopDef("Cv//4Wb,2xLH or Ps,3/4Bw");
+        assertEquals(CountVector.bit("Cv") | CountVector.bit("4Wb") | CountVector.bit("LH") | CountVector.bit("Ps")
+                | CountVector.bit("3Bw") | CountVector.bit("4Bw"), troopDef.getUnitMask());
+        assertTrue(troopDef.containsAllUnits("3Bw,Ps")); // either units field both codes
+        assertFalse(troopDef.containsAllUnits("3Bw,Bd"));
+        assertTrue(troopDef.containsAnyUnits(TroopDef.of("3Bw,Bd")));
+        assertFalse(troopDef.containsAnyUnits(TroopDef.of("Bd,Sp")));
+        assertFalse(troopDef.isInstance("Cv//4Wb,2xLH,Bd"));
+
+        // An instance with choices left is not held to the mask, one branch may match.
+        assertTrue(new TroopDef("Cv or LCh+Gen,11x3Wb").isInstance("Cv or Ps,11x3Wb"));
+        assertTrue(new TroopDef("Cv,LH").isInstance("Cv,LH or Ps"));
+        assertTrue(new TroopDef("Cv,2xLH").isInstance("Cv,2xLH or Ps"));
+        assertFalse(new TroopDef("Cv,LH").isInstance("Cv,Bd or Ps"));
     }
 
     @Test
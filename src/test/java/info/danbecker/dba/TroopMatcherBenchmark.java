@@ -0,0 +1,84 @@
+package info.danbecker.dba;
+
+import com.opencsv.bean.CsvToBeanBuilder;
+import info.danbecker.csv.ArmyVariantBean;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static info.danbecker.dba.ArmyList.ARMY_DEFAULT;
+import static info.danbecker.dba.ArmyList.PATH_DEFAULT;
+
+/**
+ * Time of matching the worst rows of DBA3.0-ArmyVariants.csv against every one of their permutations.
+ * The worst rows are the ones that take the most pair evaluations.
+ * A memo table of pairs measured 45-55 ms here against 30-35 ms without, so TroopMatcher keeps none.
+ * Not a unit test. Run the main method from the project directory with the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TroopMatcherBenchmark {
+    static final int WORST_COUNT = 10;
+
+    List<TroopNode> worst;
+    List<List<TroopNode>> instances;
+
+    @Setup
+    public void setup() throws FileNotFoundException {
+        List<ArmyVariantBean> variantBeans = new CsvToBeanBuilder<ArmyVariantBean>(new FileReader(Paths.get(PATH_DEFAULT, ARMY_DEFAULT).toString()))
+                .withType(ArmyVariantBean.class)
+                .build()
+                .parse();
+        List<TroopDef> worstDefs = variantBeans.stream()
+                .map(bean -> TroopDef.of(bean.getElements()))
+                .distinct()
+                .sorted(Comparator.comparingLong(TroopMatcherBenchmark::plainEvaluations).reversed())
+                .limit(WORST_COUNT)
+                .toList();
+        worst = worstDefs.stream().map(troopDef -> (TroopNode) troopDef.tree).toList();
+        instances = worstDefs.stream().map(TroopMatcherBenchmark::instances).toList();
+    }
+
+    static List<TroopNode> instances(TroopDef troopDef) {
+        return troopDef.permute().stream().map(instStr -> (TroopNode) TroopDef.of(instStr).tree).toList();
+    }
+
+    static long plainEvaluations(TroopDef troopDef) {
+        long evaluations = 0;
+        for (TroopNode instance : instances(troopDef)) {
+            TroopMatcher matcher = new TroopMatcher();
+            matcher.matchTree(troopDef.tree, instance);
+            evaluations += matcher.getEvaluations();
+        }
+        return evaluations;
+    }
+
+    /** One operation is a match of each worst row to each of its permutations. */
+    @Benchmark
+    public void plain(Blackhole blackhole) {
+        for (int i = 0; i < worst.size(); i++)
+            for (TroopNode instance : instances.get(i))
+                blackhole.consume(new TroopMatcher().matchTree(worst.get(i), instance));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TroopMatcherBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
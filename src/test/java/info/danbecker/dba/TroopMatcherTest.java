@@ -0,0 +1,78 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static info.danbecker.dba.ArmyListTest.LOAD_ARGS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TroopMatcherTest {
+    @Test
+    public void testEvaluations() {
+        // Any-order slots are assigned by bipartite matching, so a long chain takes few evaluations.
+        TroopNode def = new TroopDef("Cv//Bd+Kn//Sp+LH//Ps+El//Ax+Cm//Wb+HCh//Hd+LCh//Bw+Art//Pk").simple;
+        TroopNode inst = new TroopDef("Art//Pk+LCh//Bw+HCh//Hd+Cm//Wb+El//Ax+LH//Ps+Kn//Sp+Cv//Bd").simple;
+        TroopMatcher matcher = new TroopMatcher();
+        assertTrue(matcher.matchTree(def, inst));
+        long evaluations = matcher.getEvaluations();
+        assertThat(evaluations, lessThan(250L));
+
+        // Nothing is kept from call to call.
+        assertTrue(matcher.matchTree(def, inst));
+        assertEquals(2 * evaluations, matcher.getEvaluations());
+    }
+
+    @Test
+    public void testMaximumMatching() {
+        assertEquals(0, TroopMatcher.maximumMatching(new boolean[0][0]));
+        assertEquals(2, TroopMatcher.maximumMatching(new boolean[][] {{true, true}, {true, false}}));
+        assertEquals(1, TroopMatcher.maximumMatching(new boolean[][] {{true, false}, {true, false}}));
+        // Needs an augmenting path through every left.
+        assertEquals(3, TroopMatcher.maximumMatching(new boolean[][] {
+                {true, true, false}, {true, false, false}, {false, true, true}}));
+        // More rights than lefts.
+        assertEquals(2, TroopMatcher.maximumMatching(new boolean[][] {
+                {false, false, true, true}, {false, false, true, false}}));
+        boolean[][] full = new boolean[12][12];
+        for (boolean[] row : full) Arrays.fill(row, true);
+        assertEquals(12, TroopMatcher.maximumMatching(full));
+    }
+
+    @Test
+    public void testAnyOrderSlots() {
+        // First fit gives the LH to "Cv or LH", which leaves nothing for the second slot.
+        assertTrue(new TroopDef("Cv or LH,LH").isInstance("LH,Cv"));
+        assertTrue(new TroopDef("Cv or LH,LH").isInstance("LH,LH"));
+        assertFalse(new TroopDef("Cv or LH,LH").isInstance("Cv,Cv"));
+        assertTrue(new TroopDef("(Cv or LH)+LH+Ps").isInstance("Ps+LH+Cv"));
+        assertFalse(new TroopDef("(Cv or LH)+LH+Ps").isInstance("Ps+Cv+Cv"));
+        assertTrue(new TroopDef("Bd or Ax or Ps,Ax or Ps,Ps,Ax or Bd or Ps").isInstance("Ps,Ps,Ax,Bd"));
+        assertFalse(new TroopDef("Bd or Ax or Ps,Ax or Ps,Ps,Ax or Bd or Ps").isInstance("Bd,Bd,Bd,Ps"));
+    }
+
+    @Test
+    public void testMultipleOfChoices() {
+        // An instance multiple of a choice is desugared to a choice of multiples.
+        assertTrue(new TroopDef("3Bd+Gen,9x4Bw,2xPs").matches("3Bd+Gen,9x4Bw or Ps,2xPs"));
+        assertTrue(new TroopDef("3Bd+Gen,9x4Bw,2xPs").isInstance("3Bd+Gen,9x4Bw or Ps,2xPs"));
+        assertTrue(new TroopDef("Cv,2xLH").matches("Cv,2xLH or Ps"));
+        assertTrue(new TroopDef("Cv,LH").matches("Cv,LH or Ps"));
+        assertFalse(new TroopDef("Cv,2xLH").matches("Cv,3xLH or Ps"));
+        assertFalse(new TroopDef("Cv,2xLH").matches("Cv,2xBd or Ps"));
+    }
+
+    @Test
+    public void testArmyVariants() throws IOException {
+        ArmyList.main(LOAD_ARGS);
+        for (Army army : ArmyList.Armies.values()) {
+            for (ArmyVariant variant : army.getVariants()) {
+                TroopNode tree = variant.getTroopDef().tree;
+                assertTrue(new TroopMatcher().matchTree(tree, tree), variant.toString());
+            }
+        }
+    }
+}
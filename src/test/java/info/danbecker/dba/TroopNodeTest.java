@@ -0,0 +1,127 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static info.danbecker.dba.ArmyListTest.LOAD_ARGS;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TroopNodeTest {
+    @Test
+    public void testLowering() {
+        TroopNode.Exprs exprs = TroopDefParser.parseNode("3Bd or 3/4Bw,6x3Ax or 3Wb,(Ps),Cv//4Wb,Ax+Bd+Cv");
+        assertEquals(5, exprs.exprs().size());
+        assertEquals("exprs", exprs.kind());
+
+        TroopNode.Or or = assertInstanceOf(TroopNode.Or.class, exprs.exprs().get(0));
+        assertEquals(TroopNode.Type.of("3Bd"), or.left());
+        TroopNode.EitherUnit eitherUnit = assertInstanceOf(TroopNode.EitherUnit.class, or.right());
+        assertEquals(3, eitherUnit.count());
+        assertEquals("4Bw", eitherUnit.type().code());
+
+        // Multiple has the lowest precedence, 6x(3Ax or 3Wb)
+        TroopNode.Multiple mult = assertInstanceOf(TroopNode.Multiple.class, exprs.exprs().get(1));
+        assertEquals(6, mult.count());
+        assertInstanceOf(TroopNode.Or.class, mult.expr());
+
+        TroopNode.Group group = assertInstanceOf(TroopNode.Group.class, exprs.exprs().get(2));
+        assertEquals(List.of(TroopNode.Type.of("Ps")), group.children());
+
+        TroopNode.Dismount dismount = assertInstanceOf(TroopNode.Dismount.class, exprs.exprs().get(3));
+        assertEquals("Cv", dismount.mounted().toString());
+        assertEquals("4Wb", dismount.dismounted().toString());
+
+        // Left associative, (Ax+Bd)+Cv
+        TroopNode.And and = assertInstanceOf(TroopNode.And.class, exprs.exprs().get(4));
+        assertInstanceOf(TroopNode.And.class, and.left());
+        assertEquals("exprAnd", and.kind());
+        assertEquals(List.of("Ax", "Bd", "Cv"),
+                TroopDef.getAllExprs(and).stream().map(TroopNode::toString).toList());
+    }
+
+    @Test
+    public void testText() {
+        // Text is the same as the ANTLR parse tree getText, no white space.
+        for (String troopStr : List.of("3Ax or 4Ax or Hd", "Kn/(2xLCh or WWg)", "2x2xSp", "(Bd)",
+                "Cv+Gen,9x3Ax", "3/4Bw", "Cv//4Wb,7x4Wb")) {
+            assertEquals(TroopDefParser.parse(troopStr).getText(), TroopDefParser.parseNode(troopStr).toString());
+        }
+        assertEquals("3Axor4AxorHd", TroopDefParser.parseNode("3Ax or 4Ax or Hd").toString());
+    }
+
+    @Test
+    public void testInterning() {
+        assertSame(TroopNode.Type.of("Cv"), TroopNode.Type.of("Cv"));
+        TroopNode.Exprs first = TroopDefParser.parseNode("Cv,Cv+4Bw");
+        TroopNode.Exprs second = TroopDefParser.parseNode("4Bw or Cv");
+        assertSame(first.exprs().get(0), ((TroopNode.Or) second.exprs().get(0)).right());
+        assertSame(((TroopNode.And) first.exprs().get(1)).right(), ((TroopNode.Or) second.exprs().get(0)).left());
+        // Records compare by value
+        assertEquals(first, TroopDefParser.parseNode("Cv , Cv + 4Bw"));
+        assertThrows(UnsupportedOperationException.class, () -> first.exprs().add(TroopNode.Type.of("Ps")));
+    }
+
+    @Test
+    public void testCanonical() {
+        assertEquals("Cv+LHorPs", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("(LH + Cv) or 1xPs"))));
+        assertEquals("Cv+(LHorPs)", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("(LH or Ps)+Cv"))));
+        assertEquals("Ax+Bd+Cv", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("Cv+(Bd+1xAx)"))));
+        assertEquals("(2xCv)+Bd", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("Bd+(2xCv)"))));
+        assertEquals("2xBd+Cv", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("2x(Cv+Bd)"))));
+        assertEquals("3Bw/4BworPs", TroopNode.minimalText(TroopNode.canonical(TroopDefParser.parseNode("Ps or 3/4Bw"))));
+        // Either units are the eithers they stand for.
+        assertEquals(new TroopDef("3/4Bw"), new TroopDef("4Bw/3Bw"));
+        assertEquals(new TroopDef("(2x3/4Bw) or Ps"), new TroopDef("Ps or (2x(4Bw/3Bw))"));
+
+        // Minimal text parses back to the same canonical tree.
+        for (String troopStr : List.of("3Bd or 3/4Bw,6x3Ax or 3Wb,3xPs", "Cv+2xEl or Bd", "1xCv or 2xBd+Ax",
+                "Kn/(2xLCh or WWg)", "2x2xSp", "Cv//4Wb,7x4Wb", "(Cv+LH) or Ps", "Cv+(LH or Ps)", "(Cv or Bd)//Ps")) {
+            assertCanonicalParsesBack(troopStr);
+        }
+        assertNotEquals(TroopNode.hash64(TroopDefParser.parseNode("Cv//Bd")), TroopNode.hash64(TroopDefParser.parseNode("Bd//Cv")));
+        assertNotEquals(TroopNode.hash64(TroopDefParser.parseNode("2xCv")), TroopNode.hash64(TroopDefParser.parseNode("3xCv")));
+        assertNotEquals(TroopNode.hash64(TroopDefParser.parseNode("Cv+Bd")), TroopNode.hash64(TroopDefParser.parseNode("Cv/Bd")));
+    }
+
+    @Test
+    public void testCanonicalArmyVariants() throws IOException {
+        // The same, for every variant.
+        ArmyList.main(LOAD_ARGS);
+        for (Army army : ArmyList.Armies.values()) {
+            for (ArmyVariant variant : army.getVariants()) assertCanonicalParsesBack(variant.getTroopDef().getString());
+        }
+    }
+
+    private static void assertCanonicalParsesBack(String troopStr) {
+        TroopNode canonical = TroopNode.canonical(TroopDefParser.parseNode(troopStr));
+        assertEquals(canonical, TroopNode.canonical(TroopDefParser.parseNode(TroopNode.minimalText(canonical))), troopStr);
+        assertEquals(TroopNode.hash64(canonical), TroopNode.hash64(TroopNode.canonical(TroopDefParser.parseNode(troopStr))));
+    }
+
+    @Test
+    public void testSimplify() {
+        assertEquals("3Bd/4Bd", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("3/4Bd"))));
+        assertEquals("Cv,Ax+Bd+(3Bw/4Bw)", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("1x(Cv/Cv),(Ax+Bd)+3/4Bw"))));
+        assertEquals("LH+Cv+Ps", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("LH+(Cv+1xPs)"))));
+        assertEquals("6xBd", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("2x(3xBd)"))));
+        assertEquals("(2xCv)or(4x7Hd)", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("2xCv or 2x7Hd"))));
+        assertEquals("CvorLH", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("Cv or LH or (1xCv)"))));
+        assertEquals("Cv+LH", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("Cv+LH or LH+Cv"))));
+        assertEquals("Cv//4Wb", TroopNode.minimalText(TroopNode.simplify(TroopDefParser.parseNode("(Cv)//1x4Wb"))));
+        // Codes with no plain letter part stay either units.
+        TroopNode.EitherUnit eitherUnit = new TroopNode.EitherUnit(3, TroopNode.Type.of("Mtd-4Bw"));
+        assertNull(eitherUnit.first());
+        assertSame(eitherUnit, TroopNode.simplify(eitherUnit));
+        assertEquals(TroopNode.Type.of("3Bw"), new TroopNode.EitherUnit(3, TroopNode.Type.of("4Bw")).first());
+
+        // The desugared tree means the same, so it matches the parsed tree both ways.
+        for (String troopStr : List.of("3Bd or 3/4Bw,6x3Ax or 3Wb,3xPs", "Cv+2xEl or Bd", "1xCv or 2xBd+Ax",
+                "Kn/(2xLCh or WWg)", "2x2xSp", "Cv//4Wb,7x4Wb", "(Cv+LH) or Ps", "Cv+(LH or Ps)", "(Cv or Bd)//Ps")) {
+            TroopNode simple = TroopNode.simplify(TroopDefParser.parseNode(troopStr));
+            assertEquals(simple, TroopNode.simplify(simple), troopStr);
+            assertEquals(simple, TroopNode.simplify(TroopDefParser.parseNode(TroopNode.minimalText(simple))), troopStr);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TroopPermutationsTest {
+    static final List<String> ARMIES = List.of(
+            "3Bd or 3/4Bw,6x3Ax or 3Wb,3xPs,1xPs,1xPs", // I/4a
+            "Cv,Cv,7xSp/4Ax,3xPs", // I/30c
+            "3Kn,1xLH,6x4Pk,2x3Ax/4Ax,2xSp or (1xCv+1xEl),1xPs or Art", // II/16b
+            "Kn//Sp,4xKn//Sp,3xKn//Sp or Cv,1xCv or Sp or LH or Ps or 3Bd,1xPs or Cv,2xKn//Sp or LH", // III/15
+            "1x (Cv/6Cv),5x(6Cv/Cv),3xLH or Sp,2xLH or 4Bw or Ps,1x3Kn or Ps or Art", // III/17 DBA
+            "1x4Bd or 4Ax or LH,1x3Kn,3xCv,2xLH or Ps or 7Hd,1xSp or 4Ax,3xPs or 3/4Bw"); // IV/50
+
+    @Test
+    public void testSameAsPermute() {
+        for (String armyStr : ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            // The whole list built at once with countOff.
+            List<String> all = eager(troopDef);
+            assertEquals(all, new TroopPermutations(troopDef).stream().toList(), armyStr);
+            assertEquals(all, troopDef.permute(), armyStr);
+            assertEquals(all, troopDef.permute(PermuteTrace.NONE), armyStr);
+        }
+        assertThat(new TroopDef("Ax or Bd,Cv or Hd").permuteStream().toList(), contains("Ax,Cv", "Ax,Hd", "Bd,Cv", "Bd,Hd"));
+        assertThrows(IllegalArgumentException.class, () -> new TroopPermutations(null));
+    }
+
+    /** Builds every permutation up front, slot by slot, as a check on the lazy permutations. */
+    static List<String> eager(TroopDef troopDef) {
+        List<List<String>> slots = new ArrayList<>();
+        for (TroopNode slot : troopDef.simple.exprs()) slots.add(eager(slot));
+        return TroopDef.countOff(0, slots, TroopNode.LIST_DELIM);
+    }
+
+    static List<String> eager(TroopNode node) {
+        return switch (node) {
+            case TroopNode.Type type -> List.of(type.code());
+            case TroopNode.EitherUnit eitherUnit -> (null == eitherUnit.first()) ? List.of(eitherUnit.type().code())
+                    : List.of(eitherUnit.first().code(), eitherUnit.type().code());
+            case TroopNode.Group group -> eager(group.expr());
+            case TroopNode.Multiple mult -> eager(mult.expr()).stream().map(str -> mult.count() + TroopNode.MULTIPLE_DELIM + str).toList();
+            case TroopNode.Either either -> Stream.concat(eager(either.left()).stream(), eager(either.right()).stream()).toList();
+            case TroopNode.Or or -> Stream.concat(eager(or.left()).stream(), eager(or.right()).stream()).toList();
+            case TroopNode.And and -> TroopDef.countOff(0, List.of(eager(and.left()), eager(and.right())), TroopNode.AND_DELIM);
+            case TroopNode.Dismount dismount ->
+                    TroopDef.countOff(0, List.of(eager(dismount.mounted()), eager(dismount.dismounted())), TroopNode.DISMOUNT_DELIM);
+            case TroopNode.Exprs exprs -> throw new IllegalArgumentException("nested list " + exprs);
+        };
+    }
+
+    @Test
+    public void testLazy() {
+        TroopDef troopDef = new TroopDef(ARMIES.getLast());
+        assertEquals(List.of(troopDef.permute().getFirst(), troopDef.permute().get(1)),
+                troopDef.permuteStream().limit(2).toList());
+
+        Iterator<String> iterator = new TroopDef("Ax/Bd").permuteIterator();
+        assertEquals("Ax", iterator.next());
+        assertTrue(iterator.hasNext());
+        assertEquals("Bd", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+
+        // May be iterated again.
+        TroopPermutations permutations = new TroopPermutations(troopDef);
+        assertEquals(permutations.stream().count(), permutations.stream().count());
+    }
+
+    @Test
+    public void testCountAndUnrank() {
+        TroopDef small = new TroopDef("Cv or LH,2xPs or 3/4Bw");
+        assertEquals(BigInteger.valueOf(6), small.permuteCount());
+        assertEquals(6L, small.getPermutations().count());
+        for (String armyStr : ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            List<String> all = eager(troopDef);
+            assertEquals(BigInteger.valueOf(all.size()), troopDef.permuteCount(), armyStr);
+            for (int n = 0; n < all.size(); n++) assertEquals(all.get(n), troopDef.unrank(n), armyStr);
+            assertThrows(IllegalArgumentException.class, () -> troopDef.unrank(all.size()));
+            assertThrows(IllegalArgumentException.class, () -> troopDef.unrank(-1));
+        }
+
+        // 40 slots of 10 choices is 10^40, far past a long, and is counted without making any.
+        String big = String.join(",", Collections.nCopies(40, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd"));
+        TroopPermutations permutations = new TroopDef(big).getPermutations();
+        assertEquals(BigInteger.TEN.pow(40), permutations.exactCount());
+        assertEquals(TroopPermutations.TOO_MANY, permutations.count());
+        assertEquals(String.join(",", Collections.nCopies(40, "Ax")), permutations.unrank(0));
+        // Long.MAX_VALUE is 9223372036854775807, one base 10 digit per slot, Ax is 0 and Hd is 9.
+        assertTrue(permutations.unrank(Long.MAX_VALUE).endsWith(",Ax,Hd,Sp,Sp,Ps,Ps,El,Sp,Ax,Ps,Kn,Wb,LH,Cv,El,El,LH,Wb,Ax,El"));
+        assertEquals(permutations.unrank(1), permutations.stream().skip(1).findFirst().orElseThrow());
+    }
+
+    @Test
+    public void testSpliterator() {
+        // 1000 permutations, enough to split.
+        TroopDef troopDef = new TroopDef(String.join(",", Collections.nCopies(3, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd")));
+        List<String> all = troopDef.permute();
+        Spliterator<String> spliterator = troopDef.getPermutations().spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED));
+        assertEquals(all.size(), spliterator.getExactSizeIfKnown());
+        Spliterator<String> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertEquals(all.size() / 2, prefix.getExactSizeIfKnown());
+        assertEquals(all.size() - all.size() / 2, spliterator.getExactSizeIfKnown());
+        List<String> halves = new ArrayList<>();
+        prefix.forEachRemaining(halves::add);
+        spliterator.forEachRemaining(halves::add);
+        assertEquals(all, halves);
+
+        // Parallel streams keep the order for ordered operations.
+        for (String armyStr : ARMIES) {
+            TroopDef def = new TroopDef(armyStr);
+            assertEquals(def.permute(), def.permuteStream(true).toList(), armyStr);
+            assertEquals(def.permute().size(), def.permuteStream(true).count(), armyStr);
+        }
+        String big = String.join(",", Collections.nCopies(6, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd"));
+        TroopDef bigDef = new TroopDef(big);
+        assertTrue(bigDef.permuteStream(true).isParallel());
+        assertEquals(1_000_000L, bigDef.permuteStream(true).count());
+        assertEquals(bigDef.unrank(123_456), bigDef.permuteStream(true).skip(123_456).findFirst().orElseThrow());
+    }
+
+    @Test
+    public void testDistinct() {
+        // "Cv,LH" and "LH,Cv" are one composition.
+        TroopPermutations.Distinct swapped = new TroopDef("Cv or LH,LH or Cv").permuteDistinct();
+        assertEquals(BigInteger.valueOf(4), swapped.rawCount());
+        assertEquals(BigInteger.ONE, swapped.collapsed());
+        assertThat(swapped.compositions().stream().map(Composition::toString).toList(),
+                contains("1xCv,1xLH", "2xCv", "2xLH"));
+
+        // No two of these 3 x 2 permutations have the same elements.
+        TroopPermutations.Distinct overlap = new TroopDef("2xLH or 4Bw or Ps,1xLH or Ps").permuteDistinct();
+        assertEquals(BigInteger.valueOf(6), overlap.rawCount());
+        assertEquals(BigInteger.ZERO, overlap.collapsed());
+        // "2xLH or Ps" is 2x(LH or Ps), and "2xLH,LH,Ps" and "2xLH,Ps,LH" are the same.
+        TroopPermutations.Distinct repeats = new TroopDef("2xLH or Ps,1xLH or Ps,1xLH or Ps").permuteDistinct();
+        assertEquals(BigInteger.valueOf(8), repeats.rawCount());
+        assertEquals(BigInteger.valueOf(3), repeats.collapsed());
+        assertThat(repeats.compositions().stream().map(Composition::toString).toList(),
+                contains("4xLH", "3xLH,1xPs", "2xLH,2xPs", "1xLH,3xPs", "4xPs"));
+
+        for (String armyStr : ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            // Same as a pass over every permutation, in order of first appearance.
+            List<Composition> expected = troopDef.permute().stream()
+                    .map(instStr -> Composition.of(TroopDef.of(instStr).tree)).distinct().toList();
+            TroopPermutations.Distinct distinct = troopDef.permuteDistinct();
+            assertEquals(expected, distinct.compositions(), armyStr);
+            assertEquals(troopDef.permuteCount(), distinct.rawCount(), armyStr);
+            // The same walk as CountVector.legal, which gives no counts for dismounts.
+            if (distinct.compositions().stream().allMatch(composition -> composition.dismounts().isEmpty()))
+                assertEquals(CountVector.legal(troopDef.simple),
+                        distinct.compositions().stream().map(Composition::counts).collect(Collectors.toSet()), armyStr);
+            // Each composition is itself a legal army. Dismounts are matched by grouping, not by count.
+            for (Composition composition : distinct.compositions())
+                if (composition.dismounts().isEmpty()) assertTrue(troopDef.isInstance(composition.toString()), armyStr + " " + composition);
+        }
+    }
+
+    @Test
+    public void testCursor() {
+        for (String armyStr : ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            TroopPermutations permutations = troopDef.getPermutations();
+            int[] counts = new int[CountVector.getCodes().size()];
+            long[] choices = new long[permutations.slotCount()];
+            TroopPermutations.Cursor cursor = permutations.cursor(counts, choices);
+            Iterator<String> expected = permutations.iterator();
+            long index = 0;
+            while (cursor.advance()) {
+                String instStr = expected.next();
+                assertEquals(index++, cursor.index());
+                assertEquals(instStr, cursor.render());
+                assertEquals(permutations.unrank(cursor.index()), cursor.render());
+                // As in a Composition, dismounts are kept whole and counted apart from the elements.
+                Composition composition = Composition.of(TroopDef.of(instStr).tree);
+                assertArrayEquals(composition.counts().counts(), counts, instStr);
+                List<String> dismounts = new ArrayList<>();
+                for (int d = 0; d < cursor.dismounts().length; d++)
+                    dismounts.addAll(Collections.nCopies(cursor.dismounts()[d], permutations.dismounts().get(d)));
+                Collections.sort(dismounts);
+                assertEquals(composition.dismounts(), dismounts, instStr);
+            }
+            assertFalse(expected.hasNext());
+            assertEquals(permutations.count(), index);
+            assertFalse(cursor.advance());
+            assertThrows(IllegalStateException.class, cursor::render);
+        }
+
+        TroopPermutations.Cursor cursor = new TroopDef("Cv or LH,2xPs or 3/4Bw").getPermutations().cursor();
+        assertThrows(IllegalStateException.class, cursor::render);
+        assertTrue(cursor.advance());
+        assertTrue(cursor.advance());
+        // 2xPs or 3/4Bw is 2x(Ps or 3/4Bw), so this is "Cv,2x3Bw".
+        assertArrayEquals(new long[]{0, 1}, cursor.choices());
+        assertEquals(1, cursor.counts()[CountVector.indexOf("Cv")]);
+        assertEquals(2, cursor.counts()[CountVector.indexOf("3Bw")]);
+        assertEquals(0, cursor.counts()[CountVector.indexOf("Ps")]);
+
+        // Kn//Sp is not a Kn, the same as in CountVector.legal and Composition.
+        TroopPermutations mounted = new TroopDef("2xKn//Sp or Cv,Kn").getPermutations();
+        assertEquals(List.of("Kn//Sp"), mounted.dismounts());
+        TroopPermutations.Cursor dismountCursor = mounted.cursor();
+        assertTrue(dismountCursor.advance());
+        assertEquals(1, dismountCursor.counts()[CountVector.indexOf("Kn")]);
+        assertArrayEquals(new int[]{2}, dismountCursor.dismounts());
+        assertTrue(dismountCursor.advance());
+        assertEquals(2, dismountCursor.counts()[CountVector.indexOf("Cv")]);
+        assertArrayEquals(new int[]{0}, dismountCursor.dismounts());
+
+        TroopPermutations permutations = new TroopDef("Cv,LH").getPermutations();
+        assertEquals(List.of(), permutations.dismounts());
+        assertThrows(IllegalArgumentException.class, () -> permutations.cursor(new int[1], new long[2]));
+        assertThrows(IllegalArgumentException.class, () -> permutations.cursor(new int[CountVector.getCodes().size()], new long[1]));
+        assertThrows(IllegalArgumentException.class, () -> permutations.cursor(null, new long[2]));
+    }
+
+    @Test
+    public void testSample() {
+        TroopDef small = new TroopDef("Cv or LH,2xPs or 3/4Bw");
+        List<String> all = small.permute();
+        Map<String, Long> counts = small.samples(new SplittableRandom(17), 6000)
+                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+        assertEquals(Set.copyOf(all), counts.keySet());
+        // Each of 6 permutations is expected 1000 times.
+        for (long count : counts.values()) assertThat(count, allOf(greaterThan(850L), lessThan(1150L)));
+
+        // The same seed gives the same samples, sequential or parallel.
+        for (String armyStr : ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            List<String> samples = troopDef.samples(new SplittableRandom(42), 500).toList();
+            assertEquals(samples, troopDef.samples(new SplittableRandom(42), 500).parallel().toList(), armyStr);
+            assertTrue(troopDef.permute().containsAll(samples), armyStr);
+            assertEquals(troopDef.sample(new SplittableRandom(3)), troopDef.sample(new SplittableRandom(3)), armyStr);
+        }
+
+        // Samples from 10^40 permutations without listing any.
+        String big = String.join(",", Collections.nCopies(40, "Ax or Bd or Sp or Ps or Cv or LH or Kn or El or Wb or Hd"));
+        TroopDef bigDef = new TroopDef(big);
+        String sample = bigDef.sample(new SplittableRandom(5));
+        assertEquals(40, sample.split(",").length);
+        assertTrue(bigDef.isInstance(sample));
+
+        assertThrows(IllegalArgumentException.class, () -> small.sample(null));
+        assertThrows(IllegalArgumentException.class, () -> small.samples(new SplittableRandom(), -1));
+    }
+}
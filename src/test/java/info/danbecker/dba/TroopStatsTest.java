@@ -0,0 +1,133 @@
+package info.danbecker.dba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static info.danbecker.dba.ArmyListTest.LOAD_ARGS;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TroopStatsTest {
+    // Variants whose total element equivalents is fixed, but not 12.
+    // Some rows of the CSV do not add up, others read differently under the grammar, as IV/24a "1xEl ot LH".
+    static final Set<String> FIXED_NOT_TWELVE = Set.of(
+            "I/37b", "I/44b", "I/60a", "I/60b", "II/11", "II/16e", "II/22f", "II/35", "II/69b", "III/29", "III/30b",
+            "IV/5c", "IV/9", "IV/13c", "IV/13d", "IV/24a", "IV/24b", "IV/40", "IV/64b");
+    // Variants whose total depends on the choices, mostly between single and double elements such as Cv or 6Cv,
+    // or where "+" binds a long alternative into one element, as II/79a.
+    static final Set<String> CHOICE_NOT_TWELVE = Set.of(
+            "I/60c", "II/5c", "II/5d", "II/16b", "II/36a", "II/41a", "II/43", "II/61b", "II/79a", "II/79b", "III/4b",
+            "III/7b", "III/17", "III/18", "III/20a", "III/20c", "III/27", "III/28", "III/39", "III/55", "III/56",
+            "III/62a", "III/65", "III/69", "III/73b", "III/76", "IV/13b", "IV/14a", "IV/30", "IV/43c", "IV/48",
+            "IV/51b", "IV/54b", "IV/59a", "IV/59b", "IV/61", "IV/66", "IV/68c", "IV/79c", "IV/85a");
+
+    @Test
+    public void testSmall() {
+        TroopStats stats = TroopStats.of(new TroopDef("3Bd,8x4Bw,3xPs"));
+        assertEquals(BigInteger.ONE, stats.count());
+        assertEquals(8, stats.min(ElementType.BOWS));
+        assertEquals(8, stats.max(ElementType.BOWS));
+        assertEquals(1.0, stats.expected(ElementType.BLADES));
+        assertEquals(0, stats.max(ElementType.KNIGHTS));
+        assertEquals(Map.of(12, BigInteger.ONE), stats.equivalents());
+
+        // 8Sp is a double element, and Gen rides with the Cv.
+        stats = TroopStats.of(new TroopDef("Cv+Gen,Sp or 8Sp"));
+        assertEquals(BigInteger.TWO, stats.count());
+        assertEquals(Map.of(2, BigInteger.ONE, 3, BigInteger.ONE), stats.equivalents());
+        assertEquals(1, stats.max(ElementType.GENERAL));
+        assertEquals(2, stats.minEquivalents());
+        assertEquals(3, stats.maxEquivalents());
+
+        // Of 3 permutations 2 have a Kn, Kn//Sp counts as mounted.
+        stats = TroopStats.of(new TroopDef("Kn//Sp or Cv or 3Kn"));
+        assertEquals(0, stats.min(ElementType.KNIGHTS));
+        assertEquals(1, stats.max(ElementType.KNIGHTS));
+        assertEquals(2.0 / 3.0, stats.expected(ElementType.KNIGHTS), 1e-12);
+        assertEquals(0, stats.max(ElementType.SPEARS));
+
+        assertThrows(IllegalArgumentException.class, () -> TroopStats.of(null));
+    }
+
+    @Test
+    public void testSameAsPermute() {
+        for (String armyStr : TroopPermutationsTest.ARMIES) {
+            TroopDef troopDef = new TroopDef(armyStr);
+            TroopStats stats = TroopStats.of(troopDef);
+            assertEquals(troopDef.permuteCount(), stats.count(), armyStr);
+
+            // Count every permutation the slow way.
+            int types = ElementType.values().length;
+            int[] min = new int[types];
+            Arrays.fill(min, Integer.MAX_VALUE);
+            int[] max = new int[types];
+            long[] sums = new long[types];
+            Map<Integer, BigInteger> equivalents = new TreeMap<>();
+            TroopPermutations permutations = troopDef.getPermutations();
+            // Stats count a dismounting element as its mounted element, as it is deployed.
+            List<CountVector> mounted = permutations.dismounts().stream()
+                    .map(dismountStr -> CountVector.of(((TroopNode.Dismount) TroopDef.of(dismountStr).simple.exprs().getFirst()).mounted()))
+                    .toList();
+            TroopPermutations.Cursor cursor = permutations.cursor();
+            while (cursor.advance()) {
+                int[] typeCounts = new int[types];
+                int total = 0;
+                int[] counts = cursor.counts().clone();
+                for (int d = 0; d < cursor.dismounts().length; d++)
+                    counts = new CountVector(counts).plus(mounted.get(d).times(cursor.dismounts()[d])).counts();
+                for (int code = 0; code < counts.length; code++) {
+                    String codeStr = CountVector.getCodes().get(code);
+                    typeCounts[TroopStats.typeOf(codeStr).ordinal()] += counts[code];
+                    total += TroopStats.equivalents(codeStr) * counts[code];
+                }
+                for (int i = 0; i < types; i++) {
+                    min[i] = Math.min(min[i], typeCounts[i]);
+                    max[i] = Math.max(max[i], typeCounts[i]);
+                    sums[i] += typeCounts[i];
+                }
+                equivalents.merge(total, BigInteger.ONE, BigInteger::add);
+            }
+            for (ElementType type : ElementType.values()) {
+                assertEquals(min[type.ordinal()], stats.min(type), armyStr + " " + type);
+                assertEquals(max[type.ordinal()], stats.max(type), armyStr + " " + type);
+                assertEquals((double) sums[type.ordinal()] / permutations.count(), stats.expected(type), 1e-9, armyStr + " " + type);
+            }
+            assertEquals(equivalents, stats.equivalents(), armyStr);
+        }
+    }
+
+    @Test
+    public void testArmyList() throws IOException {
+        // Load something
+        ArmyList.main(LOAD_ARGS);
+
+        ArmyVariant variant = ArmyList.Armies.get(ArmyRef.parse("I/1")).getVariants().getFirst();
+        assertSame(variant.getStats(), variant.getStats());
+        assertEquals(Map.of(12, BigInteger.ONE), variant.getStats().equivalents());
+
+        List<ArmyVariant> knights = ArmyList.getByElementCount(ElementType.KNIGHTS, 4);
+        assertFalse(knights.isEmpty());
+        assertTrue(knights.stream().allMatch(av -> av.getStats().max(ElementType.KNIGHTS) >= 4));
+        assertEquals(knights.stream().sorted().toList(), knights);
+        assertTrue(ArmyList.getByElementCount(ElementType.KNIGHTS, 0).size() > knights.size());
+        assertTrue(ArmyList.getByElementCount(ElementType.KNIGHTS, 100).isEmpty());
+
+        // Every other variant fields 12 element equivalents whatever the choices.
+        Set<String> fixed = new TreeSet<>();
+        Set<String> choice = new TreeSet<>();
+        for (ArmyVariant av : ArmyList.getVariantIndex().variants) {
+            TroopStats stats = av.getStats();
+            if (Map.of(12, stats.count()).equals(stats.equivalents())) continue;
+            (1 == stats.equivalents().size() ? fixed : choice).add(av.getArmyRef().toString());
+        }
+        assertEquals(new TreeSet<>(FIXED_NOT_TWELVE), fixed);
+        assertEquals(new TreeSet<>(CHOICE_NOT_TWELVE), choice);
+    }
+}